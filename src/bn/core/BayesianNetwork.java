@@ -14,6 +14,8 @@ import java.io.PrintStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Set;
@@ -265,6 +267,44 @@ public class BayesianNetwork {
 	}
     }
 
+    /**
+     * Returns a new BayesianNetwork with just the given RandomVariables
+     * of this BayesianNetwork and their ancestors, in the same order,
+     * sharing this network's RandomVariables and CPTs. The variables that
+     * are left out are ``barren'' for any query about the given ones:
+     * summing them out gives one, so the answer is the same without them.
+     * @throws NoSuchElementException if a variable isn't in this network
+     */
+    public BayesianNetwork getAncestralNetwork(Collection<RandomVariable> vars) {
+	Set<Node> keep = new HashSet<Node>();
+	List<Node> stack = new ArrayList<Node>();
+	for (RandomVariable var : vars) {
+	    stack.add(getNodeForVariable(var));
+	}
+	while (!stack.isEmpty()) {
+	    Node node = stack.remove(stack.size()-1);
+	    if (keep.add(node) && node.parents != null) {
+		stack.addAll(node.parents);
+	    }
+	}
+	BayesianNetwork network = new BayesianNetwork();
+	for (Node node : nodes) {
+	    if (keep.contains(node)) {
+		network.add(node.variable);
+	    }
+	}
+	for (Node node : nodes) {
+	    if (keep.contains(node) && node.parents != null) {
+		List<RandomVariable> parents = new ArrayList<RandomVariable>(node.parents.size());
+		for (Node pnode : node.parents) {
+		    parents.add(pnode.variable);
+		}
+		network.connect(node.variable, parents, node.cpt);
+	    }
+	}
+	return network;
+    }
+
     /**
      * Returns the Set of RandomVariables that are the children of
      * the given RandomVariable. This is done in a really wasteful
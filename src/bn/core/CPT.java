@@ -8,6 +8,7 @@
 package bn.core;
 
 import java.io.*;
+import java.nio.DoubleBuffer;
 import java.util.*;
 
 /**
@@ -18,157 +19,277 @@ import java.util.*;
  * probability of the query variable value given the values of the
  * conditioning variables.
  * <p>
- * This implementation uses a tree of Entries. The root Entry is for the first
- * conditioning variable. It is a Dimension with an Entry for each possible
- * value of the variable. Each of these second-level Entries is a Dimension
- * for the second conditioning variable. And so on. The final level of the
- * tree corresponds to the values of the query variable, and its Entries
- * are all ProbabilityValues containing a double value.
+ * This implementation stores the probabilities in one flat buffer, in
+ * counting order over the given variables (the first most significant)
+ * and then the values of the query variable, which is the order used by
+ * XMLBIF (see {@link #valueIterator}). The index of a combination of
+ * values is the sum over the variables of the index of the variable's
+ * value in its domain times the variable's stride. So parsers can fill in
+ * a whole table at once with {@link #setValues}, and inferencers can copy
+ * it out with {@link #getValues}, without going through Assignments.
  * <p>
- * This implementation does not impose any requirements on the order in
- * which variables and values are presented. That makes it easier to
- * use for inference, but at some cost in efficiency.
- * <p>
- * There are many, many ways one could be more efficient about
- * this, for example encoding the values as ordinals (1, 2, 3, etc.) and
- * then encoding the combinations of values as bit-patterns used as indexes
- * into an array. Since this is a crucial data structure for doing
- * inference with Bayesian Networks, you might want/need to improve it.
+ * Lookups by Assignment ({@link #get}, {@link #set}) still match
+ * variables by name and values by their string form, and so don't impose
+ * any requirements on which RandomVariable objects are used.
  */
 public class CPT {
 
     /**
-     * Parent class of entries in a CPT.
-     */
-    abstract public class Entry {
-	abstract public void print(PrintWriter out, String prefix);
-    }
-
-    /**
-     * Each dimension of a CPT corresponds to a RandomVariable and
-     * contains a set of Entries, one for each value of the variable.
+     * A view of one probability value of a CPT, identified by its index
+     * in the table.
      */
-    public class Dimension extends Entry {
-	public RandomVariable variable;
-	public Map<Object,Entry> entries;
-	public Dimension(RandomVariable variable) {
-	    this.variable = variable;
-	    Domain domain = variable.getDomain();
-	    this.entries = new LinkedHashMap<Object,Entry>(domain.size());
+    public class ProbabilityValue {
+	protected final int index;
+	public ProbabilityValue(int index) {
+	    this.index = index;
 	}
 	/**
-	 * Print this CPT Dimension to the given PrintWriter.
+	 * Returns the probability value stored at this index.
 	 */
-	public void print(PrintWriter out, String prefix) {
-	    for (Map.Entry<Object,Entry> entry : entries.entrySet()) {
-		String newprefix = prefix + variable.getName() + "=" + entry.getKey() + "\t";
-		entry.getValue().print(out, newprefix);
-	    }
+	public double getValue() {
+	    return values().get(index);
 	}
-	
-    }
-
-    /**
-     * The terminal Entries in a CPT contain the probability value
-     * corresponding to the values on the path from the root to the
-     * Entry.
-     */
-    public class ProbabilityValue extends Entry {
-	public double value;
-	public ProbabilityValue(double value) {
-	    this.value = value;
+	/**
+	 * Stores the given probability value at this index.
+	 */
+	public void setValue(double value) {
+	    values().put(index, value);
 	}
 	/**
 	 * Print this CPT ProbabilityValue to the given PrintWriter.
 	 */
 	public void print(PrintWriter out, String prefix) {
 	    out.print(prefix);
-	    out.println(value);
+	    out.println(values().get(index));
 	}
     }
 
     /**
-     * The Entry at the root of this CPT.
+     * The query variable of this CPT.
+     */
+    protected RandomVariable query;
+
+    /**
+     * The given (conditioning) variables of this CPT.
+     */
+    protected List<RandomVariable> givens;
+
+    /**
+     * The stride of each given variable in the table, then that of the
+     * query variable (which is always 1).
      */
-    public Entry root;
+    protected int[] strides;
+
+    /**
+     * The number of probability values.
+     */
+    protected int size;
+
+    /**
+     * The probability values, in counting order. This is usually a
+     * buffer wrapping an array, but may be a view of some other storage,
+     * such as a memory-mapped file. It is null until they are loaded if
+     * this CPT has a Source. Use {@link #values()} to get them.
+     */
+    protected volatile DoubleBuffer values;
+
+    /**
+     * Where to load the probability values from when they are first
+     * needed, or null if they are already here.
+     */
+    protected Source source;
+
+    /**
+     * Something that can produce the probability values of a CPT when
+     * they are first needed, such as the unparsed text of its block in a
+     * file (see ParallelBIFParser).
+     */
+    public interface Source {
+	/**
+	 * Returns a CPT for the same variables whose values are the
+	 * given CPT's.
+	 * @throws UncheckedIOException if the values can't be read
+	 */
+	CPT load(CPT cpt);
+    }
 
     /**
      * Construct and return a new CPT representing the possible combinations
      * of values of the given query and <q>given</q> RandomVariables.
-     * This CPT is <q>empty</q> in the sense of having no probability
-     * values at the leaves.
+     * This CPT is <q>empty</q> in the sense of having all its probability
+     * values zero.
      */
     public CPT(RandomVariable query, List<RandomVariable> givens) {
-	root = init(query, givens, 0);
+	this(query, givens, (DoubleBuffer)null);
     }
 
     /**
-     * Returns an Entry for the index'th given variable (if index &lt;
-     * number of givens, in which case the sub-entries are created
-     * recursively), and otherwise are ProbabilityValues storing the
-     * values of the query variable. The result is a <q>tree</q> whose
-     * levels enumerate the values of the given variables in order,
-     * followed by values of the query variables, as described in the
-     * comment for the CPT class.
-     */
-    protected Entry init(RandomVariable query, List<RandomVariable> givens, int index) {
-	if (index < givens.size()) {
-	    // Add a Dimension for the current given variable
-	    RandomVariable given = givens.get(index);
-	    Dimension dimen = new Dimension(given);
-	    for (Object value : given.getDomain()) {
-		Entry entry = init(query, givens, index+1);
-		dimen.entries.put(value, entry);
-	    }
-	    return dimen;
+     * Construct and return a new CPT representing the possible combinations
+     * of values of the given query and <q>given</q> RandomVariables, whose
+     * probability values are the given buffer's from its position on (not
+     * a copy of them). If values is null, this CPT is <q>empty</q>. If the
+     * buffer is read-only, so is this CPT.
+     * @throws IllegalArgumentException if the buffer is too small
+     */
+    public CPT(RandomVariable query, List<RandomVariable> givens, DoubleBuffer values) {
+	setVariables(query, givens);
+	if (values == null) {
+	    this.values = DoubleBuffer.allocate(size);
+	} else if (values.remaining() < size) {
+	    throw new IllegalArgumentException("CPT needs " + size + " values but buffer has " + values.remaining());
 	} else {
-	    // Done givens; add ProbabilityValues for the query var's values
-	    Dimension dimen = new Dimension(query);
-	    for (Object value : query.getDomain()) {
-		ProbabilityValue p = new ProbabilityValue(0.0);
-		dimen.entries.put(value, p);
-	    }
-	    return dimen;
+	    DoubleBuffer view = values.slice();
+	    view.limit(size);
+	    this.values = view.slice();
 	}
     }
 
     /**
-     * Return the descendant of the given Entry identified by the given
-     * sequence of values, starting from the given index.
-     * @throws NoSuchElementException if the values don't represent a path to a Entry.
+     * Construct and return a new CPT representing the possible combinations
+     * of values of the given query and <q>given</q> RandomVariables, whose
+     * probability values are loaded from the given Source the first time
+     * they are needed (by any thread).
      */
-    protected ProbabilityValue find(Entry entry, Assignment assignment) throws NoSuchElementException {
-	if (entry == null) {
-	    throw new NoSuchElementException();
-	} else if (entry instanceof ProbabilityValue) {
-	    return (ProbabilityValue)entry;
-	} else {
-	    Dimension dimen = (Dimension)entry;
-	    RandomVariable var = dimen.variable;
-//	    Object value = assignment.get(var);
-		Object value = getValue(var,assignment);
-	    if (value == null) {
-		throw new NoSuchElementException();
-	    } else {
-//		entry = dimen.entries.get(value);
- 		entry = getEntry(value,dimen.entries);
-		if (entry == null) {
-		    throw new NoSuchElementException();
-		} else {
-		    return find(entry, assignment);
-		}
+    public CPT(RandomVariable query, List<RandomVariable> givens, Source source) {
+	setVariables(query, givens);
+	this.source = source;
+    }
+
+    /**
+     * Sets up the variables, strides and size, but not the values.
+     */
+    private void setVariables(RandomVariable query, List<RandomVariable> givens) {
+	this.query = query;
+	this.givens = new ArrayList<RandomVariable>(givens);
+	int n = givens.size();
+	strides = new int[n+1];
+	int stride = 1;
+	strides[n] = stride;
+	stride *= query.getDomain().size();
+	for (int i=n-1; i >= 0; i--) {
+	    strides[i] = stride;
+	    stride *= givens.get(i).getDomain().size();
+	}
+	size = stride;
+    }
+
+    /**
+     * Returns the probability values of this CPT, loading them first if
+     * they haven't been yet.
+     */
+    protected DoubleBuffer values() {
+	DoubleBuffer v = values;
+	if (v == null) {
+	    v = load();
+	}
+	return v;
+    }
+
+    /**
+     * Loads the probability values from the Source, unless another
+     * thread got there first.
+     */
+    private synchronized DoubleBuffer load() {
+	if (values == null) {
+	    CPT loaded = source.load(this);
+	    if (loaded.size() != size) {
+		throw new IllegalStateException("loaded CPT has " + loaded.size() + " values, not " + size);
 	    }
+	    values = loaded.values();
+	    source = null;
 	}
+	return values;
     }
 
-	private Entry getEntry(Object value, Map<Object, Entry> entries){
-		for (Map.Entry<Object, Entry> entry : entries.entrySet()){
-			if (entry.getKey().equals(value.toString())){
-				return entry.getValue();
-			}
-		}
-		return null;
+    /**
+     * Returns true if the probability values of this CPT are in memory,
+     * which is always, unless it has a Source that hasn't been needed yet.
+     */
+    public boolean isLoaded() {
+	return values != null;
+    }
+
+    /**
+     * Returns the number of probability values in this CPT.
+     */
+    public int size() {
+	return size;
+    }
+
+    /**
+     * Returns the stride of the index'th given variable in the table, or
+     * that of the query variable if index is the number of givens.
+     */
+    public int getStride(int index) {
+	return strides[index];
+    }
+
+    /**
+     * Returns the probability value at the given index in the table.
+     */
+    public double getValue(int index) {
+	return values().get(index);
+    }
+
+    /**
+     * Stores the given probability value at the given index in the table.
+     */
+    public void setValue(int index, double p) {
+	values().put(index, p);
+    }
+
+    /**
+     * Copies length probability values from the given array, starting at
+     * offset, into the table starting at the given index.
+     */
+    public void setValues(int index, double[] src, int offset, int length) {
+	DoubleBuffer dst = values().duplicate();
+	dst.position(index);
+	dst.put(src, offset, length);
+    }
+
+    /**
+     * Copies length probability values from the table, starting at the
+     * given index, into the given array starting at offset.
+     */
+    public void getValues(int index, double[] dst, int offset, int length) {
+	DoubleBuffer src = values().duplicate();
+	src.position(index);
+	src.get(dst, offset, length);
+    }
+
+    /**
+     * Returns the index in the table of the combination of values for
+     * variables represented by the given Assignment.
+     * @throws NoSuchElementException if the values don't identify a probability value.
+     */
+    protected int indexOf(Assignment assignment) throws NoSuchElementException {
+	int index = 0;
+	for (int i=0; i < givens.size(); i++) {
+	    index += valueIndex(givens.get(i), assignment) * strides[i];
 	}
+	return index + valueIndex(query, assignment);
+    }
+
+    /**
+     * Returns the index in its domain of the value of the given variable
+     * in the given Assignment.
+     * @throws NoSuchElementException if the variable has no such value.
+     */
+    private int valueIndex(RandomVariable var, Assignment assignment) throws NoSuchElementException {
+	Object value = getValue(var, assignment);
+	if (value == null) {
+	    throw new NoSuchElementException();
+	}
+	Domain domain = var.getDomain();
+	String str = value.toString();
+	for (int k=0; k < domain.size(); k++) {
+	    if (domain.get(k).equals(str)) {
+		return k;
+	    }
+	}
+	throw new NoSuchElementException();
+    }
 
 	private Object getValue(RandomVariable var, Assignment assignment){
 		for (Map.Entry<RandomVariable, Object> entry : assignment.entrySet()){
@@ -179,20 +300,13 @@ public class CPT {
 		return null;
 	}
 
-
-
     /**
      * Stores the given probability in this CPT for the combination
      * values for variables represented by the given Assignment.
      * @throws NoSuchElementException if the values don't represent a path to a ProbabilityValue.
      */
     public void set(Assignment e, double p) {
-	ProbabilityValue pv = find(root, e);
-	if (pv != null) {
-	    pv.value = p;
-	} else {
-	    throw new NoSuchElementException();
-	}
+	values().put(indexOf(e), p);
     }
 
     /**
@@ -201,19 +315,14 @@ public class CPT {
      * @throws NoSuchElementException if the values don't represent a path to a ProbabilityValue.
      */
     public double get(Assignment e) throws NoSuchElementException {
-	ProbabilityValue pv = find(root, e);
-	if (pv != null) {
-	    return pv.value;
-	} else {
-	    throw new NoSuchElementException();
-	}
+	return values().get(indexOf(e));
     }
 
     /**
-     * Returns a depth-first Iterator over the ProbabilityValues of this CPT
-     * (ie., over the terminal entries that contain the probability values).
+     * Returns an Iterator over the ProbabilityValues of this CPT, in the
+     * order they are stored.
      * <p>
-     * This routine is entirely for populating a CPT from an XMLBIF
+     * This routine is mostly for populating a CPT from an XMLBIF
      * representation of a Bayesian network. Specifically, it enumerates
      * the given (conditioning) variables first, in the order they were
      * added to the variable's domain (i.e., the order of the {@code outcome}
@@ -232,24 +341,16 @@ A1 A2 A3  A1 A2 A3  A1 A2 A3  A1 A2 A3    A1 A2 A3  A1 A2 A3  A1 A2 A3  A1 A2 A3
      * inside a {@code definition} element.
      */
     public Iterator<ProbabilityValue> valueIterator() {
-	final Stack<Entry> stack = new Stack<Entry>();
-	stack.push(root);
 	return new Iterator<ProbabilityValue>() {
+	    int index = 0;
 	    public boolean hasNext() {
-		return !stack.isEmpty();
+		return index < size;
 	    }
 	    public ProbabilityValue next() throws NoSuchElementException {
-		while (true) {
-		    Entry entry = stack.pop();
-		    if (entry instanceof ProbabilityValue) {
-			return (ProbabilityValue)entry;
-		    } else {
-			Dimension dimen = (Dimension)entry;
-			Collection<Entry> entries = dimen.entries.values();
-			// Push in reverse order (to preserve DFS ordering)
-			reversePush(stack, entries.iterator());
-		    }
+		if (index >= size) {
+		    throw new NoSuchElementException();
 		}
+		return new ProbabilityValue(index++);
 	    }
 	    public void remove() {
 		throw new UnsupportedOperationException();
@@ -257,27 +358,30 @@ A1 A2 A3  A1 A2 A3  A1 A2 A3  A1 A2 A3    A1 A2 A3  A1 A2 A3  A1 A2 A3  A1 A2 A3
 	};
     }
 
+    // Printable
+
     /**
-     * Push the elements returned by the given Iterator onto the given
-     * Stack in reverse order. We just store the elements on the runtime
-     * stack and then push them onto the given stack as the recursion
-     * unwinds. How Lispilicious!
+     * Print this CPT to the given PrintWriter.
      */
-    protected void reversePush(Stack<Entry> stack, Iterator<Entry> elements) {
-	if (elements.hasNext()) {
-	    Entry element = elements.next();
-	    reversePush(stack, elements);
-	    stack.push(element);
+    public void print(PrintWriter out) {
+	StringBuilder prefix = new StringBuilder();
+	for (int index=0; index < size; index++) {
+	    prefix.setLength(0);
+	    for (int i=0; i < givens.size(); i++) {
+		appendValue(prefix, givens.get(i), index / strides[i]);
+	    }
+	    appendValue(prefix, query, index);
+	    new ProbabilityValue(index).print(out, prefix.toString());
 	}
     }
 
-    // Printable
-
     /**
-     * Print this CPT to the given PrintWriter.
+     * Appends var=value and a tab to the given prefix, for the value of the
+     * given variable with the given index (modulo the domain size).
      */
-    public void print(PrintWriter out) {
-	root.print(out, "");
+    private void appendValue(StringBuilder prefix, RandomVariable var, int k) {
+	Domain domain = var.getDomain();
+	prefix.append(var.getName()).append('=').append(domain.get(k % domain.size())).append('\t');
     }
 
     /**
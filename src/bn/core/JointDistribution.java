@@ -0,0 +1,262 @@
+package bn.core;
+
+import bn.util.Printable;
+
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.NoSuchElementException;
+
+/**
+ * Class representing a joint probability distribution over a list of
+ * RandomVariables.
+ * <p>
+ * Unlike Distribution, which maps values to Doubles, this is stored
+ * the way the comment in Distribution suggests: the values of each
+ * variable are mapped to their index in its Domain, and the
+ * combinations of values are laid out in a flat array of doubles.
+ * The first variable is the most significant dimension and the last
+ * variable the least significant, which is the same counting order
+ * used for the {@code table} entries of a CPT.
+ */
+public class JointDistribution implements Printable {
+
+    /**
+     * The RandomVariables of this JointDistribution, in order.
+     */
+    protected List<RandomVariable> variables;
+
+    /**
+     * The size of the Domain of each variable.
+     */
+    protected int[] sizes;
+
+    /**
+     * The probabilities of the combinations of values, in counting order.
+     */
+    protected double[] values;
+
+    /**
+     * Construct and return a new JointDistribution over the given
+     * RandomVariables, with all probabilities zero.
+     * @throws IllegalArgumentException if a variable (matched by name)
+     * is given twice
+     */
+    public JointDistribution(List<RandomVariable> variables) {
+	Set<String> names = new HashSet<String>();
+	for (RandomVariable var : variables) {
+	    if (!names.add(var.getName())) {
+		throw new IllegalArgumentException(var.getName() + " is given twice");
+	    }
+	}
+	this.variables = new ArrayList<RandomVariable>(variables);
+	this.sizes = new int[variables.size()];
+	int length = 1;
+	for (int i=0; i < sizes.length; i++) {
+	    sizes[i] = variables.get(i).getDomain().size();
+	    length *= sizes[i];
+	}
+	this.values = new double[length];
+    }
+
+    /**
+     * Return the RandomVariables of this JointDistribution.
+     */
+    public List<RandomVariable> getVariables() {
+	return variables;
+    }
+
+    /**
+     * Return the number of combinations of values in this JointDistribution.
+     */
+    public int size() {
+	return values.length;
+    }
+
+    /**
+     * Return the flat array of probabilities backing this JointDistribution.
+     * Changes to the array change the distribution.
+     */
+    public double[] getValues() {
+	return values;
+    }
+
+    /**
+     * Return the position in the flat array of the combination of values
+     * given by the given indexes (one per variable, in order).
+     */
+    public int offset(int... indexes) {
+	if (indexes.length != sizes.length) {
+	    throw new IllegalArgumentException("expected " + sizes.length + " indexes");
+	}
+	int offset = 0;
+	for (int i=0; i < sizes.length; i++) {
+	    offset = offset * sizes[i] + indexes[i];
+	}
+	return offset;
+    }
+
+    /**
+     * Return the probability of the combination of values given by the
+     * given indexes (one per variable, in order).
+     */
+    public double get(int... indexes) {
+	return values[offset(indexes)];
+    }
+
+    /**
+     * Store the probability of the combination of values given by the
+     * given indexes (one per variable, in order).
+     */
+    public void set(double p, int... indexes) {
+	values[offset(indexes)] = p;
+    }
+
+    /**
+     * Return the probability of the combination of values assigned to the
+     * variables of this JointDistribution in the given Assignment.
+     * Variables are matched by name and values by their string form,
+     * just as in CPT.
+     * @throws NoSuchElementException if a variable or value is missing.
+     */
+    public double get(Assignment a) throws NoSuchElementException {
+	int offset = 0;
+	for (int i=0; i < sizes.length; i++) {
+	    RandomVariable var = variables.get(i);
+	    Object value = null;
+	    for (RandomVariable key : a.variableSet()) {
+		if (key.getName().equals(var.getName())) {
+		    value = a.get(key);
+		    break;
+		}
+	    }
+	    if (value == null) {
+		throw new NoSuchElementException(var.getName());
+	    }
+	    int index = indexOf(var.getDomain(), value);
+	    offset = offset * sizes[i] + index;
+	}
+	return values[offset];
+    }
+
+    /**
+     * Return the index of the given value in the given Domain, comparing
+     * string forms.
+     * @throws NoSuchElementException if the value isn't in the Domain.
+     */
+    protected int indexOf(Domain domain, Object value) throws NoSuchElementException {
+	String str = value.toString();
+	for (int i=0; i < domain.size(); i++) {
+	    if (domain.get(i).toString().equals(str)) {
+		return i;
+	    }
+	}
+	throw new NoSuchElementException(str);
+    }
+
+    /**
+     * Normalize this distribution so that the probabilities add up to 1.
+     */
+    public void normalize() {
+	double sum = 0.0;
+	for (double value : values) {
+	    sum += value;
+	}
+	for (int i=0; i < values.length; i++) {
+	    values[i] /= sum;
+	}
+    }
+
+    /**
+     * Return the marginal Distribution of the given RandomVariable
+     * (matched by name) obtained by summing out the other variables.
+     * @throws NoSuchElementException if the variable isn't in this
+     * JointDistribution.
+     */
+    public Distribution marginal(RandomVariable X) throws NoSuchElementException {
+	int k = -1;
+	for (int i=0; i < sizes.length; i++) {
+	    if (variables.get(i).getName().equals(X.getName())) {
+		k = i;
+		break;
+	    }
+	}
+	if (k == -1) {
+	    throw new NoSuchElementException(X.getName());
+	}
+	// Stride of dimension k is the product of the sizes after it
+	int stride = 1;
+	for (int i=k+1; i < sizes.length; i++) {
+	    stride *= sizes[i];
+	}
+	double[] sums = new double[sizes[k]];
+	for (int offset=0; offset < values.length; offset++) {
+	    sums[(offset / stride) % sizes[k]] += values[offset];
+	}
+	Domain domain = variables.get(k).getDomain();
+	Distribution dist = new Distribution(domain.size());
+	for (int i=0; i < sums.length; i++) {
+	    dist.put(domain.get(i), sums[i]);
+	}
+	return dist;
+    }
+
+    // Printable
+
+    /**
+     * Print this JointDistribution to the given PrintWriter, one
+     * combination of values per line.
+     */
+    public void print(PrintWriter out) {
+	int[] indexes = new int[sizes.length];
+	for (int offset=0; offset < values.length; offset++) {
+	    for (int i=0; i < sizes.length; i++) {
+		RandomVariable var = variables.get(i);
+		out.print(var.getName());
+		out.print("=");
+		out.print(var.getDomain().get(indexes[i]));
+		out.print("\t");
+	    }
+	    out.println(values[offset]);
+	    // Advance the odometer, last variable fastest
+	    for (int i=sizes.length-1; i >= 0; i--) {
+		if (++indexes[i] < sizes[i]) {
+		    break;
+		}
+		indexes[i] = 0;
+	    }
+	}
+    }
+
+    /**
+     * Print this JointDistribution to the given PrintStream.
+     */
+    public void print(PrintStream out) {
+	PrintWriter writer = new PrintWriter(out, true);
+	print(writer);
+	writer.flush();
+    }
+
+    /**
+     * Print this JointDistribution to System.out.
+     */
+    public void print() {
+	print(System.out);
+    }
+
+    /**
+     * Return the string representation of this JointDistribution.
+     */
+    public String toString() {
+	StringWriter writer = new StringWriter();
+	PrintWriter out = new PrintWriter(writer);
+	print(out);
+	out.flush();
+	return writer.toString();
+    }
+
+}
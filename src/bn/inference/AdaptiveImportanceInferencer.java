@@ -0,0 +1,275 @@
+package bn.inference;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * Adaptive importance sampling, after the AIS-BN algorithm of Cheng and
+ * Druzdzel (JAIR 13, 2000).
+ * <p>
+ * Likelihood weighting samples the non-evidence variables from their CPTs,
+ * which ignores the evidence below them. When the evidence is unlikely,
+ * almost all the samples get tiny weights and a few get all the weight.
+ * Here the samples are drawn from an ``importance'' CPT (ICPT) for each
+ * ancestor of the evidence instead, which is learned so as to approach
+ * P(X | parents, evidence):
+ * <ol>
+ * <li>The ICPTs start out as the CPTs, except that the parents of evidence
+ * variables start out uniform, and small probabilities are raised to a
+ * floor (the ``epsilon-cutoff'') so that no value is starved.</li>
+ * <li>Each training round draws a small batch from the current ICPTs,
+ * estimates P(X | parents, evidence) from the weighted samples, and moves
+ * the ICPTs towards the estimate at a learning rate that decays from
+ * round to round.</li>
+ * <li>The main batch (the sample budget) is then drawn from the learned
+ * ICPTs, each sample weighted by P(sample, evidence) / ICPT(sample), as
+ * for any importance sampler.</li>
+ * </ol>
+ * Variables that aren't ancestors of the evidence are sampled from their
+ * CPTs, which is already the best importance function for them.
+ */
+public class AdaptiveImportanceInferencer extends SamplingInferencer {
+    private int rounds = 10;
+    private int roundSamples = 2000;
+
+    /**
+     * Learning rate at the first and last training rounds; in between it
+     * decays geometrically (Cheng and Druzdzel's a and b).
+     */
+    private static final double FIRST_RATE = 0.4;
+    private static final double LAST_RATE = 0.14;
+
+    public AdaptiveImportanceInferencer(int limit) {
+        super(limit);
+    }
+
+    /**
+     * Sets the number of rounds used to learn the importance function.
+     */
+    public void setTrainingRounds(int rounds) {
+        this.rounds = Math.max(0, rounds);
+    }
+
+    /**
+     * Sets the number of samples drawn in each training round.
+     */
+    public void setTrainingSamples(int samples) {
+        this.roundSamples = Math.max(1, samples);
+    }
+
+    /**
+     * Parses the command line arguments to run a test
+     */
+    public static void main(String[] args){
+        runMain(args, new AdaptiveImportanceInferencer(0));
+    }
+
+    /**
+     * Learns the importance function for the given Query (using the given
+     * random number generator), and returns a Sampler that draws from it.
+     */
+    @Override
+    Sampler newSampler(final Query q, SplittableRandom random) {
+        final CompiledNetwork net = q.net;
+        final int[] order = CompiledNetwork.getIndexes(net.getRelevantVariables(q.query, q.evidence));
+        boolean[] adapt = net.getRelevantVariables(new int[0], q.evidence);
+        for (int i = 0; i < adapt.length; i++){
+            adapt[i] &= (q.evidence[i] < 0);
+        }
+        final double[][] icpt = getInitialICPTs(net, q.evidence, adapt);
+        final AliasTable[] tables = getTables(net, icpt);
+        learn(net, order, q.evidence, icpt, tables, random);
+        return new Sampler() {
+            public Shard newShard(final SplittableRandom random) {
+                final int[] sample = new int[net.size()];
+                return new Shard() {
+                    public void run(int samples, Tally tally, Deadline deadline) {
+                        for (int count = 0; count < samples; count++){
+                            double w = importanceSample(net, order, q.evidence, icpt, tables, sample, random);
+                            if (w > 0){
+                                tally.add(q.cell(sample), w);
+                            } else {
+                                tally.reject();
+                            }
+                            if ((count + 1) % Deadline.INTERVAL == 0 && deadline.hasPassed()){
+                                return;
+                            }
+                        }
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Returns the initial ICPTs: null (meaning use the CPT) for the variables
+     * not being adapted, otherwise a copy of the CPT that is uniform for
+     * parents of evidence variables, with the epsilon-cutoff applied.
+     */
+    private double[][] getInitialICPTs(CompiledNetwork net, int[] evidence, boolean[] adapt) {
+        int n = net.size();
+        boolean[] evidenceParent = new boolean[n];
+        for (int i = 0; i < n; i++){
+            if (evidence[i] >= 0){
+                for (int p : net.parents[i]){
+                    evidenceParent[p] = true;
+                }
+            }
+        }
+        double[][] icpt = new double[n][];
+        for (int i = 0; i < n; i++){
+            if (!adapt[i]){
+                continue;
+            }
+            int k = net.card[i];
+            icpt[i] = net.cpt[i].clone();
+            for (int offset = 0; offset < icpt[i].length; offset += k){
+                if (evidenceParent[i]){
+                    for (int v = 0; v < k; v++){
+                        icpt[i][offset + v] = (net.cpt[i][offset + v] > 0) ? 1.0 : 0.0;
+                    }
+                    normalize(icpt[i], offset, k);
+                }
+                applyCutoff(icpt[i], offset, k);
+            }
+        }
+        return icpt;
+    }
+
+    /**
+     * Raises the non-zero probabilities in the given row that are below the
+     * cutoff for its size up to the cutoff, and renormalizes. Zeros are left
+     * alone: they're impossible, not just unlikely.
+     */
+    private static void applyCutoff(double[] table, int offset, int k) {
+        double cutoff = 0.08 / k;
+        boolean changed = false;
+        for (int v = 0; v < k; v++){
+            double p = table[offset + v];
+            if (p > 0 && p < cutoff){
+                table[offset + v] = cutoff;
+                changed = true;
+            }
+        }
+        if (changed){
+            normalize(table, offset, k);
+        }
+    }
+
+    /**
+     * Normalizes the row of the given table starting at the given offset.
+     * Leaves rows of zeros alone.
+     */
+    private static void normalize(double[] table, int offset, int k) {
+        double sum = 0.0;
+        for (int v = 0; v < k; v++){
+            sum += table[offset + v];
+        }
+        if (sum > 0){
+            for (int v = 0; v < k; v++){
+                table[offset + v] /= sum;
+            }
+        }
+    }
+
+    /**
+     * Returns the alias tables to draw from: the CompiledNetwork's own for
+     * variables without ICPTs, otherwise ones built from the ICPTs.
+     */
+    private static AliasTable[] getTables(CompiledNetwork net, double[][] icpt) {
+        AliasTable[] tables = net.getAliasTables().clone();
+        for (int i = 0; i < icpt.length; i++){
+            if (icpt[i] != null){
+                tables[i] = new AliasTable(icpt[i], net.card[i]);
+            }
+        }
+        return tables;
+    }
+
+    /**
+     * Runs the training rounds, updating the given ICPTs (and their alias
+     * tables) in place.
+     */
+    private void learn(CompiledNetwork net, int[] order, int[] evidence,
+                       double[][] icpt, AliasTable[] tables, SplittableRandom random) {
+        int n = net.size();
+        int[] sample = new int[n];
+        double[][] estimate = new double[n][];
+        for (int i = 0; i < n; i++){
+            if (icpt[i] != null){
+                estimate[i] = new double[icpt[i].length];
+            }
+        }
+        for (int round = 0; round < rounds; round++){
+            for (double[] e : estimate){
+                if (e != null){
+                    Arrays.fill(e, 0.0);
+                }
+            }
+            // weighted counts of each variable's value given its parents
+            for (int count = 0; count < roundSamples; count++){
+                double w = importanceSample(net, order, evidence, icpt, tables, sample, random);
+                if (w > 0){
+                    for (int i : order){
+                        if (estimate[i] != null){
+                            estimate[i][net.rowOffset(i, sample) + sample[i]] += w;
+                        }
+                    }
+                }
+            }
+            double rate = (rounds > 1)
+                ? FIRST_RATE * Math.pow(LAST_RATE / FIRST_RATE, (double)round / (rounds - 1))
+                : FIRST_RATE;
+            for (int i = 0; i < n; i++){
+                if (icpt[i] == null){
+                    continue;
+                }
+                int k = net.card[i];
+                for (int offset = 0; offset < icpt[i].length; offset += k){
+                    double sum = 0.0;
+                    for (int v = 0; v < k; v++){
+                        sum += estimate[i][offset + v];
+                    }
+                    // rows that weren't visited keep what they had
+                    if (sum > 0){
+                        for (int v = 0; v < k; v++){
+                            double target = estimate[i][offset + v] / sum;
+                            icpt[i][offset + v] += rate * (target - icpt[i][offset + v]);
+                        }
+                        applyCutoff(icpt[i], offset, k);
+                    }
+                }
+                tables[i] = new AliasTable(icpt[i], k);
+            }
+        }
+    }
+
+    /**
+     * Fills in the given sample array by drawing the non-evidence variables
+     * in the given order from their ICPTs (or CPTs), and returns the
+     * importance weight P(sample, evidence) / ICPT(sample). Stops early
+     * (returning 0) if the sample is impossible.
+     */
+    private static double importanceSample(CompiledNetwork net, int[] order, int[] evidence, double[][] icpt,
+                                           AliasTable[] tables, int[] sample, SplittableRandom random) {
+        double w = 1.0;
+        for (int i : order){
+            int offset = net.rowOffset(i, sample);
+            if (evidence[i] >= 0){
+                sample[i] = evidence[i];
+                w *= net.cpt[i][offset + evidence[i]];
+            } else {
+                int value = tables[i].sample(offset, random.nextDouble());
+                sample[i] = value;
+                if (icpt[i] != null){
+                    w *= net.cpt[i][offset + value] / icpt[i][offset + value];
+                }
+            }
+            if (w == 0){
+                return 0;
+            }
+        }
+        return w;
+    }
+
+}
@@ -0,0 +1,180 @@
+package bn.inference;
+
+/**
+ * Walker's alias method tables for drawing from the rows of a flat CPT in
+ * constant time, however many values the variable has. Each row of k
+ * probabilities is turned into k cells; cell j holds a threshold and an
+ * alias, and a draw picks a cell uniformly and then either j or its alias
+ * depending on the threshold. The tables are built with Vose's algorithm,
+ * which is numerically stable.
+ * <p>
+ * Only one uniform number is used per draw: its integer part (after
+ * scaling by k) picks the cell and its fractional part is compared to the
+ * threshold. That keeps a draw a function of a single coordinate, which
+ * the quasi-random sources rely on.
+ */
+class AliasTable {
+
+    /**
+     * Rows with at most this many values are stored as cumulative
+     * probabilities and drawn from by scanning, which is still constant
+     * time at this size and beats the alias lookup for the boolean and
+     * three-valued variables that most networks are made of.
+     */
+    static final int SCAN = 3;
+
+    /**
+     * The number of values in each row.
+     */
+    final int card;
+
+    /**
+     * The threshold of each cell, row by row, in the same layout as the CPT.
+     * For small rows, the cumulative probabilities instead.
+     */
+    final double[] threshold;
+
+    /**
+     * The alias of each cell, row by row, in the same layout as the CPT.
+     */
+    final int[] alias;
+
+    /**
+     * Builds the alias tables for every row of the given flat table with the
+     * given number of values per row. Rows that don't add up to one are
+     * normalized first; rows of zeros give uniform draws.
+     */
+    AliasTable(double[] table, int card) {
+        this.card = card;
+        threshold = new double[table.length];
+        alias = new int[table.length];
+        int[] small = new int[card];
+        int[] large = new int[card];
+        double[] scaled = new double[card];
+        for (int offset = 0; offset < table.length; offset += card){
+            build(table, offset, small, large, scaled);
+        }
+    }
+
+    /**
+     * Builds the cells of the row starting at the given offset, using the
+     * given scratch arrays.
+     */
+    private void build(double[] table, int offset, int[] small, int[] large, double[] scaled) {
+        if (card <= SCAN){
+            buildCumulative(table, offset);
+            return;
+        }
+        double sum = 0.0;
+        int mode = 0;
+        for (int j = 0; j < card; j++){
+            sum += table[offset + j];
+            if (table[offset + j] > table[offset + mode]){
+                mode = j;
+            }
+        }
+        int ns = 0;
+        int nl = 0;
+        for (int j = 0; j < card; j++){
+            scaled[j] = (sum > 0) ? table[offset + j] * card / sum : 1.0;
+            if (scaled[j] < 1.0){
+                small[ns++] = j;
+            } else {
+                large[nl++] = j;
+            }
+        }
+        while (ns > 0 && nl > 0){
+            int s = small[--ns];
+            int l = large[--nl];
+            threshold[offset + s] = scaled[s];
+            alias[offset + s] = l;
+            scaled[l] = (scaled[l] + scaled[s]) - 1.0;
+            if (scaled[l] < 1.0){
+                small[ns++] = l;
+            } else {
+                large[nl++] = l;
+            }
+        }
+        // whatever is left is 1 up to rounding error
+        while (nl > 0){
+            int l = large[--nl];
+            threshold[offset + l] = 1.0;
+            alias[offset + l] = l;
+        }
+        while (ns > 0){
+            int s = small[--ns];
+            threshold[offset + s] = (scaled[s] > 0) ? 1.0 : 0.0;
+            alias[offset + s] = mode;
+        }
+    }
+
+    /**
+     * Fills in the thresholds of a row of a small table with the cumulative
+     * probabilities of its values (see SCAN).
+     */
+    private void buildCumulative(double[] table, int offset) {
+        double sum = 0.0;
+        for (int j = 0; j < card; j++){
+            sum += table[offset + j];
+        }
+        double cumulative = 0.0;
+        for (int j = 0; j < card; j++){
+            cumulative += (sum > 0) ? table[offset + j] / sum : 1.0 / card;
+            threshold[offset + j] = cumulative;
+        }
+    }
+
+    /**
+     * Fills in the first n entries of values with values drawn from the
+     * rows starting at the corresponding offsets, using the corresponding
+     * uniform numbers in u. Does the same as calling
+     * {@link #sample(int,double)} n times, but decides how once.
+     */
+    void sample(int[] offsets, int[] values, int n, double[] u) {
+        if (card <= SCAN){
+            for (int k = 0; k < n; k++){
+                int offset = offsets[k];
+                int last = offset + card - 1;
+                int cell = offset;
+                while (cell < last && u[k] >= threshold[cell]){
+                    cell++;
+                }
+                values[k] = cell - offset;
+            }
+        } else {
+            for (int k = 0; k < n; k++){
+                double x = u[k] * card;
+                int j = (int)x;
+                if (j >= card){
+                    j = card - 1;
+                }
+                int cell = offsets[k] + j;
+                values[k] = (x - j < threshold[cell]) ? j : alias[cell];
+            }
+        }
+    }
+
+    /**
+     * Returns a value drawn from the row starting at the given offset,
+     * using the given uniform number in [0,1).
+     */
+    int sample(int offset, double u) {
+        if (card <= SCAN){
+            int last = offset + card - 1;
+            for (int cell = offset; cell < last; cell++){
+                if (u < threshold[cell]){
+                    return cell - offset;
+                }
+            }
+            return card - 1;
+        }
+        double x = u * card;
+        int j = (int)x;
+        if (j >= card){
+            j = card - 1;
+        }
+        int cell = offset + j;
+        return (x - j < threshold[cell]) ? j : alias[cell];
+    }
+
+}
@@ -0,0 +1,216 @@
+package bn.inference;
+
+import java.util.SplittableRandom;
+
+/**
+ * Backward sampling (Fung and Del Favero, UAI 1994). Forward samplers draw
+ * every variable from its CPT and only then find out how well the sample
+ * fits the evidence, which wastes most of the samples when the evidence is
+ * at the leaves of the network (symptoms, in alarm.bif). Here the sampling
+ * starts at the evidence and works up towards the roots instead.
+ * <p>
+ * Working through the variables in reverse topological order, each
+ * instantiated variable X (the evidence, at first) with parents that
+ * aren't instantiated yet draws values for them from the ``column'' of its
+ * CPT for its value x: each combination u of those parents' values
+ * (given the ones already instantiated) is drawn with probability
+ * P(x | u) / Z, where Z is the sum of P(x | u) over all the combinations.
+ * The variables that were drawn become instantiated and may take a
+ * backward step in turn, up to a given depth from the evidence. All the
+ * other variables that matter to the query are then sampled forward from
+ * their CPTs as usual.
+ * <p>
+ * The importance weight of a sample is P(sample) / Q(sample). The CPT of
+ * each variable that took a backward step shows up in P as P(x | u),
+ * which is Z times its probability under Q, and the forward-sampled
+ * variables cancel out. So the weight is the product of the normalizers
+ * Z of the backward steps, times P(x | parents) for every instantiated
+ * variable that had no backward step (those at the depth limit, and
+ * variables whose parents had already been instantiated by other
+ * children).
+ * <p>
+ * Sampling backwards ignores the priors of the variables it draws, so
+ * the deeper it goes the more the weights vary. The default depth of 1,
+ * where only the parents of the evidence are drawn backwards, is usually
+ * best: going all the way to the roots of alarm.bif leaves almost nothing
+ * of a million samples.
+ */
+public class BackwardSamplingInferencer extends SamplingInferencer {
+
+    private int depth = 1;
+
+    public BackwardSamplingInferencer(int limit) {
+        super(limit);
+    }
+
+    /**
+     * Sets how many steps back from the evidence to sample backwards: 1,
+     * the default, means only the parents of the evidence are drawn
+     * backwards, and anything larger than the depth of the network means
+     * all the ancestors of the evidence are.
+     */
+    public void setDepth(int depth) {
+        this.depth = Math.max(1, depth);
+    }
+
+    /**
+     * Parses the command line arguments to run a test
+     */
+    public static void main(String[] args){
+        runMain(args, new BackwardSamplingInferencer(0));
+    }
+
+    /**
+     * Returns a Sampler that does backward sampling for the given Query.
+     * Only the variables relevant to the query and evidence take part.
+     */
+    @Override
+    Sampler newSampler(final Query q, SplittableRandom random) {
+        final CompiledNetwork net = q.net;
+        final int[] order = CompiledNetwork.getIndexes(net.getRelevantVariables(q.query, q.evidence));
+        final AliasTable[] tables = net.getAliasTables();
+        int maxRows = 1;
+        int maxParents = 0;
+        for (int i : order){
+            maxRows = Math.max(maxRows, net.cpt[i].length / net.card[i]);
+            maxParents = Math.max(maxParents, net.parents[i].length);
+        }
+        final int rows = maxRows;
+        final int scope = maxParents;
+        return new Sampler() {
+            public Shard newShard(final SplittableRandom random) {
+                final int[] sample = new int[net.size()];
+                final int[] level = new int[net.size()];
+                final double[] column = new double[rows];
+                final int[] free = new int[scope];
+                final int[] values = new int[scope];
+                return new Shard() {
+                    public void run(int samples, Tally tally, Deadline deadline) {
+                        for (int count = 0; count < samples; count++){
+                            double w = backwardSample(net, tables, order, q.evidence, sample, level,
+                                                      column, free, values, random);
+                            if (w > 0){
+                                tally.add(q.cell(sample), w);
+                            } else {
+                                tally.reject();
+                            }
+                            if ((count + 1) % Deadline.INTERVAL == 0 && deadline.hasPassed()){
+                                return;
+                            }
+                        }
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Fills in the given sample array for the variables in the given order
+     * by backward sampling from the evidence and then forward sampling the
+     * rest, and returns the importance weight of the sample. Stops early
+     * (returning 0) if the sample is impossible. The other arrays are
+     * scratch space: level holds how many backward steps away from the
+     * evidence each instantiated variable is (or -1 if it isn't).
+     */
+    private double backwardSample(CompiledNetwork net, AliasTable[] tables, int[] order, int[] evidence,
+                                  int[] sample, int[] level, double[] column,
+                                  int[] free, int[] values, SplittableRandom random) {
+        for (int i : order){
+            level[i] = (evidence[i] >= 0) ? 0 : -1;
+            if (level[i] == 0){
+                sample[i] = evidence[i];
+            }
+        }
+        double w = 1.0;
+        // backwards, so every variable's children have been dealt with
+        for (int k = order.length - 1; k >= 0; k--){
+            int i = order[k];
+            if (level[i] >= 0 && level[i] < depth){
+                w *= backwardStep(net, i, sample, level, column, free, values, random);
+                if (w == 0){
+                    return 0;
+                }
+                // mark it as having had its step
+                level[i] = depth + level[i] + 1;
+            }
+        }
+        for (int i : order){
+            if (level[i] < 0){
+                sample[i] = tables[i].sample(net.rowOffset(i, sample), random.nextDouble());
+            } else if (level[i] <= depth){
+                w *= net.getProb(i, sample);
+                if (w == 0){
+                    return 0;
+                }
+            }
+        }
+        return w;
+    }
+
+    /**
+     * Draws values for the parents of instantiated variable i that aren't
+     * instantiated yet, from the column of i's CPT for its value, and
+     * returns the normalizer Z of the column. If all its parents are
+     * instantiated already, returns P(value of i | parents) instead.
+     */
+    private static double backwardStep(CompiledNetwork net, int i, int[] sample, int[] level,
+                                       double[] column, int[] free, int[] values, SplittableRandom random) {
+        int[] parents = net.parents[i];
+        int[] strides = net.strides[i];
+        int x = sample[i];
+        // the offset of the fixed parents' values, and which are free
+        int base = x;
+        int nf = 0;
+        for (int j = 0; j < parents.length; j++){
+            if (level[parents[j]] >= 0){
+                base += sample[parents[j]] * strides[j];
+            } else {
+                free[nf++] = j;
+            }
+        }
+        double[] table = net.cpt[i];
+        if (nf == 0){
+            return table[base];
+        }
+        // P(x | u) for each combination u of the free parents' values,
+        // in counting order (last free parent fastest)
+        int combinations = 0;
+        double z = 0.0;
+        for (int f = 0; f < nf; f++){
+            values[f] = 0;
+        }
+        while (true){
+            int offset = base;
+            for (int f = 0; f < nf; f++){
+                offset += values[f] * strides[free[f]];
+            }
+            z += table[offset];
+            column[combinations++] = z;
+            int f = nf - 1;
+            while (f >= 0 && ++values[f] == net.card[parents[free[f]]]){
+                values[f--] = 0;
+            }
+            if (f < 0){
+                break;
+            }
+        }
+        if (z == 0){
+            return 0;
+        }
+        // draw a combination from the cumulative column and decode it
+        double u = random.nextDouble() * z;
+        int pick = 0;
+        while (pick < combinations - 1 && u >= column[pick]){
+            pick++;
+        }
+        for (int f = nf - 1; f >= 0; f--){
+            int p = parents[free[f]];
+            int card = net.card[p];
+            sample[p] = pick % card;
+            pick /= card;
+            level[p] = level[i] + 1;
+        }
+        return z;
+    }
+
+}
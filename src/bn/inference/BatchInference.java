@@ -0,0 +1,820 @@
+package bn.inference;
+
+import bn.core.*;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.regex.Pattern;
+
+/**
+ * Answers a stream of queries on one network, loading the network once
+ * rather than once per query as running an inferencer's main for each
+ * query does. Each line of the input is a case: evidence, and which
+ * variables to ask about if not the ones given by -query. Cases can be
+ * given as
+ * <ul>
+ * <li>args: the command line arguments an inferencer takes after the
+ * network file, that is the query variables (if there's an odd number
+ * of words) and then pairs of evidence variables and values;
+ * <li>csv: a header line of variable names, and then a line of values
+ * for each case, where an empty value means the variable isn't observed
+ * (columns called {@code query} and {@code id} are the query variables
+ * and a name for the case);
+ * <li>jsonl: a JSON object for each case, whose {@code evidence} member
+ * maps variable names to values (or else all its members but
+ * {@code query} and {@code id} do), whose {@code query} member is a name
+ * or a list of names, and whose {@code id} member (a string or a number)
+ * names the case.
+ * </ul>
+ * The query variables may be separated by commas, semicolons or spaces.
+ * <p>
+ * Lines are read one at a time and handed to a fixed pool of worker
+ * threads, each with its own inferencer. No more than a window of cases
+ * (by default four per thread) are read ahead of the output, so when the
+ * output can't keep up (or the workers can't), reading stops until it
+ * does, and memory doesn't grow with the size of the input. A single
+ * writer thread writes each answer as soon as it's ready, in the order of
+ * the input unless -unordered, and flushes whenever it has to wait. (Out
+ * of order, each line of text output starts with the id of its case and
+ * a tab, so the answers can be matched up with the cases.) A
+ * case that can't be answered gets an error line rather than stopping the
+ * run.
+ * <p>
+ * Answers are written in the form the inferencers' mains print them
+ * (text), or as JSON objects with the id, query variables and
+ * distribution of each case (jsonl). Sampling inferencers are seeded with
+ * the number of the case, so their answers don't depend on which thread
+ * happens to answer which case, and take the options of the sampling
+ * inferencers' mains (such as {@code -deadline} or {@code -chains}).
+ * Exact inference shares one set of
+ * elimination plans between the threads, which is saved next to the
+ * network at the end rather than after every new plan.
+ */
+public class BatchInference {
+
+    private BayesianNetwork bn;
+    private String engine = "exact";
+    private int samples = 10000;
+    private String[] options = new String[0];
+    private EliminationPlans plans;
+    private List<String> defaultQuery;
+    private String format;
+    private boolean jsonOutput;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int window;
+    private boolean ordered = true;
+
+    /**
+     * The header of a csv input.
+     */
+    private List<String> header;
+
+    /**
+     * Each worker thread's inferencer.
+     */
+    private final ThreadLocal<Inferencer> inferencers = new ThreadLocal<Inferencer>(){
+        @Override
+        protected Inferencer initialValue() {
+            Inferencer inferencer = Inferencer.newInferencer(engine, samples);
+            Inferencer.setOptions(inferencer, options);
+            if (inferencer instanceof SamplingInferencer){
+                // the cases are answered in parallel already
+                ((SamplingInferencer)inferencer).setThreads(1);
+            } else if (inferencer instanceof ExactInferencer && plans != null){
+                ((ExactInferencer)inferencer).setPlans(plans);
+            }
+            return inferencer;
+        }
+    };
+
+    /**
+     * Parses the command line arguments to run the cases
+     */
+    public static void main(String[] args) throws IOException {
+
+        BatchInference batch = new BatchInference();
+        String casesFile = "-";
+        String output = null;
+        List<String> files = new ArrayList<>();
+        List<String> options = new ArrayList<>();
+        try {
+            for (int i = 0; i < args.length; i++){
+                switch (args[i]){
+                    case "-engine":
+                        batch.engine = args[++i];
+                        if (!Inferencer.ENGINES.contains(batch.engine)){
+                            usage("No engine named " + batch.engine);
+                        }
+                        break;
+                    case "-samples":
+                        batch.samples = Integer.parseInt(args[++i]);
+                        break;
+                    case "-query":
+                        batch.defaultQuery = splitNames(args[++i]);
+                        break;
+                    case "-format":
+                        batch.format = args[++i];
+                        break;
+                    case "-output":
+                        output = args[++i];
+                        break;
+                    case "-threads":
+                        batch.threads = Math.max(1, Integer.parseInt(args[++i]));
+                        break;
+                    case "-window":
+                        batch.window = Math.max(1, Integer.parseInt(args[++i]));
+                        break;
+                    case "-ordered":
+                        batch.ordered = true;
+                        break;
+                    case "-unordered":
+                        batch.ordered = false;
+                        break;
+                    default:
+                        int taken = Inferencer.getOptionLength(args, i);
+                        if (taken > 0){
+                            options.addAll(Arrays.asList(args).subList(i, i + taken));
+                            i += taken - 1;
+                        } else {
+                            files.add(args[i]);
+                        }
+                }
+            }
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            usage("You did not enter valid arguments");
+        }
+        if (files.isEmpty() || files.size() > 2){
+            usage("You did not enter the correct number of command line arguments.");
+        }
+        batch.options = options.toArray(new String[0]);
+        if (!Inferencer.setOptions(Inferencer.newInferencer(batch.engine, batch.samples), batch.options)){
+            usage("The " + batch.engine + " engine doesn't take the options " + String.join(" ", options));
+        }
+        String testFile = files.get(0);
+        if (files.size() > 1){
+            casesFile = files.get(1);
+        }
+        if (batch.format == null){
+            batch.format = casesFile.endsWith(".csv") ? "csv"
+                : (casesFile.endsWith(".jsonl") || casesFile.endsWith(".json")) ? "jsonl" : "args";
+        }
+        if (!Arrays.asList("args", "csv", "jsonl").contains(batch.format)){
+            usage("No format named " + batch.format);
+        }
+        if (output == null){
+            output = batch.format.equals("args") ? "text" : "jsonl";
+        }
+        if (!output.equals("text") && !output.equals("jsonl")){
+            usage("No output named " + output);
+        }
+        batch.jsonOutput = output.equals("jsonl");
+        if (batch.window == 0){
+            batch.window = 4 * batch.threads;
+        }
+        if (casesFile.equals("-") && testFile.equals("-")){
+            usage("The network and the cases can't both be on standard input");
+        }
+
+        // load the network once, leaving each CPT until a case needs it
+        batch.bn = Inferencer.getBayesianNetworkFromFile(testFile, true);
+        if (!testFile.equals("-")){
+            batch.plans = EliminationPlans.load(new File(testFile + ".plans"));
+        }
+
+        InputStream input = casesFile.equals("-") ? System.in : new FileInputStream(casesFile);
+        BufferedReader in = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8), 1 << 16);
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(FileDescriptor.out), StandardCharsets.UTF_8), 1 << 16);
+        try {
+            batch.run(in, out);
+        } finally {
+            in.close();
+            if (batch.plans != null){
+                batch.plans.save();
+            }
+        }
+    }
+
+    private static void usage(String message) {
+        System.err.println(message);
+        System.err.println("Please execute this program in the following format: " +
+                "java bn.inference.BatchInference [-engine " + String.join("|", Inferencer.ENGINES) + "] [-samples <n>]" +
+                " [-query <Query variable>[,<Query variable>...]] [-format args|csv|jsonl] [-output text|jsonl]" +
+                " [-threads <n>] [-window <n>] [-ordered|-unordered] [<sampler options>] <example.xml> [<cases file>|-]");
+        System.err.println("where the sampler options are " + new GibbsInferencer(0).getOptionUsage() +
+                " (not all of which every sampling engine takes)");
+        System.exit(0);
+    }
+
+    /**
+     * Reads the cases from in, and writes the answers to out, as they are
+     * worked out by the pool.
+     */
+    void run(BufferedReader in, Writer out) throws IOException {
+        Semaphore permits = new Semaphore(window);
+        BlockingQueue<FutureTask<String>> answers = new LinkedBlockingQueue<>();
+        OutputWriter writer = new OutputWriter(answers, permits, out);
+        writer.start();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            String line;
+            long number = 0;
+            if (format.equals("csv") && (line = in.readLine()) != null){
+                header = parseCSVLine(line);
+            }
+            while (writer.error == null && (line = in.readLine()) != null){
+                if (line.trim().isEmpty()){
+                    continue;
+                }
+                number++;
+                permits.acquire();
+                FutureTask<String> answer;
+                if (ordered){
+                    answer = new FutureTask<String>(new Answer(line, number));
+                    answers.add(answer);
+                } else {
+                    answer = new FutureTask<String>(new Answer(line, number)){
+                        @Override
+                        protected void done() {
+                            answers.add(this);
+                        }
+                    };
+                }
+                pool.execute(answer);
+            }
+            // once all the permits are back, everything has been written
+            permits.acquire(window);
+            answers.add(OutputWriter.END);
+            writer.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            pool.shutdownNow();
+        }
+        if (writer.error != null){
+            throw writer.error;
+        }
+    }
+
+    /**
+     * Writes the answers in the order they come off the queue, giving back
+     * a permit for each.
+     */
+    private static class OutputWriter extends Thread {
+
+        static final FutureTask<String> END = new FutureTask<String>(new Callable<String>(){
+            public String call() {
+                return null;
+            }
+        });
+
+        final BlockingQueue<FutureTask<String>> answers;
+        final Semaphore permits;
+        final Writer out;
+        volatile IOException error;
+
+        OutputWriter(BlockingQueue<FutureTask<String>> answers, Semaphore permits, Writer out) {
+            super("BatchInference writer");
+            setDaemon(true);
+            this.answers = answers;
+            this.permits = permits;
+            this.out = out;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true){
+                    FutureTask<String> answer = answers.poll();
+                    if (answer == null || !answer.isDone()){
+                        // going to have to wait, so let out what we have
+                        flush();
+                        if (answer == null){
+                            answer = answers.take();
+                        }
+                    }
+                    if (answer == END){
+                        break;
+                    }
+                    String line;
+                    try {
+                        line = answer.get();
+                    } catch (ExecutionException ex) {
+                        // Answer.call makes an error line of anything it throws
+                        throw new IllegalStateException(ex.getCause());
+                    }
+                    if (error == null){
+                        try {
+                            out.write(line);
+                            out.write('\n');
+                        } catch (IOException ex) {
+                            // keep taking answers so the reader isn't stuck
+                            error = ex;
+                        }
+                    }
+                    permits.release();
+                }
+                flush();
+            } catch (InterruptedException ex) {
+                // the reader has given up
+            }
+        }
+
+        private void flush() {
+            if (error == null){
+                try {
+                    out.flush();
+                } catch (IOException ex) {
+                    error = ex;
+                }
+            }
+        }
+    }
+
+    /**
+     * Works out the answer to one case, as the line to write.
+     */
+    private class Answer implements Callable<String> {
+
+        final String line;
+        final long number;
+
+        Answer(String line, long number) {
+            this.line = line;
+            this.number = number;
+        }
+
+        public String call() {
+            Case c = new Case(number);
+            try {
+                if (format.equals("args")){
+                    c.parseArgs(line);
+                } else if (format.equals("csv")){
+                    c.parseCSV(line);
+                } else {
+                    c.parseJSON(line);
+                }
+                Inferencer inferencer = inferencers.get();
+                if (inferencer instanceof SamplingInferencer){
+                    ((SamplingInferencer)inferencer).setSeed(number);
+                }
+                JointDistribution result = inferencer.askJoint(bn, c.getQuery(), c.getEvidence());
+                return jsonOutput ? c.toJSON(result) : c.label() + c.toText(result);
+            } catch (RuntimeException ex) {
+                String message = (ex.getMessage() != null) ? ex.getMessage() : ex.toString();
+                return c.toError(message);
+            } catch (Error ex) {
+                // such as running out of memory on a big case
+                return c.toError(ex.toString());
+            }
+        }
+    }
+
+    /**
+     * One case: its id, query variables and evidence, by name.
+     */
+    private class Case {
+
+        String id;
+        boolean numericId = true;
+        List<String> query;
+        Map<String,String> evidence = new LinkedHashMap<>();
+
+        Case(long number) {
+            id = Long.toString(number);
+        }
+
+        /**
+         * Returns the id as JSON: a number if it is one, else a string.
+         */
+        String getJSONId() {
+            return numericId ? id : quote(id);
+        }
+
+        /**
+         * Returns what a line of text output starts with: the id and a tab
+         * if the answers are out of order, otherwise nothing.
+         */
+        String label() {
+            return ordered ? "" : id + "\t";
+        }
+
+        /**
+         * Returns the line to write for this case when it can't be
+         * answered, for the given reason.
+         */
+        String toError(String message) {
+            return jsonOutput ? "{\"id\":" + getJSONId() + ",\"error\":" + quote(message) + "}"
+                : label() + "error: " + message;
+        }
+
+        void parseArgs(String line) {
+            String[] words = line.trim().split("\\s+");
+            int start = words.length % 2;
+            if (start == 1){
+                query = splitNames(words[0]);
+            }
+            for (int i = start; i < words.length; i += 2){
+                evidence.put(words[i], words[i+1]);
+            }
+        }
+
+        void parseCSV(String line) {
+            if (header == null){
+                throw new IllegalArgumentException("no header");
+            }
+            List<String> values = parseCSVLine(line);
+            if (values.size() > header.size()){
+                throw new IllegalArgumentException("more values than columns");
+            }
+            for (int i = 0; i < values.size(); i++){
+                String name = header.get(i);
+                String value = values.get(i).trim();
+                if (value.isEmpty()){
+                    continue;
+                } else if (name.equals("query")){
+                    query = splitNames(value);
+                } else if (name.equals("id")){
+                    id = value;
+                    numericId = false;
+                } else {
+                    evidence.put(name, value);
+                }
+            }
+        }
+
+        void parseJSON(String line) {
+            JSONReader reader = new JSONReader(line);
+            Map<String,Object> object = reader.readObject();
+            reader.end();
+            Object members = object.get("evidence");
+            boolean nested = members instanceof Map;
+            for (Map.Entry<String,Object> entry : object.entrySet()){
+                String name = entry.getKey();
+                Object value = entry.getValue();
+                if (name.equals("query") && value instanceof List){
+                    query = new ArrayList<>();
+                    for (Object q : (List<?>)value){
+                        query.add(String.valueOf(q));
+                    }
+                } else if (name.equals("query") && value != null){
+                    query = splitNames(value.toString());
+                } else if (name.equals("id") && value != null){
+                    if (value instanceof String){
+                        id = (String)value;
+                        numericId = false;
+                    } else if (value instanceof JSONReader.Literal && NUMBER.matcher(value.toString()).matches()){
+                        id = value.toString();
+                    } else {
+                        throw new IllegalArgumentException("the id must be a string or a number");
+                    }
+                } else if (!nested && value != null && !name.equals("query") && !name.equals("id")){
+                    evidence.put(name, value.toString());
+                }
+            }
+            if (nested){
+                for (Map.Entry<?,?> entry : ((Map<?,?>)members).entrySet()){
+                    if (entry.getValue() != null){
+                        evidence.put(entry.getKey().toString(), entry.getValue().toString());
+                    }
+                }
+            }
+        }
+
+        /**
+         * Returns the query variables of the network.
+         */
+        List<RandomVariable> getQuery() {
+            List<String> names = (query != null) ? query : defaultQuery;
+            if (names == null || names.isEmpty()){
+                throw new IllegalArgumentException("no query variables");
+            }
+            List<RandomVariable> vars = new ArrayList<>(names.size());
+            for (String name : names){
+                vars.add(getVariable(name));
+            }
+            return vars;
+        }
+
+        /**
+         * Returns the evidence as an Assignment of the network's
+         * variables. Values are matched by the inferencers.
+         */
+        Assignment getEvidence() {
+            Assignment e = new Assignment();
+            for (Map.Entry<String,String> entry : evidence.entrySet()){
+                e.set(getVariable(entry.getKey()), entry.getValue());
+            }
+            return e;
+        }
+
+        RandomVariable getVariable(String name) {
+            try {
+                return bn.getVariableByName(name);
+            } catch (NoSuchElementException ex) {
+                throw new IllegalArgumentException("no variable named " + name);
+            }
+        }
+
+        String toText(JointDistribution result) {
+            if (result.getVariables().size() == 1){
+                return Inferencer.formatResults(result.marginal(result.getVariables().get(0)));
+            }
+            return Inferencer.formatResults(result);
+        }
+
+        String toJSON(JointDistribution result) {
+            List<RandomVariable> vars = result.getVariables();
+            double[] values = result.getValues();
+            StringBuilder buf = new StringBuilder();
+            buf.append("{\"id\":").append(getJSONId()).append(",\"query\":[");
+            for (int j = 0; j < vars.size(); j++){
+                buf.append((j > 0) ? "," : "").append(quote(vars.get(j).getName()));
+            }
+            buf.append("],\"distribution\":{");
+            int[] indexes = new int[vars.size()];
+            for (int i = 0; i < values.length; i++){
+                StringBuilder key = new StringBuilder();
+                for (int j = 0; j < indexes.length; j++){
+                    key.append((j > 0) ? "," : "").append(vars.get(j).getDomain().get(indexes[j]));
+                }
+                buf.append((i > 0) ? "," : "").append(quote(key.toString())).append(":");
+                buf.append(Double.isNaN(values[i]) ? "null" : Double.toString(values[i]));
+                // advance to the next combination, last variable fastest
+                for (int j = indexes.length - 1; j >= 0; j--){
+                    if (++indexes[j] < vars.get(j).getDomain().size()){
+                        break;
+                    }
+                    indexes[j] = 0;
+                }
+            }
+            buf.append("}}");
+            return buf.toString();
+        }
+    }
+
+    /**
+     * A number as JSON writes it.
+     */
+    private static final Pattern NUMBER = Pattern.compile("-?(0|[1-9][0-9]*)(\\.[0-9]+)?([eE][-+]?[0-9]+)?");
+
+    /**
+     * Returns the names in the given list, separated by commas, semicolons
+     * or spaces.
+     */
+    static List<String> splitNames(String names) {
+        List<String> list = new ArrayList<>();
+        for (String name : names.split("[,;\\s]+")){
+            if (!name.isEmpty()){
+                list.add(name);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Returns the fields of the given line of CSV, which may be quoted
+     * (with quotes doubled inside). Fields can't span lines.
+     */
+    static List<String> parseCSVLine(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++){
+            char c = line.charAt(i);
+            if (quoted){
+                if (c != '"'){
+                    field.append(c);
+                } else if (i + 1 < line.length() && line.charAt(i+1) == '"'){
+                    field.append(c);
+                    i++;
+                } else {
+                    quoted = false;
+                }
+            } else if (c == '"'){
+                quoted = true;
+            } else if (c == ','){
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        if (quoted){
+            throw new IllegalArgumentException("unterminated quote");
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+
+    /**
+     * Returns the given string as a JSON string.
+     */
+    static String quote(String str) {
+        StringBuilder buf = new StringBuilder(str.length() + 2);
+        buf.append('"');
+        for (int i = 0; i < str.length(); i++){
+            char c = str.charAt(i);
+            if (c == '"' || c == '\\'){
+                buf.append('\\').append(c);
+            } else if (c < 0x20){
+                buf.append(String.format("\\u%04x", (int)c));
+            } else {
+                buf.append(c);
+            }
+        }
+        buf.append('"');
+        return buf.toString();
+    }
+
+    /**
+     * Just enough of a JSON parser to read a case: objects become Maps,
+     * arrays Lists, and strings Strings, while numbers, true and false
+     * become Literals holding the text they are written as, and null is
+     * null.
+     */
+    static class JSONReader {
+
+        /**
+         * A number, true or false, as written. Its toString is the text, so
+         * as a value of a variable it reads the same as a string would.
+         */
+        static class Literal {
+            final String text;
+
+            Literal(String text) {
+                this.text = text;
+            }
+
+            @Override
+            public String toString() {
+                return text;
+            }
+        }
+
+        final String text;
+        int pos;
+
+        JSONReader(String text) {
+            this.text = text;
+        }
+
+        Map<String,Object> readObject() {
+            expect('{');
+            Map<String,Object> object = new LinkedHashMap<>();
+            if (peek() == '}'){
+                pos++;
+                return object;
+            }
+            while (true){
+                skipSpace();
+                String name = readString();
+                expect(':');
+                object.put(name, readValue());
+                if (peek() == ','){
+                    pos++;
+                } else {
+                    expect('}');
+                    return object;
+                }
+            }
+        }
+
+        List<Object> readArray() {
+            expect('[');
+            List<Object> array = new ArrayList<>();
+            if (peek() == ']'){
+                pos++;
+                return array;
+            }
+            while (true){
+                array.add(readValue());
+                if (peek() == ','){
+                    pos++;
+                } else {
+                    expect(']');
+                    return array;
+                }
+            }
+        }
+
+        Object readValue() {
+            char c = peek();
+            if (c == '{'){
+                return readObject();
+            } else if (c == '['){
+                return readArray();
+            } else if (c == '"'){
+                return readString();
+            }
+            int start = pos;
+            while (pos < text.length() && ",:]} \t\r\n".indexOf(text.charAt(pos)) < 0){
+                pos++;
+            }
+            String literal = text.substring(start, pos);
+            if (literal.isEmpty()){
+                throw error("expected a value");
+            }
+            return literal.equals("null") ? null : new Literal(literal);
+        }
+
+        String readString() {
+            expect('"');
+            StringBuilder buf = new StringBuilder();
+            while (true){
+                if (pos >= text.length()){
+                    throw error("unterminated string");
+                }
+                char c = text.charAt(pos++);
+                if (c == '"'){
+                    return buf.toString();
+                } else if (c != '\\'){
+                    buf.append(c);
+                } else if (pos >= text.length()){
+                    throw error("unterminated string");
+                } else {
+                    c = text.charAt(pos++);
+                    switch (c){
+                        case 'b': buf.append('\b'); break;
+                        case 'f': buf.append('\f'); break;
+                        case 'n': buf.append('\n'); break;
+                        case 'r': buf.append('\r'); break;
+                        case 't': buf.append('\t'); break;
+                        case 'u':
+                            if (pos + 4 > text.length()){
+                                throw error("bad escape");
+                            }
+                            try {
+                                buf.append((char)Integer.parseInt(text.substring(pos, pos + 4), 16));
+                            } catch (NumberFormatException ex) {
+                                throw error("bad escape");
+                            }
+                            pos += 4;
+                            break;
+                        default:
+                            buf.append(c);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Checks that there's nothing but space left.
+         */
+        void end() {
+            skipSpace();
+            if (pos < text.length()){
+                throw error("extra text");
+            }
+        }
+
+        private char peek() {
+            skipSpace();
+            if (pos >= text.length()){
+                throw error("unexpected end");
+            }
+            return text.charAt(pos);
+        }
+
+        private void expect(char c) {
+            if (peek() != c){
+                throw error("expected '" + c + "'");
+            }
+            pos++;
+        }
+
+        private void skipSpace() {
+            while (pos < text.length() && Character.isWhitespace(text.charAt(pos))){
+                pos++;
+            }
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException("JSON: " + message + " at " + pos);
+        }
+    }
+
+}
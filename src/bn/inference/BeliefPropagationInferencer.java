@@ -0,0 +1,515 @@
+package bn.inference;
+
+import bn.core.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Loopy belief propagation (Pearl's algorithm run on a network that isn't
+ * a polytree, AIMA Section 14.5), for networks that are too densely
+ * connected for exact inference.
+ * <p>
+ * The network is treated as a factor graph with one factor per CPT, whose
+ * scope is the variable and its parents. Each factor sends every variable
+ * in its scope a message, and each variable's belief is the product of
+ * the messages it gets (and its evidence). On a polytree this converges to
+ * the exact marginals; otherwise it's an approximation that usually works
+ * well but may not converge at all, hence the damping and the limits.
+ * <p>
+ * All the messages live in flat arrays of doubles, one slot per value per
+ * edge of the factor graph. Updating a factor costs its CPT size times
+ * its number of variables, so a sweep over all the factors is linear in
+ * the total size of the CPTs. Factors are updated in order of
+ * ``residual'': the largest change in any message they depend on since
+ * they were last updated. Factors whose inputs have settled down aren't
+ * updated again, and the run ends once every residual is below the
+ * tolerance (or after the maximum number of sweeps' worth of updates).
+ */
+public class BeliefPropagationInferencer extends Inferencer {
+    private int maxIterations = 100;
+    private double tolerance = 1e-6;
+    private double damping = 0.0;
+
+    private int iterations;
+    private boolean converged;
+
+    /**
+     * Sets the maximum number of iterations, each of which is as many
+     * factor updates as there are factors.
+     */
+    public void setMaxIterations(int maxIterations) {
+        this.maxIterations = Math.max(1, maxIterations);
+    }
+
+    /**
+     * Sets the largest change in a message (in any one probability) that
+     * counts as having converged.
+     */
+    public void setTolerance(double tolerance) {
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * Sets the damping factor, between 0 (none) and 1 (exclusive): the
+     * fraction of each message's old value kept when it is updated. Damping
+     * slows convergence down but stops the messages from oscillating on
+     * networks with tight loops.
+     */
+    public void setDamping(double damping) {
+        if (damping < 0 || damping >= 1){
+            throw new IllegalArgumentException("damping must be in [0,1): " + damping);
+        }
+        this.damping = damping;
+    }
+
+    /**
+     * Returns the number of iterations the last query took.
+     */
+    public int getIterations() {
+        return iterations;
+    }
+
+    /**
+     * Returns whether the messages of the last query converged (otherwise
+     * it stopped at the maximum number of iterations).
+     */
+    public boolean hasConverged() {
+        return converged;
+    }
+
+    /**
+     * Parses the command line arguments to perform a test
+     */
+    public static void main(String[] args){
+
+        ensureEnoughArgs(args);
+
+        // read command line arguments
+        String testFile = args[0];
+        String queryVarName =  args[1];
+
+        // get BayesianNetwork from file
+        BayesianNetwork bn = getBayesianNetworkFromFile(testFile);
+
+        // the real domains are looked up in the network
+        Domain domain = new Domain();
+
+        // get evidence and run algorithm
+        Assignment e = getEvidenceFromArgs(args,domain,2);
+        BeliefPropagationInferencer inferencer = new BeliefPropagationInferencer();
+        if (queryVarName.contains(",")){
+            List<RandomVariable> X = getQueryVarsFromArg(queryVarName,domain);
+            printResults(inferencer.askJoint(bn,X,e));
+        } else {
+            RandomVariable X = new RandomVariable(queryVarName,domain);
+            printResults(inferencer.ask(bn,X,e));
+        }
+        if (!inferencer.hasConverged()){
+            System.err.println("Did not converge in " + inferencer.getIterations() + " iterations");
+        }
+    }
+
+    /**
+     * Checks to make sure there are a valid number of arguments.
+     * Exits the program if an illogical number of arguments is found.
+     */
+    protected static void ensureEnoughArgs(String[] args){
+        if (args.length < 2 || args.length % 2 != 0){
+            System.err.println("You did not enter the correct number of command line arguments.");
+            System.err.println("Please execute this program in the following format: " +
+                    "java bn.inference.BeliefPropagationInferencer <example.xml> <Query variable>[,<Query variable>...] <Evidence variable> <evidence value>...");
+            System.exit(0);
+        }
+    }
+
+    /**
+     * Returns the approximate Distribution of X given e. Only the part of
+     * the network that is relevant to X and e takes part.
+     */
+    @Override
+    protected Distribution ask(BayesianNetwork bn, RandomVariable X, Assignment e) {
+        CompiledNetwork net = CompiledNetwork.forQuery(bn, Collections.singletonList(X), e);
+        int[] evidence = net.getEvidence(e);
+        int x = net.indexOf(X.getName());
+        Messages messages = new Messages(net, evidence, net.getRelevantVariables(new int[] {x}, evidence));
+        messages.propagate();
+        return messages.getBelief(x);
+    }
+
+    /**
+     * Returns the approximate Distribution of every variable of bn given e,
+     * from a single run, in topological order.
+     */
+    public Map<RandomVariable,Distribution> askAll(BayesianNetwork bn, Assignment e) {
+        CompiledNetwork net = new CompiledNetwork(bn);
+        boolean[] all = new boolean[net.size()];
+        Arrays.fill(all, true);
+        Messages messages = new Messages(net, net.getEvidence(e), all);
+        messages.propagate();
+        Map<RandomVariable,Distribution> beliefs = new LinkedHashMap<>();
+        for (int i = 0; i < net.size(); i++){
+            beliefs.put(net.getVariable(i), messages.getBelief(i));
+        }
+        return Collections.unmodifiableMap(beliefs);
+    }
+
+    /**
+     * The messages of one run of belief propagation. Factor f is the CPT of
+     * variable f, and its edges are numbered consecutively from
+     * {@code edgeStart[f]}, one per parent (in CPT order) and the last one
+     * for the variable itself. The messages of edge k take up
+     * {@code card} slots from {@code slot[k]} in each of the flat arrays.
+     */
+    private class Messages {
+        final CompiledNetwork net;
+        final int[] evidence;
+
+        /**
+         * The factors taking part, and the first edge of each factor.
+         */
+        final int[] factors;
+        final int[] edgeStart;
+
+        /**
+         * The factor and the variable at the ends of each edge, and the
+         * edge's first slot.
+         */
+        final int[] edgeFactor;
+        final int[] edgeVar;
+        final int[] slot;
+
+        /**
+         * The edges of each variable.
+         */
+        final int[][] varEdges;
+
+        /**
+         * The messages from factors to variables, and from variables to
+         * factors, one slot per value per edge.
+         */
+        final double[] toVar;
+        final double[] toFactor;
+
+        /**
+         * Scratch space for updating a factor: the new messages, the change
+         * in each of them, the number of values and the first slot in
+         * scratch of each variable, the current combination of values, and
+         * the prefix products of the incoming messages.
+         */
+        final double[] scratch;
+        final double[] change;
+        final int[] card;
+        final int[] offset;
+        final int[] values;
+        final double[] prefix;
+
+        final ResidualQueue queue;
+
+        Messages(CompiledNetwork net, int[] evidence, boolean[] active) {
+            this.net = net;
+            this.evidence = evidence;
+            int n = net.size();
+            factors = CompiledNetwork.getIndexes(active);
+            edgeStart = new int[n];
+            int edges = 0;
+            int maxScope = 0;
+            for (int f : factors){
+                edgeStart[f] = edges;
+                edges += net.parents[f].length + 1;
+                maxScope = Math.max(maxScope, net.parents[f].length + 1);
+            }
+            edgeFactor = new int[edges];
+            edgeVar = new int[edges];
+            slot = new int[edges];
+            int[] degree = new int[n];
+            int slots = 0;
+            int maxCard = 0;
+            for (int f : factors){
+                int k = edgeStart[f];
+                for (int p : net.parents[f]){
+                    edgeVar[k++] = p;
+                }
+                edgeVar[k] = f;
+                for (int e = edgeStart[f]; e <= k; e++){
+                    edgeFactor[e] = f;
+                    slot[e] = slots;
+                    slots += net.card[edgeVar[e]];
+                    degree[edgeVar[e]]++;
+                    maxCard = Math.max(maxCard, net.card[edgeVar[e]]);
+                }
+            }
+            varEdges = new int[n][];
+            for (int v = 0; v < n; v++){
+                varEdges[v] = new int[degree[v]];
+                degree[v] = 0;
+            }
+            for (int e = 0; e < edges; e++){
+                varEdges[edgeVar[e]][degree[edgeVar[e]]++] = e;
+            }
+            toVar = new double[slots];
+            toFactor = new double[slots];
+            for (int e = 0; e < edges; e++){
+                Arrays.fill(toVar, slot[e], slot[e] + net.card[edgeVar[e]], 1.0 / net.card[edgeVar[e]]);
+            }
+            scratch = new double[maxScope * maxCard];
+            change = new double[maxScope];
+            card = new int[maxScope];
+            offset = new int[maxScope];
+            values = new int[maxScope];
+            prefix = new double[maxScope + 1];
+            queue = new ResidualQueue(factors);
+        }
+
+        /**
+         * Updates the factors, largest residual first, until they've all
+         * converged or the iterations have run out.
+         */
+        void propagate() {
+            long limit = (long)maxIterations * factors.length;
+            long updates = 0;
+            while (updates < limit && queue.topResidual() >= tolerance){
+                int f = queue.pop();
+                update(f);
+                updates++;
+                // tell the other factors of each variable how much the
+                // message it got from f changed
+                double largest = 0.0;
+                for (int e = edgeStart[f]; e < edgeStart[f] + net.parents[f].length + 1; e++){
+                    double delta = change[e - edgeStart[f]];
+                    largest = Math.max(largest, delta);
+                    if (delta > 0){
+                        for (int other : varEdges[edgeVar[e]]){
+                            if (edgeFactor[other] != f){
+                                queue.raise(edgeFactor[other], delta);
+                            }
+                        }
+                    }
+                }
+                // with damping, f's messages only went part of the way to
+                // where its inputs say they should be, so f isn't done
+                // either: the rest of the way is d/(1-d) times the change
+                if (damping > 0){
+                    queue.raise(f, largest * damping / (1 - damping));
+                }
+            }
+            converged = queue.topResidual() < tolerance;
+            iterations = (factors.length == 0) ? 0 : (int)((updates + factors.length - 1) / factors.length);
+        }
+
+        /**
+         * Recomputes the messages from factor f to its variables, damps
+         * them, and records how much each one changed.
+         */
+        void update(int f) {
+            int[] parents = net.parents[f];
+            int scope = parents.length + 1;
+            int first = edgeStart[f];
+            // the messages coming in, from the other factors of each variable
+            for (int j = 0; j < scope; j++){
+                computeToFactor(first + j);
+            }
+            // each new message is the sum over the rest of the scope of the
+            // CPT entry times the other incoming messages; prefix and suffix
+            // products give all of them from one pass over the CPT
+            for (int j = 0; j < scope; j++){
+                card[j] = net.card[edgeVar[first + j]];
+                offset[j] = (j == 0) ? 0 : offset[j - 1] + card[j - 1];
+            }
+            Arrays.fill(scratch, 0, offset[scope - 1] + card[scope - 1], 0.0);
+            Arrays.fill(values, 0);
+            double[] table = net.cpt[f];
+            for (int k = 0; k < table.length; k++){
+                if (table[k] > 0){
+                    prefix[0] = 1.0;
+                    for (int j = 0; j < scope; j++){
+                        prefix[j + 1] = prefix[j] * toFactor[slot[first + j] + values[j]];
+                    }
+                    double suffix = table[k];
+                    for (int j = scope - 1; j >= 0; j--){
+                        scratch[offset[j] + values[j]] += prefix[j] * suffix;
+                        suffix *= toFactor[slot[first + j] + values[j]];
+                    }
+                }
+                // next combination, the variable itself fastest
+                for (int j = scope - 1; j >= 0; j--){
+                    if (++values[j] < card[j]){
+                        break;
+                    }
+                    values[j] = 0;
+                }
+            }
+            for (int j = 0; j < scope; j++){
+                int s = slot[first + j];
+                normalize(scratch, offset[j], card[j]);
+                double delta = 0.0;
+                for (int v = 0; v < card[j]; v++){
+                    double updated = (1 - damping) * scratch[offset[j] + v] + damping * toVar[s + v];
+                    delta = Math.max(delta, Math.abs(updated - toVar[s + v]));
+                    toVar[s + v] = updated;
+                }
+                change[j] = delta;
+            }
+        }
+
+        /**
+         * Computes the message along the given edge from its variable to its
+         * factor: the variable's evidence times the messages from its other
+         * factors.
+         */
+        private void computeToFactor(int e) {
+            int v = edgeVar[e];
+            int s = slot[e];
+            int k = net.card[v];
+            for (int x = 0; x < k; x++){
+                toFactor[s + x] = (evidence[v] < 0 || evidence[v] == x) ? 1.0 : 0.0;
+            }
+            for (int other : varEdges[v]){
+                if (other != e){
+                    int t = slot[other];
+                    for (int x = 0; x < k; x++){
+                        toFactor[s + x] *= toVar[t + x];
+                    }
+                }
+            }
+            normalize(toFactor, s, k);
+        }
+
+        /**
+         * Returns the belief of variable v: its evidence times all the
+         * messages it gets, normalized.
+         */
+        Distribution getBelief(int v) {
+            RandomVariable X = net.getVariable(v);
+            double[] belief = new double[net.card[v]];
+            for (int x = 0; x < belief.length; x++){
+                belief[x] = (evidence[v] < 0 || evidence[v] == x) ? 1.0 : 0.0;
+            }
+            for (int e : varEdges[v]){
+                for (int x = 0; x < belief.length; x++){
+                    belief[x] *= toVar[slot[e] + x];
+                }
+            }
+            Distribution dist = new Distribution(X);
+            for (int x = 0; x < belief.length; x++){
+                dist.put(X.getDomain().get(x), belief[x]);
+            }
+            dist.normalize();
+            return dist;
+        }
+
+    }
+
+    /**
+     * Normalizes the given number of values of the given array starting at
+     * the given offset. Leaves them alone if they're all zero (which
+     * happens when the evidence is impossible).
+     */
+    private static void normalize(double[] values, int offset, int k) {
+        double sum = 0.0;
+        for (int x = 0; x < k; x++){
+            sum += values[offset + x];
+        }
+        if (sum > 0){
+            for (int x = 0; x < k; x++){
+                values[offset + x] /= sum;
+            }
+        }
+    }
+
+    /**
+     * A max-heap of factors keyed by residual, which always holds every
+     * factor: popping one just resets its residual to zero.
+     */
+    private static class ResidualQueue {
+        final int[] heap;
+        final int[] position;
+        final double[] residual;
+
+        /**
+         * Creates a queue of the given factors, all with infinite residual
+         * so that each one is updated at least once.
+         */
+        ResidualQueue(int[] factors) {
+            heap = factors.clone();
+            int n = 0;
+            for (int f : factors){
+                n = Math.max(n, f + 1);
+            }
+            position = new int[n];
+            residual = new double[n];
+            for (int k = 0; k < heap.length; k++){
+                position[heap[k]] = k;
+                residual[heap[k]] = Double.POSITIVE_INFINITY;
+            }
+        }
+
+        /**
+         * Returns the largest residual, or 0 if there are no factors.
+         */
+        double topResidual() {
+            return (heap.length == 0) ? 0.0 : residual[heap[0]];
+        }
+
+        /**
+         * Returns the factor with the largest residual, resetting it to 0.
+         */
+        int pop() {
+            int f = heap[0];
+            residual[f] = 0.0;
+            siftDown(0);
+            return f;
+        }
+
+        /**
+         * Raises the residual of factor f to the given value, if it is less.
+         */
+        void raise(int f, double r) {
+            if (r > residual[f]){
+                residual[f] = r;
+                siftUp(position[f]);
+            }
+        }
+
+        private void siftUp(int k) {
+            int f = heap[k];
+            while (k > 0){
+                int parent = (k - 1) / 2;
+                if (residual[heap[parent]] >= residual[f]){
+                    break;
+                }
+                move(heap[parent], k);
+                k = parent;
+            }
+            move(f, k);
+        }
+
+        private void siftDown(int k) {
+            int f = heap[k];
+            while (true){
+                int child = 2 * k + 1;
+                if (child >= heap.length){
+                    break;
+                }
+                if (child + 1 < heap.length && residual[heap[child + 1]] > residual[heap[child]]){
+                    child++;
+                }
+                if (residual[heap[child]] <= residual[f]){
+                    break;
+                }
+                move(heap[child], k);
+                k = child;
+            }
+            move(f, k);
+        }
+
+        private void move(int f, int k) {
+            heap[k] = f;
+            position[f] = k;
+        }
+    }
+
+}
@@ -0,0 +1,194 @@
+package bn.inference;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The running statistics of one Markov chain that are needed to judge,
+ * together with those of other chains for the same query, whether the
+ * chains have converged and how much their samples are worth. What is
+ * monitored is the indicator of each combination of values of the query
+ * variables (each ``cell'' of the Tally), so that the diagnostics are
+ * about the very probabilities being estimated.
+ * <p>
+ * For each cell the monitor keeps the number of states in it, and the
+ * numbers in each of a set of consecutive batches of states. When the
+ * batches are all full, neighbouring ones are merged and the batch size
+ * doubles, so the memory used is fixed however long the chain runs.
+ */
+class ChainMonitor {
+
+    /**
+     * The number of batches kept is between BATCHES and twice that.
+     */
+    private static final int BATCHES = 32;
+
+    private final int size;
+
+    /**
+     * The number of states recorded.
+     */
+    private long n;
+
+    /**
+     * The number of states in each cell.
+     */
+    private final long[] counts;
+
+    /**
+     * The number of states in each cell for each batch, batch by batch.
+     */
+    private final long[] batchCounts;
+
+    private long batchSize = 1;
+
+    /**
+     * The number of full batches, and the number of states in the batch
+     * being filled.
+     */
+    private int batches;
+    private long filling;
+
+    ChainMonitor(int size) {
+        this.size = size;
+        counts = new long[size];
+        batchCounts = new long[2 * BATCHES * size];
+    }
+
+    /**
+     * Records a state of the chain in the given cell.
+     */
+    void add(int cell) {
+        n++;
+        counts[cell]++;
+        batchCounts[batches * size + cell]++;
+        if (++filling == batchSize){
+            filling = 0;
+            if (++batches == 2 * BATCHES){
+                // merge neighbouring batches
+                for (int b = 0; b < BATCHES; b++){
+                    for (int c = 0; c < size; c++){
+                        batchCounts[b * size + c] = batchCounts[2 * b * size + c] + batchCounts[(2 * b + 1) * size + c];
+                    }
+                }
+                Arrays.fill(batchCounts, BATCHES * size, batchCounts.length, 0L);
+                batches = BATCHES;
+                batchSize *= 2;
+            }
+        }
+    }
+
+    /**
+     * Returns the mean of the indicator of the given cell.
+     */
+    private double mean(int cell) {
+        return (double)counts[cell] / n;
+    }
+
+    /**
+     * Returns the variance of the indicator of the given cell over the
+     * states of this chain.
+     */
+    private double variance(int cell) {
+        double p = mean(cell);
+        return p * (1 - p) * n / (n - 1);
+    }
+
+    /**
+     * Returns the effective sample size of the given cell of this chain,
+     * by the method of batch means: the variance of the mean of a batch
+     * shows how much the states within it are correlated. NaN if there
+     * aren't enough batches yet.
+     */
+    private double effectiveSampleSize(int cell) {
+        if (batches < 2){
+            return Double.NaN;
+        }
+        double variance = variance(cell);
+        if (variance == 0){
+            return n;
+        }
+        double sum = 0.0;
+        double squares = 0.0;
+        for (int b = 0; b < batches; b++){
+            double m = (double)batchCounts[b * size + cell] / batchSize;
+            sum += m;
+            squares += m * m;
+        }
+        double batchMean = sum / batches;
+        double batchVariance = (squares - batches * batchMean * batchMean) / (batches - 1);
+        if (batchVariance <= 0){
+            return n;
+        }
+        return Math.min(n, n * variance / (batchSize * batchVariance));
+    }
+
+    /**
+     * Returns the Gelman-Rubin potential scale reduction factor (R-hat) of
+     * the given chains, the largest over the cells. It compares the
+     * variance of each cell's indicator within the chains to its variance
+     * between them: if the chains have converged to the same distribution
+     * it is close to 1. NaN if there are fewer than two chains or any chain
+     * has fewer than two states.
+     */
+    static double getRHat(List<ChainMonitor> chains) {
+        int m = chains.size();
+        if (m < 2){
+            return Double.NaN;
+        }
+        long n = Long.MAX_VALUE;
+        for (ChainMonitor chain : chains){
+            n = Math.min(n, chain.n);
+        }
+        if (n < 2){
+            return Double.NaN;
+        }
+        int size = chains.get(0).size;
+        double max = 1.0;
+        for (int c = 0; c < size; c++){
+            double within = 0.0;
+            double sum = 0.0;
+            double squares = 0.0;
+            for (ChainMonitor chain : chains){
+                within += chain.variance(c);
+                double mean = chain.mean(c);
+                sum += mean;
+                squares += mean * mean;
+            }
+            within /= m;
+            // B/n: the variance of the chain means
+            double between = (squares - sum * sum / m) / (m - 1);
+            double r;
+            if (within > 0){
+                r = Math.sqrt(((n - 1.0) / n * within + Math.max(0.0, between)) / within);
+            } else {
+                // every chain stuck in or out of the cell: converged
+                // only if they all agree
+                r = (between > 1e-12) ? Double.POSITIVE_INFINITY : 1.0;
+            }
+            max = Math.max(max, r);
+        }
+        return max;
+    }
+
+    /**
+     * Returns the effective sample size of the given chains together, the
+     * smallest over the cells. NaN if any chain is too short to tell.
+     */
+    static double getEffectiveSampleSize(List<ChainMonitor> chains) {
+        if (chains.isEmpty()){
+            return Double.NaN;
+        }
+        int size = chains.get(0).size;
+        double min = Double.POSITIVE_INFINITY;
+        for (int c = 0; c < size; c++){
+            double ess = 0.0;
+            for (ChainMonitor chain : chains){
+                ess += chain.effectiveSampleSize(c);
+            }
+            min = Math.min(min, ess);
+        }
+        return min;
+    }
+
+}
@@ -0,0 +1,173 @@
+package bn.inference;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A Gibbs sweep that resamples many variables at once. The free variables
+ * are colored so that no two variables of the same color are in each
+ * other's Markov blanket, i.e., are neighbours in the moral graph. Given
+ * the rest of the state, variables of the same color are then independent
+ * of each other, and resampling them all at the same time is the same as
+ * resampling them one after the other. So a sweep goes through the colors
+ * in turn and resamples all the variables of each color in parallel, on a
+ * ForkJoinPool.
+ * <p>
+ * The coloring is greedy, taking the variables with the largest blankets
+ * first (Welsh and Powell), which usually needs few colors for the sparse
+ * moral graphs of real networks.
+ * <p>
+ * The uniform numbers for a color are all drawn from the chain's random
+ * number generator before the color is resampled, so the chain is the
+ * same whatever the number of threads.
+ */
+class ChromaticSweep {
+
+    /**
+     * The number of variables below which a task resamples its share
+     * itself rather than splitting it up further.
+     */
+    private static final int GRAIN = 32;
+
+    private final ForkJoinPool pool;
+
+    /**
+     * The free variables of each color.
+     */
+    final int[][] colors;
+
+    /**
+     * The size of the largest domain of a free variable.
+     */
+    private final int maxCard;
+
+    /**
+     * Colors the free variables of the given Markov blankets, for sweeps
+     * on the given pool.
+     */
+    ChromaticSweep(MarkovBlankets mb, ForkJoinPool pool) {
+        this.pool = pool;
+        CompiledNetwork net = mb.net;
+        List<Integer> order = new ArrayList<>(mb.free.length);
+        int max = 1;
+        for (int i : mb.free){
+            order.add(i);
+            max = Math.max(max, net.card[i]);
+        }
+        maxCard = max;
+        final int[][] blanket = mb.blanket;
+        Collections.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Integer.compare(blanket[b].length, blanket[a].length);
+            }
+        });
+
+        int[] color = new int[net.size()];
+        Arrays.fill(color, -1);
+        // the last variable each color was seen next to, to find the
+        // smallest color not used by any of a variable's neighbours
+        int[] seen = new int[net.size() + 1];
+        Arrays.fill(seen, -1);
+        List<List<Integer>> classes = new ArrayList<>();
+        for (int i : order){
+            for (int b : blanket[i]){
+                if (color[b] >= 0){
+                    seen[color[b]] = i;
+                }
+            }
+            int c = 0;
+            while (seen[c] == i){
+                c++;
+            }
+            color[i] = c;
+            if (c == classes.size()){
+                classes.add(new ArrayList<Integer>());
+            }
+            classes.get(c).add(i);
+        }
+        colors = new int[classes.size()][];
+        for (int c = 0; c < colors.length; c++){
+            List<Integer> list = classes.get(c);
+            colors[c] = new int[list.size()];
+            for (int k = 0; k < colors[c].length; k++){
+                colors[c][k] = list.get(k);
+            }
+            // topological order within a color, for locality
+            Arrays.sort(colors[c]);
+        }
+    }
+
+    /**
+     * Returns scratch space for one chain's uniform numbers.
+     */
+    double[] newScratch() {
+        int max = 0;
+        for (int[] vars : colors){
+            max = Math.max(max, vars.length);
+        }
+        return new double[max];
+    }
+
+    /**
+     * Resamples every free variable of the given chain once, a color at a
+     * time, using the given scratch space (see newScratch) for the uniform
+     * numbers drawn from the given generator.
+     */
+    void sweep(GibbsChain chain, double[] u, SplittableRandom random) {
+        for (int[] vars : colors){
+            for (int k = 0; k < vars.length; k++){
+                u[k] = random.nextDouble();
+            }
+            if (vars.length <= GRAIN || pool.getParallelism() < 2){
+                for (int k = 0; k < vars.length; k++){
+                    chain.resample(vars[k], u[k]);
+                }
+            } else {
+                pool.invoke(new Resample(chain, vars, u, 0, vars.length));
+            }
+        }
+    }
+
+    /**
+     * Resamples the variables from start (inclusive) to end (exclusive) of
+     * one color, splitting them in half until there are few enough.
+     */
+    private class Resample extends RecursiveAction {
+        static final long serialVersionUID = 1L;
+
+        private final GibbsChain chain;
+        private final int[] vars;
+        private final double[] u;
+        private final int start;
+        private final int end;
+
+        Resample(GibbsChain chain, int[] vars, double[] u, int start, int end) {
+            this.chain = chain;
+            this.vars = vars;
+            this.u = u;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start <= GRAIN){
+                double[] scratch = new double[maxCard];
+                for (int k = start; k < end; k++){
+                    chain.resample(vars[k], u[k], scratch);
+                }
+                return;
+            }
+            int middle = (start + end) >>> 1;
+            invokeAll(new Resample(chain, vars, u, start, middle),
+                      new Resample(chain, vars, u, middle, end));
+        }
+    }
+
+}
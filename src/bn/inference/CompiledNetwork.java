@@ -0,0 +1,365 @@
+package bn.inference;
+
+import bn.core.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * An integer-indexed view of a BayesianNetwork, used by the inference
+ * algorithms so that they don't have to look variables up by name or go
+ * through Assignments in their inner loops.
+ * <p>
+ * Variables are numbered in topological order, so every variable's parents
+ * have smaller indexes than the variable itself. Values are numbered by
+ * their position in the variable's Domain. Each CPT's table is copied into
+ * an array of doubles, in the same counting order as {@link CPT#valueIterator}:
+ * the parents (in the order they were declared) are the most significant
+ * dimensions and the variable itself is the least significant. So the
+ * probabilities of the values of variable {@code i} given a combination of
+ * parent values form one contiguous row of {@code card[i]} doubles.
+ */
+public class CompiledNetwork {
+
+    /**
+     * The RandomVariables of the network, in topological order.
+     */
+    final RandomVariable[] vars;
+
+    /**
+     * The number of values of each variable.
+     */
+    final int[] card;
+
+    /**
+     * The indexes of the parents of each variable, in CPT order.
+     */
+    final int[][] parents;
+
+    /**
+     * The indexes of the children of each variable.
+     */
+    final int[][] children;
+
+    /**
+     * For each variable, the amount by which the value of each of its parents
+     * moves the offset of a row in the variable's CPT.
+     */
+    final int[][] strides;
+
+    /**
+     * The flat CPT of each variable.
+     */
+    final double[][] cpt;
+
+    /**
+     * The alias tables for drawing from the rows of each CPT, built the
+     * first time a sampler needs them.
+     */
+    private volatile AliasTable[] aliases;
+
+    /**
+     * Maps variable names to indexes.
+     */
+    private final Map<String,Integer> index;
+
+    /**
+     * The hash identifying this network (see EliminationPlans#hash),
+     * worked out the first time it's needed.
+     */
+    private byte[] hash;
+
+    /**
+     * Compiles the given BayesianNetwork.
+     */
+    public CompiledNetwork(BayesianNetwork bn) {
+        List<RandomVariable> sorted = bn.getVariableListTopologicallySorted();
+        int n = sorted.size();
+        vars = sorted.toArray(new RandomVariable[n]);
+        card = new int[n];
+        parents = new int[n][];
+        children = new int[n][];
+        strides = new int[n][];
+        cpt = new double[n][];
+        index = new HashMap<>(n * 2);
+        for (int i = 0; i < n; i++){
+            index.put(vars[i].getName(), i);
+            card[i] = vars[i].getDomain().size();
+        }
+        List<List<Integer>> childLists = new ArrayList<>(n);
+        for (int i = 0; i < n; i++){
+            childLists.add(new ArrayList<Integer>());
+        }
+        for (int i = 0; i < n; i++){
+            BayesianNetwork.Node node = bn.getNodeForVariable(vars[i]);
+            int np = (node.parents == null) ? 0 : node.parents.size();
+            parents[i] = new int[np];
+            for (int j = 0; j < np; j++){
+                int p = index.get(node.parents.get(j).variable.getName());
+                parents[i][j] = p;
+                childLists.get(p).add(i);
+            }
+            // last parent varies fastest, after the variable itself
+            strides[i] = new int[np];
+            int stride = card[i];
+            for (int j = np - 1; j >= 0; j--){
+                strides[i][j] = stride;
+                stride *= card[parents[i][j]];
+            }
+            cpt[i] = new double[stride];
+            node.cpt.getValues(0, cpt[i], 0, stride);
+        }
+        for (int i = 0; i < n; i++){
+            List<Integer> list = childLists.get(i);
+            children[i] = new int[list.size()];
+            for (int j = 0; j < list.size(); j++){
+                children[i][j] = list.get(j);
+            }
+        }
+    }
+
+    /**
+     * Compiles just the part of the given network that matters to a query
+     * about the variables X given the evidence e: those variables and
+     * their ancestors (see BayesianNetwork#getAncestralNetwork). The
+     * answer is the same, and the CPTs of the rest are never touched,
+     * which matters when they are loaded lazily. Variables are matched by
+     * name.
+     * @throws NoSuchElementException if a variable isn't in the network
+     */
+    public static CompiledNetwork forQuery(BayesianNetwork bn, List<RandomVariable> X, Assignment e) {
+        List<RandomVariable> vars = new ArrayList<>(X.size() + e.size());
+        for (RandomVariable x : X){
+            vars.add(findVariable(bn, x.getName()));
+        }
+        for (RandomVariable v : e.keySet()){
+            vars.add(findVariable(bn, v.getName()));
+        }
+        BayesianNetwork sub = bn.getAncestralNetwork(vars);
+        return new CompiledNetwork((sub.size() == bn.size()) ? bn : sub);
+    }
+
+    private static RandomVariable findVariable(BayesianNetwork bn, String name) {
+        try {
+            return bn.getVariableByName(name);
+        } catch (NoSuchElementException ex) {
+            throw new NoSuchElementException(name);
+        }
+    }
+
+    /**
+     * Returns the number of variables in the network.
+     */
+    public int size() {
+        return vars.length;
+    }
+
+    /**
+     * Returns the RandomVariable with the given index.
+     */
+    public RandomVariable getVariable(int i) {
+        return vars[i];
+    }
+
+    /**
+     * Returns the index of the variable with the given name.
+     * @throws NoSuchElementException if there is no such variable
+     */
+    public int indexOf(String name) {
+        Integer i = index.get(name);
+        if (i == null){
+            throw new NoSuchElementException(name);
+        }
+        return i;
+    }
+
+    /**
+     * Returns the index of the given value in the domain of the given
+     * variable. Values are compared by their string form, as in CPT, but
+     * since the command line always gives us "true" and "false" we fall
+     * back to ignoring case (alarm.bif uses "TRUE" and "FALSE").
+     * @throws NoSuchElementException if the value isn't in the domain
+     */
+    public int valueIndexOf(int var, Object value) {
+        String str = value.toString();
+        Domain domain = vars[var].getDomain();
+        for (int k = 0; k < domain.size(); k++){
+            if (domain.get(k).toString().equals(str)){
+                return k;
+            }
+        }
+        for (int k = 0; k < domain.size(); k++){
+            if (domain.get(k).toString().equalsIgnoreCase(str)){
+                return k;
+            }
+        }
+        throw new NoSuchElementException(vars[var].getName() + "=" + str);
+    }
+
+    /**
+     * Returns an array holding, for each variable, the index of its value
+     * in the given evidence Assignment, or -1 if it isn't in the evidence.
+     */
+    public int[] getEvidence(Assignment e) {
+        int[] evidence = new int[vars.length];
+        Arrays.fill(evidence, -1);
+        for (Map.Entry<RandomVariable, Object> entry : e.entrySet()){
+            int var = indexOf(entry.getKey().getName());
+            evidence[var] = valueIndexOf(var, entry.getValue());
+        }
+        return evidence;
+    }
+
+    /**
+     * Returns, for each variable, whether it is an ancestor of (or is) one
+     * of the given query variables or one of the variables in the given
+     * evidence. The other variables are ``barren'': summing them out of
+     * the joint distribution just gives one, so inference can ignore them.
+     */
+    public boolean[] getRelevantVariables(int[] query, int[] evidence) {
+        boolean[] relevant = new boolean[vars.length];
+        for (int q : query){
+            relevant[q] = true;
+        }
+        for (int i = 0; i < vars.length; i++){
+            if (evidence[i] >= 0){
+                relevant[i] = true;
+            }
+        }
+        // parents come before children
+        for (int i = vars.length - 1; i >= 0; i--){
+            if (relevant[i]){
+                for (int p : parents[i]){
+                    relevant[p] = true;
+                }
+            }
+        }
+        return relevant;
+    }
+
+    /**
+     * Returns the indexes of the variables marked true in the given array,
+     * in increasing (and so topological) order.
+     */
+    public static int[] getIndexes(boolean[] marked) {
+        int n = 0;
+        for (boolean m : marked){
+            if (m){
+                n++;
+            }
+        }
+        int[] indexes = new int[n];
+        n = 0;
+        for (int i = 0; i < marked.length; i++){
+            if (marked[i]){
+                indexes[n++] = i;
+            }
+        }
+        return indexes;
+    }
+
+    /**
+     * Returns the offset in the CPT of the given variable of the row
+     * selected by the values of its parents in the given sample.
+     */
+    public int rowOffset(int var, int[] sample) {
+        int[] ps = parents[var];
+        int[] st = strides[var];
+        int offset = 0;
+        for (int j = 0; j < ps.length; j++){
+            offset += sample[ps[j]] * st[j];
+        }
+        return offset;
+    }
+
+    /**
+     * Fills in the first n entries of offsets with the offsets in the CPT
+     * of the given variable of the rows selected by the first n samples of
+     * a batch stored by column, as {@link #rowOffset} does for one sample.
+     * The parents' columns must be filled in.
+     */
+    void rowOffsets(int var, int[][] columns, int[] offsets, int n) {
+        int[] ps = parents[var];
+        int[] st = strides[var];
+        Arrays.fill(offsets, 0, n, 0);
+        for (int j = 0; j < ps.length; j++){
+            int[] column = columns[ps[j]];
+            int stride = st[j];
+            for (int k = 0; k < n; k++){
+                offsets[k] += column[k] * stride;
+            }
+        }
+    }
+
+    /**
+     * Fills in the first m entries of offsets with the offsets in the CPT
+     * of the given variable of the rows selected by the samples of a batch
+     * whose indexes are the first m entries of index, as the other
+     * rowOffsets does for the first m samples.
+     */
+    void rowOffsets(int var, int[][] columns, int[] index, int[] offsets, int m) {
+        int[] ps = parents[var];
+        int[] st = strides[var];
+        Arrays.fill(offsets, 0, m, 0);
+        for (int j = 0; j < ps.length; j++){
+            int[] column = columns[ps[j]];
+            int stride = st[j];
+            for (int k = 0; k < m; k++){
+                offsets[k] += column[index[k]] * stride;
+            }
+        }
+    }
+
+    /**
+     * Returns a value of the given variable drawn from the row of its CPT
+     * starting at the given offset, using the given uniform number in
+     * [0,1) to make the draw. This takes constant time whatever the size
+     * of the variable's domain (see AliasTable).
+     */
+    public int sample(int var, int offset, double u) {
+        AliasTable[] tables = aliases;
+        if (tables == null){
+            tables = getAliasTables();
+        }
+        return tables[var].sample(offset, u);
+    }
+
+    /**
+     * Returns the alias tables for all the CPTs, building them if this is
+     * the first time they're needed.
+     */
+    synchronized AliasTable[] getAliasTables() {
+        if (aliases == null){
+            AliasTable[] tables = new AliasTable[vars.length];
+            for (int i = 0; i < vars.length; i++){
+                tables[i] = new AliasTable(cpt[i], card[i]);
+            }
+            aliases = tables;
+        }
+        return aliases;
+    }
+
+    /**
+     * Returns the SHA-256 hash of this network's variables, their values
+     * and parents, and its CPTs.
+     */
+    synchronized byte[] getHash() {
+        if (hash == null){
+            hash = EliminationPlans.hash(this);
+        }
+        return hash;
+    }
+
+    /**
+     * Returns the probability of the value of the given variable in the
+     * given sample, given the values of its parents in the sample.
+     */
+    public double getProb(int var, int[] sample) {
+        return cpt[var][rowOffset(var, sample) + sample[var]];
+    }
+
+}
@@ -0,0 +1,34 @@
+package bn.inference;
+
+import bn.core.BayesianNetwork;
+import bn.parser.BinaryNetworkFile;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Converts a network in any format Inferencer can read into a binary
+ * network file (see BinaryNetworkFile), which loads much faster.
+ */
+public class ConvertNetwork {
+
+    /**
+     * Reads the network named by the first argument and writes it to the
+     * file named by the second.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2){
+            System.err.println("Please execute this program in the following format: " +
+                    "java bn.inference.ConvertNetwork <network file> <binary network file>");
+            System.exit(0);
+        }
+        long start = System.nanoTime();
+        BayesianNetwork bn = Inferencer.getBayesianNetworkFromFile(args[0]);
+        long read = System.nanoTime();
+        BinaryNetworkFile.write(bn, new File(args[1]));
+        long written = System.nanoTime();
+        System.err.printf("read %s in %d ms, wrote %s in %d ms%n", args[0], (read - start) / 1000000,
+                          args[1], (written - read) / 1000000);
+    }
+
+}
@@ -0,0 +1,220 @@
+package bn.inference;
+
+import bn.core.*;
+import bn.parser.UAIParser;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Runs the inferencers over a directory of networks, in any format
+ * Inferencer can read (including the UAI competition's .uai files), and
+ * prints for each network how long it took to load, how much heap it
+ * takes up, and how long each inferencer takes per query.
+ * <p>
+ * The evidence for network {@code foo.uai} is read from
+ * {@code foo.uai.evid} (the UAI convention) or {@code foo.evid}, if there
+ * is one; otherwise there's one case with no evidence. An evidence file
+ * is one case, unless {@code -cases} is given, in which case each
+ * holds several in the layout used before 2014 (see
+ * UAIParser#parseEvidence). For each case, the
+ * marginals of the last few unobserved variables of the network (which
+ * in most files are leaves) are asked for one at a time. An inferencer
+ * that fails on a network, for example by running out of memory, is
+ * reported as such and the run goes on with the next one.
+ * <p>
+ * The options of the sampling inferencers' mains (such as
+ * {@code -deadline} or {@code -chains}) can also be given before the
+ * directory, and each sampling engine is run with those it takes.
+ * <p>
+ * Heap is measured after garbage collection, so it's close to what the
+ * network itself holds on to. Binary network files are memory-mapped, so
+ * their CPTs don't count.
+ */
+public class CorpusBenchmark {
+
+    /**
+     * Parses the command line arguments to run the benchmark
+     */
+    public static void main(String[] args){
+
+        boolean multipleCases = false;
+        List<String> options = new ArrayList<>();
+        int k = 0;
+        try {
+            int taken;
+            while (k < args.length){
+                if (args[k].equals("-cases")){
+                    multipleCases = true;
+                    k++;
+                } else if ((taken = Inferencer.getOptionLength(args, k)) > 0){
+                    options.addAll(Arrays.asList(args).subList(k, k + taken));
+                    k += taken;
+                } else {
+                    break;
+                }
+            }
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            usage("You did not enter valid options.");
+        }
+        args = Arrays.copyOfRange(args, k, args.length);
+        if (args.length < 1 || args.length > 4){
+            usage("You did not enter the correct number of command line arguments.");
+        }
+
+        // read command line arguments
+        File directory = new File(args[0]);
+        int samples = (args.length > 1) ? Integer.parseInt(args[1]) : 10000;
+        int queries = (args.length > 2) ? Integer.parseInt(args[2]) : 3;
+        List<String> engines = (args.length > 3) ? Arrays.asList(args[3].split(",")) : Inferencer.ENGINES;
+        for (String engine : engines){
+            if (!Inferencer.ENGINES.contains(engine)){
+                usage("No engine named " + engine);
+            }
+        }
+
+        File[] files = directory.listFiles();
+        if (files == null){
+            System.err.println(directory + " is not a directory");
+            System.exit(0);
+        }
+        Arrays.sort(files);
+
+        System.out.printf("%-24s %6s %5s %9s %9s", "network", "vars", "cases", "load ms", "heap KB");
+        for (String engine : engines){
+            System.out.printf(" %12s", engine + " ms/q");
+        }
+        System.out.println();
+        for (File file : files){
+            if (file.isFile() && isNetwork(file.getName())){
+                run(file, samples, queries, engines, options.toArray(new String[0]), multipleCases);
+            }
+        }
+    }
+
+    private static void usage(String message) {
+        System.err.println(message);
+        System.err.println("Please execute this program in the following format: " +
+                "java bn.inference.CorpusBenchmark [-cases] [<sampler options>] <directory> [<samples> [<queries per case> [<engine>,...]]]");
+        System.err.println("where the engines are " + String.join(",", Inferencer.ENGINES) +
+                ", and the sampler options are " + new GibbsInferencer(0).getOptionUsage() +
+                " (each sampling engine taking those it can)");
+        System.exit(0);
+    }
+
+    /**
+     * Loads the given network and its evidence, and prints a line of
+     * results for it.
+     */
+    private static void run(File file, int samples, int queries, List<String> engines, String[] options, boolean multipleCases) {
+        long before = usedMemory();
+        long start = System.nanoTime();
+        BayesianNetwork bn;
+        List<Assignment> cases;
+        try {
+            bn = Inferencer.readBayesianNetwork(file.getPath());
+            if (bn == null){
+                System.out.printf("%-24s syntax error%n", file.getName());
+                return;
+            }
+            cases = readEvidence(file, bn, multipleCases);
+        } catch (IOException | RuntimeException ex) {
+            System.out.printf("%-24s %s%n", file.getName(), ex);
+            return;
+        }
+        double loadMillis = (System.nanoTime() - start) / 1e6;
+        long heap = Math.max(0, usedMemory() - before);
+        System.out.printf("%-24s %6d %5d %9.1f %9d", file.getName(), bn.size(), cases.size(), loadMillis, heap / 1024);
+        System.out.flush();
+        for (String engine : engines){
+            Inferencer inferencer = Inferencer.newInferencer(engine, samples);
+            Inferencer.setOptions(inferencer, options);
+            int asked = 0;
+            String result;
+            start = System.nanoTime();
+            try {
+                for (Assignment e : cases){
+                    for (RandomVariable X : getQueryVariables(bn, e, queries)){
+                        inferencer.askJoint(bn, Collections.singletonList(X), e);
+                        asked++;
+                    }
+                }
+                double millis = (System.nanoTime() - start) / 1e6;
+                result = (asked == 0) ? "-" : String.format("%.2f", millis / asked);
+            } catch (OutOfMemoryError ex) {
+                result = "no memory";
+            } catch (RuntimeException ex) {
+                result = "failed";
+            }
+            System.out.printf(" %12s", result);
+            System.out.flush();
+        }
+        System.out.println();
+    }
+
+    /**
+     * Returns true if the given file name is that of a network: a .uai,
+     * .bif, .xml or .bnet (binary) file, which may be gzipped.
+     */
+    static boolean isNetwork(String name) {
+        if (name.endsWith(".gz")){
+            name = name.substring(0, name.length() - 3);
+        }
+        return name.endsWith(".uai") || name.endsWith(".bif") || name.endsWith(".xml") || name.endsWith(".bnet");
+    }
+
+    /**
+     * Returns the evidence cases for the given network file, or a single
+     * case with no evidence if it hasn't got an evidence file. The flag
+     * says whether an evidence file holds several cases.
+     */
+    static List<Assignment> readEvidence(File file, BayesianNetwork bn, boolean multipleCases) throws IOException {
+        String name = file.getName();
+        if (name.endsWith(".gz")){
+            name = name.substring(0, name.length() - 3);
+        }
+        File evid = new File(file.getParentFile(), name + ".evid");
+        if (!evid.isFile() && name.lastIndexOf('.') > 0){
+            evid = new File(file.getParentFile(), name.substring(0, name.lastIndexOf('.')) + ".evid");
+        }
+        if (evid.isFile()){
+            List<Assignment> cases = new UAIParser(evid).parseEvidence(bn, multipleCases);
+            if (!cases.isEmpty()){
+                return cases;
+            }
+        }
+        return Collections.singletonList(new Assignment());
+    }
+
+    /**
+     * Returns (up to) the given number of the last variables of the
+     * network that aren't observed in e.
+     */
+    static List<RandomVariable> getQueryVariables(BayesianNetwork bn, Assignment e, int n) {
+        List<RandomVariable> vars = bn.getVariableList();
+        List<RandomVariable> query = new ArrayList<>(n);
+        for (int i = vars.size() - 1; i >= 0 && query.size() < n; i--){
+            if (!e.containsKey(vars.get(i))){
+                query.add(vars.get(i));
+            }
+        }
+        return query;
+    }
+
+    /**
+     * Returns the heap in use once the garbage has been collected (as far
+     * as System.gc can be relied on to do that).
+     */
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++){
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+}
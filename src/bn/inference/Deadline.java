@@ -0,0 +1,35 @@
+package bn.inference;
+
+/**
+ * The time by which a sampling run must stop, which the shards check as
+ * they go rather than only between rounds, so a run overshoots it by at
+ * most a batch or so.
+ */
+class Deadline {
+
+    /**
+     * How many samples (or Gibbs sweeps) the shards that draw one sample
+     * at a time draw between looks at the clock.
+     */
+    static final int INTERVAL = 64;
+
+    private final boolean set;
+    private final long end;
+
+    /**
+     * Creates a Deadline the given number of milliseconds from now, or one
+     * that never passes if it is zero.
+     */
+    Deadline(long millis) {
+        set = millis > 0;
+        end = System.nanoTime() + millis * 1000000L;
+    }
+
+    /**
+     * Returns whether the time is up.
+     */
+    boolean hasPassed() {
+        return set && System.nanoTime() - end >= 0;
+    }
+
+}
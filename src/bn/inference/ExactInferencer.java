@@ -2,12 +2,45 @@ package bn.inference;
 
 import bn.core.*;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 
 public class ExactInferencer extends Inferencer {
 
+    /**
+     * Where to keep elimination plans, or null not to, and the plans,
+     * once they have been loaded.
+     */
+    private File planFile;
+    private EliminationPlans plans;
+
+    /**
+     * Sets the file in which to keep the elimination orders worked out
+     * for joint queries, so that later runs can reuse them (see
+     * EliminationPlans), or null (the default) not to keep them.
+     */
+    public void setPlanFile(File file) {
+        planFile = file;
+        plans = null;
+    }
+
+    /**
+     * Sets the plans to use and add to, which may be shared with other
+     * ExactInferencers (on other threads). Unlike with setPlanFile, new
+     * plans aren't saved as they are made: whoever made the plans saves
+     * them when it's done.
+     */
+    void setPlans(EliminationPlans plans) {
+        this.planFile = null;
+        this.plans = plans;
+    }
+
     /**
      * Parses the command line arguments to perform a test
      */
@@ -29,14 +62,24 @@ public class ExactInferencer extends Inferencer {
 
         // get evidence and query variable
         Assignment e = getEvidenceFromArgs(args,booleanDomain,2);
-        RandomVariable X = new RandomVariable(queryVarName,booleanDomain);
 
-        // run algorithm
+        // run algorithm, keeping elimination plans next to the network
         ExactInferencer exactInference = new ExactInferencer();
-        Distribution result = exactInference.ask(bn,X,e);
+        if (!testFile.equals("-")){
+            exactInference.setPlanFile(new File(testFile + ".plans"));
+        }
+        if (queryVarName.contains(",")){
+            // joint query, e.g. "B,E"
+            List<RandomVariable> X = getQueryVarsFromArg(queryVarName,booleanDomain);
+            JointDistribution result = exactInference.askJoint(bn,X,e);
+            printResults(result);
+        } else {
+            RandomVariable X = new RandomVariable(queryVarName,booleanDomain);
+            Distribution result = exactInference.ask(bn,X,e);
 
-        // output distribution
-        printResults(result);
+            // output distribution
+            printResults(result);
+        }
 
     }
 
@@ -48,88 +91,224 @@ public class ExactInferencer extends Inferencer {
         if (args.length < 2 || args.length % 2 != 0){
             System.err.println("You did not enter the correct number of command line arguments.");
             System.err.println("Please execute this program in the following format: " +
-                    "java bn.inference.TestExactInference <example.xml> <Query variable> <Evidence variable> <evidence value>...");
+                    "java bn.inference.TestExactInference <example.xml> <Query variable>[,<Query variable>...] <Evidence variable> <evidence value>...");
             System.exit(0);
         }
     }
 
+    /**
+     * Returns the Distribution of X given e, as the marginal of a joint
+     * query on X alone, so it's answered by variable elimination too. The
+     * values are those of the variable named X in bn.
+     */
     @Override
     protected Distribution ask(BayesianNetwork bn, RandomVariable X, Assignment e) {
-        Distribution dist = new Distribution();
-        for (int i = 0; i < X.getDomain().size(); i++){
-            Object domain = X.getDomain().get(i);
-            Assignment combined = e.copy();
-            combined.set(X, domain);
-            List<RandomVariable> topSorted = bn.getVariableListTopologicallySorted();
-            double probability = enumerate(bn,topSorted,combined);
-            dist.put(domain, probability);
-        }
-        dist.normalize();
-        return dist;
+        JointDistribution joint = askJoint(bn, Collections.singletonList(X), e);
+        return joint.marginal(X);
     }
 
     /**
-     * Returns the calculated probability of the given assignment,
-     * by summing together the products of conditional probabilities.
-     * Marginalizes over unobserved variables in the else statement.
+     * Returns the JointDistribution of the query variables X given the
+     * evidence e, computed by variable elimination in a single pass.
+     * The query variables are simply kept out of the elimination order,
+     * so the product of the factors that are left is the (unnormalized)
+     * joint distribution. Variables that aren't ancestors of a query or
+     * evidence variable are left out altogether, since their CPTs would
+     * sum to one.
      */
-    private double enumerate(BayesianNetwork bn, List<RandomVariable> vars, Assignment e) {
-
-        // base case
-        if (vars.isEmpty()){
-            return 1.0;
+    @Override
+    protected JointDistribution askJoint(BayesianNetwork bn, List<RandomVariable> X, Assignment e) {
+        CompiledNetwork net = CompiledNetwork.forQuery(bn, X, e);
+        int[] evidence = net.getEvidence(e);
+        int[] query = new int[X.size()];
+        List<RandomVariable> vars = new ArrayList<>(X.size());
+        for (int j = 0; j < query.length; j++){
+            query[j] = net.indexOf(X.get(j).getName());
+            vars.add(net.getVariable(query[j]));
+        }
+        // made first, since it checks the query variables are different
+        JointDistribution joint = new JointDistribution(vars);
+        // a query variable that is also in the evidence is eliminated
+        // like the others and only its observed value is kept at the end
+        int[] observed = evidence.clone();
+        for (int q : query){
+            observed[q] = -1;
         }
 
-        RandomVariable y = vars.get(0); // get first variable
+        boolean[] relevant = net.getRelevantVariables(query, evidence);
+        List<Factor> factors = new ArrayList<>();
+        List<Integer> hidden = new ArrayList<>();
+        for (int i = 0; i < net.size(); i++){
+            if (relevant[i]){
+                factors.add(Factor.fromCPT(net, i, observed));
+                if (observed[i] < 0 && !contains(query, i)){
+                    hidden.add(i);
+                }
+            }
+        }
 
-        if (inEvidence(y.getName(),e)){
-            double probability = bn.getProb(y,e);
-            double returnVal = enumerate(bn, remove(y,vars),e);
-            return probability * returnVal;
+        for (int h : getEliminationOrder(net, query, evidence, factors, hidden)){
+            factors = eliminate(factors, h);
+        }
+        Factor product = new Factor(new int[0], new int[0], new double[] {1.0});
+        for (Factor f : factors){
+            product = product.multiply(f);
         }
-        else {
-            double sum = 0.0;
-            for (Object domain : y.getDomain()){ // marginalize
 
-                List<RandomVariable> newVars = shallowCopy(vars);
-                newVars = remove(y,newVars);
+        double[] values = joint.getValues();
+        System.arraycopy(product.valuesInOrder(query), 0, values, 0, values.length);
+        zeroUnobserved(net, query, evidence, values);
+        joint.normalize();
+        return joint;
+    }
 
-                Assignment newE = e.copy();
-                newE.set(y,domain);
+    /**
+     * Returns the order in which to eliminate the given hidden variables
+     * for the given query: the saved plan for it, if there is one, and
+     * otherwise a new one, which is then saved (to the plan file, if
+     * there is one).
+     */
+    private int[] getEliminationOrder(CompiledNetwork net, int[] query, int[] evidence,
+                                      List<Factor> factors, List<Integer> hidden) {
+        if (plans == null){
+            if (planFile == null){
+                return getEliminationOrder(factors, hidden, net.card);
+            }
+            plans = EliminationPlans.load(planFile);
+        }
+        int[] order = plans.get(net, query, evidence);
+        // a plan from a broken file mustn't change what gets eliminated
+        if (order == null || !isOrderOf(order, hidden)){
+            order = getEliminationOrder(factors, hidden, net.card);
+            plans.put(net, query, evidence, order);
+            if (planFile != null){
+                plans.save();
+            }
+        }
+        return order;
+    }
 
-                double probability = bn.getProb(y,newE);
-                double returnVal = enumerate(bn, newVars,newE);
+    /**
+     * Returns whether the given order is of just the given variables, each
+     * once.
+     */
+    private static boolean isOrderOf(int[] order, List<Integer> hidden) {
+        if (order.length != hidden.size()){
+            return false;
+        }
+        Set<Integer> left = new HashSet<>(hidden);
+        for (int v : order){
+            if (!left.remove(v)){
+                return false;
+            }
+        }
+        return true;
+    }
 
-                sum += probability * returnVal;
+    /**
+     * Returns the order in which to eliminate the given hidden variables,
+     * chosen greedily so that each step creates the smallest factor
+     * (the ``min-weight'' heuristic). Only the scopes of the factors
+     * matter, so this works on bit sets rather than tables.
+     */
+    int[] getEliminationOrder(List<Factor> factors, List<Integer> hidden, int[] card) {
+        List<BitSet> scopes = new ArrayList<>(factors.size());
+        for (Factor f : factors){
+            BitSet scope = new BitSet();
+            for (int v : f.vars){
+                scope.set(v);
+            }
+            scopes.add(scope);
+        }
+        List<Integer> remaining = new ArrayList<>(hidden);
+        int[] order = new int[hidden.size()];
+        for (int step = 0; step < order.length; step++){
+            int best = -1;
+            double bestWeight = Double.MAX_VALUE;
+            for (int k = 0; k < remaining.size(); k++){
+                int h = remaining.get(k);
+                BitSet union = new BitSet();
+                for (BitSet scope : scopes){
+                    if (scope.get(h)){
+                        union.or(scope);
+                    }
+                }
+                // compare sizes in log space since products can overflow
+                double weight = 0.0;
+                for (int v = union.nextSetBit(0); v >= 0; v = union.nextSetBit(v + 1)){
+                    weight += Math.log(card[v]);
+                }
+                if (weight < bestWeight){
+                    bestWeight = weight;
+                    best = k;
+                }
+            }
+            int h = remaining.remove(best);
+            order[step] = h;
+            BitSet merged = new BitSet();
+            List<BitSet> next = new ArrayList<>(scopes.size());
+            for (BitSet scope : scopes){
+                if (scope.get(h)){
+                    merged.or(scope);
+                } else {
+                    next.add(scope);
+                }
             }
-            return sum;
+            merged.clear(h);
+            next.add(merged);
+            scopes = next;
         }
+        return order;
     }
 
     /**
-     * Returns a shallow copy of this List<RandomVariable> instance: the
-     * values themselves are not cloned.
+     * Multiplies together the factors that mention the given variable,
+     * sums the variable out of the product, and returns the new list of
+     * factors.
      */
-    private List<RandomVariable> shallowCopy(List<RandomVariable> old) {
-        List<RandomVariable> newCopy = new ArrayList<>();
-        for (RandomVariable rv : old){
-            newCopy.add(rv);
+    private List<Factor> eliminate(List<Factor> factors, int var) {
+        List<Factor> next = new ArrayList<>(factors.size());
+        Factor product = null;
+        for (Factor f : factors){
+            if (f.position(var) < 0){
+                next.add(f);
+            } else if (product == null){
+                product = f;
+            } else {
+                product = product.multiply(f);
+            }
+        }
+        if (product != null){
+            next.add(product.sumOut(var));
         }
-        return newCopy;
+        return next;
     }
 
     /**
-     * Returns vars with all RandomVariables except the variable passed in.
+     * Zeroes the entries of the joint distribution that disagree with the
+     * evidence on query variables that were also observed.
      */
-    private List<RandomVariable> remove(RandomVariable y, List<RandomVariable> vars) {
-        for (int i = 0; i < vars.size(); i++){
-            if (vars.get(i).getName().equals(y.getName())){
-                vars.remove(i);
-                return vars;
+    private void zeroUnobserved(CompiledNetwork net, int[] query, int[] evidence, double[] values) {
+        int stride = values.length;
+        for (int q : query){
+            stride /= net.card[q];
+            if (evidence[q] >= 0){
+                for (int i = 0; i < values.length; i++){
+                    if ((i / stride) % net.card[q] != evidence[q]){
+                        values[i] = 0.0;
+                    }
+                }
             }
         }
-        return vars; // this is empty now
     }
 
+    private static boolean contains(int[] array, int value) {
+        for (int a : array){
+            if (a == value){
+                return true;
+            }
+        }
+        return false;
+    }
 
 }
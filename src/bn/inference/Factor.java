@@ -0,0 +1,210 @@
+package bn.inference;
+
+import java.util.Arrays;
+
+/**
+ * A Factor is a table of non-negative numbers indexed by the values of a
+ * set of variables of a CompiledNetwork, as used by variable elimination.
+ * The table is flat, with the first variable as the most significant
+ * dimension, which is the same layout as the CPTs of a CompiledNetwork.
+ */
+class Factor {
+
+    /**
+     * The indexes of the variables of this Factor.
+     */
+    final int[] vars;
+
+    /**
+     * The number of values of each variable of this Factor.
+     */
+    final int[] card;
+
+    /**
+     * The entries of this Factor, in counting order.
+     */
+    final double[] values;
+
+    Factor(int[] vars, int[] card, double[] values) {
+        this.vars = vars;
+        this.card = card;
+        this.values = values;
+    }
+
+    /**
+     * Returns the Factor for the CPT of the given variable, with the
+     * variables that are in the evidence fixed to their observed values
+     * and dropped from its scope.
+     */
+    static Factor fromCPT(CompiledNetwork net, int var, int[] evidence) {
+        int[] ps = net.parents[var];
+        int[] vars = Arrays.copyOf(ps, ps.length + 1);
+        vars[ps.length] = var;
+        int[] card = new int[vars.length];
+        for (int j = 0; j < vars.length; j++){
+            card[j] = net.card[vars[j]];
+        }
+        Factor f = new Factor(vars, card, net.cpt[var].clone());
+        for (int j = 0; j < vars.length; j++){
+            if (evidence[vars[j]] >= 0){
+                f = f.restrict(vars[j], evidence[vars[j]]);
+            }
+        }
+        return f;
+    }
+
+    /**
+     * Returns the position of the given variable in this Factor, or -1.
+     */
+    int position(int var) {
+        for (int j = 0; j < vars.length; j++){
+            if (vars[j] == var){
+                return j;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the amount by which the value of each variable moves an
+     * offset into the table.
+     */
+    int[] strides() {
+        int[] strides = new int[vars.length];
+        int stride = 1;
+        for (int j = vars.length - 1; j >= 0; j--){
+            strides[j] = stride;
+            stride *= card[j];
+        }
+        return strides;
+    }
+
+    /**
+     * Returns the Factor obtained by fixing the given variable to the
+     * given value and dropping it from the scope.
+     */
+    Factor restrict(int var, int value) {
+        int k = position(var);
+        int[] newVars = remove(vars, k);
+        int[] newCard = remove(card, k);
+        int stride = strides()[k];
+        int outer = values.length / (stride * card[k]);
+        double[] newValues = new double[values.length / card[k]];
+        for (int hi = 0; hi < outer; hi++){
+            System.arraycopy(values, (hi * card[k] + value) * stride, newValues, hi * stride, stride);
+        }
+        return new Factor(newVars, newCard, newValues);
+    }
+
+    /**
+     * Returns the Factor obtained by summing out the given variable.
+     */
+    Factor sumOut(int var) {
+        int k = position(var);
+        int[] newVars = remove(vars, k);
+        int[] newCard = remove(card, k);
+        int stride = strides()[k];
+        int outer = values.length / (stride * card[k]);
+        double[] newValues = new double[values.length / card[k]];
+        for (int hi = 0; hi < outer; hi++){
+            for (int v = 0; v < card[k]; v++){
+                int from = (hi * card[k] + v) * stride;
+                int to = hi * stride;
+                for (int lo = 0; lo < stride; lo++){
+                    newValues[to + lo] += values[from + lo];
+                }
+            }
+        }
+        return new Factor(newVars, newCard, newValues);
+    }
+
+    /**
+     * Returns the pointwise product of this Factor and the given one. The
+     * scope of the result is the variables of this Factor followed by the
+     * variables of the other that aren't in this one.
+     */
+    Factor multiply(Factor other) {
+        int[] newVars = Arrays.copyOf(vars, vars.length + other.vars.length);
+        int[] newCard = Arrays.copyOf(card, newVars.length);
+        int n = vars.length;
+        for (int j = 0; j < other.vars.length; j++){
+            if (position(other.vars[j]) < 0){
+                newVars[n] = other.vars[j];
+                newCard[n] = other.card[j];
+                n++;
+            }
+        }
+        newVars = Arrays.copyOf(newVars, n);
+        newCard = Arrays.copyOf(newCard, n);
+        // how far each variable of the result moves the offsets into the operands
+        int[] thisStep = new int[n];
+        int[] otherStep = new int[n];
+        int[] thisStrides = strides();
+        int[] otherStrides = other.strides();
+        int length = 1;
+        for (int j = 0; j < n; j++){
+            int a = position(newVars[j]);
+            int b = other.position(newVars[j]);
+            thisStep[j] = (a < 0) ? 0 : thisStrides[a];
+            otherStep[j] = (b < 0) ? 0 : otherStrides[b];
+            length *= newCard[j];
+        }
+        double[] newValues = new double[length];
+        int[] counter = new int[n];
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++){
+            newValues[i] = values[a] * other.values[b];
+            // advance the odometer, last variable fastest
+            for (int j = n - 1; j >= 0; j--){
+                if (++counter[j] < newCard[j]){
+                    a += thisStep[j];
+                    b += otherStep[j];
+                    break;
+                }
+                counter[j] = 0;
+                a -= thisStep[j] * (newCard[j] - 1);
+                b -= otherStep[j] * (newCard[j] - 1);
+            }
+        }
+        return new Factor(newVars, newCard, newValues);
+    }
+
+    /**
+     * Returns the values of this Factor laid out with its variables in the
+     * given order, which must be a permutation of its scope.
+     */
+    double[] valuesInOrder(int[] order) {
+        int[] strides = strides();
+        int[] step = new int[order.length];
+        int[] newCard = new int[order.length];
+        for (int j = 0; j < order.length; j++){
+            int k = position(order[j]);
+            step[j] = strides[k];
+            newCard[j] = card[k];
+        }
+        double[] result = new double[values.length];
+        int[] counter = new int[order.length];
+        int a = 0;
+        for (int i = 0; i < result.length; i++){
+            result[i] = values[a];
+            for (int j = order.length - 1; j >= 0; j--){
+                if (++counter[j] < newCard[j]){
+                    a += step[j];
+                    break;
+                }
+                counter[j] = 0;
+                a -= step[j] * (newCard[j] - 1);
+            }
+        }
+        return result;
+    }
+
+    private static int[] remove(int[] array, int k) {
+        int[] result = new int[array.length - 1];
+        System.arraycopy(array, 0, result, 0, k);
+        System.arraycopy(array, k + 1, result, k, array.length - k - 1);
+        return result;
+    }
+
+}
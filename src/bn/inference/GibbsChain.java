@@ -0,0 +1,161 @@
+package bn.inference;
+
+import java.util.SplittableRandom;
+
+/**
+ * The state of one Gibbs sampling Markov chain over a CompiledNetwork.
+ * Besides the current value of every variable, the chain keeps the offset
+ * of the current row of every relevant variable's CPT, and updates the
+ * offsets of a variable's children whenever the variable changes value.
+ * So resampling a variable is a loop over its values and children, with
+ * no lookups beyond the flat CPT arrays.
+ */
+class GibbsChain {
+
+    final MarkovBlankets mb;
+
+    final CompiledNetwork net;
+
+    /**
+     * The current value of each variable.
+     */
+    final int[] state;
+
+    /**
+     * The offset of the current row of each relevant variable's CPT.
+     */
+    final int[] offsets;
+
+    /**
+     * Scratch space for the distribution of the variable being resampled.
+     */
+    private final double[] scratch;
+
+    /**
+     * Starts a new chain with the evidence variables clamped to their
+     * values and the other relevant variables sampled forward from their
+     * CPTs, which gives a state with non-zero probability if the evidence
+     * doesn't rule that out.
+     */
+    GibbsChain(MarkovBlankets mb, int[] evidence, SplittableRandom random) {
+        this(mb, evidence, false, random);
+    }
+
+    /**
+     * Starts a new chain as above, except that if dispersed is true the
+     * other relevant variables are sampled forward uniformly from the
+     * values their CPT rows allow, rather than from the CPTs themselves.
+     * Chains started like that are spread out more widely than the
+     * distribution they converge to, as the convergence diagnostics
+     * want (see ChainMonitor).
+     */
+    GibbsChain(MarkovBlankets mb, int[] evidence, boolean dispersed, SplittableRandom random) {
+        this.mb = mb;
+        this.net = mb.net;
+        int n = net.size();
+        state = new int[n];
+        offsets = new int[n];
+        int maxCard = 1;
+        for (int i = 0; i < n; i++){
+            maxCard = Math.max(maxCard, net.card[i]);
+            if (!mb.relevant[i]){
+                continue;
+            }
+            offsets[i] = net.rowOffset(i, state);
+            if (evidence[i] >= 0){
+                state[i] = evidence[i];
+            } else if (dispersed){
+                state[i] = sampleSupport(i, offsets[i], random);
+            } else {
+                state[i] = net.sample(i, offsets[i], random.nextDouble());
+            }
+        }
+        scratch = new double[maxCard];
+    }
+
+    /**
+     * Returns a value of the given variable drawn uniformly from the
+     * values with non-zero probability in the row of its CPT starting at
+     * the given offset.
+     */
+    private int sampleSupport(int i, int offset, SplittableRandom random) {
+        double[] table = net.cpt[i];
+        int count = 0;
+        for (int v = 0; v < net.card[i]; v++){
+            if (table[offset + v] > 0){
+                count++;
+            }
+        }
+        int pick = random.nextInt(Math.max(1, count));
+        for (int v = 0; v < net.card[i]; v++){
+            if (table[offset + v] > 0 && pick-- == 0){
+                return v;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Resamples every free variable once, in topological order.
+     */
+    void sweep(SplittableRandom random) {
+        for (int i : mb.free){
+            resample(i, random.nextDouble());
+        }
+    }
+
+    /**
+     * Resamples the given variable from its distribution given its Markov
+     * blanket, using the given uniform number in [0,1).
+     */
+    void resample(int i, double u) {
+        resample(i, u, scratch);
+    }
+
+    /**
+     * Resamples the given variable as above, using the given scratch space
+     * (at least as long as the variable's domain). This only touches the
+     * variable's own value and the CPT row offsets of its children, so
+     * variables that aren't in each other's Markov blankets can be
+     * resampled at the same time by different threads, each with its own
+     * scratch space.
+     */
+    void resample(int i, double u, double[] scratch) {
+        double[] table = net.cpt[i];
+        int base = offsets[i];
+        int old = state[i];
+        int[] cs = mb.children[i];
+        int[] ss = mb.childStrides[i];
+        int k = net.card[i];
+        double total = 0.0;
+        for (int v = 0; v < k; v++){
+            double p = table[base + v];
+            for (int j = 0; j < cs.length && p > 0; j++){
+                int c = cs[j];
+                p *= net.cpt[c][offsets[c] + state[c] + (v - old) * ss[j]];
+            }
+            scratch[v] = p;
+            total += p;
+        }
+        if (total == 0){
+            // inconsistent state; leave it for the neighbours to fix
+            return;
+        }
+        u *= total;
+        int value = k - 1;
+        for (int v = 0; v < k - 1; v++){
+            u -= scratch[v];
+            if (u < 0){
+                value = v;
+                break;
+            }
+        }
+        if (value != old){
+            for (int j = 0; j < cs.length; j++){
+                offsets[cs[j]] += (value - old) * ss[j];
+            }
+            state[i] = value;
+        }
+    }
+
+}
@@ -0,0 +1,227 @@
+package bn.inference;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Gibbs sampling (AIMA Figure 14.16, where it's called MCMC-Ask). Starting
+ * from a state consistent with the evidence, each step resamples one
+ * non-evidence variable from its distribution given its Markov blanket,
+ * and the query variables' values are counted after every sweep.
+ * <p>
+ * The Markov blankets are worked out once per query (see MarkovBlankets)
+ * rather than with {@link BayesianNetwork#getChildren}, so each step is
+ * just arithmetic on the flat CPTs of a CompiledNetwork.
+ * <p>
+ * With more than one thread, each thread runs its own chain (with its own
+ * burn-in) for its share of the sweeps.
+ * <p>
+ * Given a number of chains (see {@link #setChains}), that many chains are
+ * run instead, from dispersed starting states, spread over the threads.
+ * While they run, the Gelman-Rubin R-hat and the effective sample size of
+ * the query probabilities are worked out from all the chains (see
+ * ChainMonitor), and sampling stops as soon as R-hat is small enough and
+ * the effective sample size large enough. Both are reported in the
+ * SampledDistribution.
+ * <p>
+ * In chromatic mode (see {@link #setChromatic}), each sweep itself is done
+ * in parallel instead (see ChromaticSweep), which helps on large networks
+ * where a sweep is a lot of work.
+ */
+public class GibbsInferencer extends SamplingInferencer {
+    private int burnIn = 1000;
+    private int thinning = 1;
+    private int chains = 0;
+    private double maxRHat = 1.01;
+    private double minEffectiveSampleSize = 400;
+    private boolean chromatic = false;
+
+    /**
+     * Creates a GibbsInferencer that counts the given number of sweeps.
+     */
+    public GibbsInferencer(int limit) {
+        super(limit);
+    }
+
+    /**
+     * Sets the number of sweeps to run (and throw away) before counting.
+     */
+    public void setBurnIn(int burnIn) {
+        this.burnIn = burnIn;
+    }
+
+    /**
+     * Sets the number of sweeps between counted states, so that only every
+     * thinning'th state is counted.
+     */
+    public void setThinning(int thinning) {
+        this.thinning = Math.max(1, thinning);
+    }
+
+    /**
+     * Sets the number of chains to run. With two or more, the chains start
+     * from dispersed states and sampling stops once their diagnostics show
+     * they have converged (or the budget is spent). Zero, the default,
+     * means one chain per thread, run to the end of the budget.
+     */
+    public void setChains(int chains) {
+        this.chains = Math.max(0, chains);
+    }
+
+    /**
+     * Sets the largest R-hat of the query probabilities at which several
+     * chains count as having converged.
+     */
+    public void setMaxRHat(double maxRHat) {
+        this.maxRHat = maxRHat;
+    }
+
+    /**
+     * Sets the smallest effective sample size that several converged
+     * chains must reach before sampling stops.
+     */
+    public void setMinEffectiveSampleSize(double minEffectiveSampleSize) {
+        this.minEffectiveSampleSize = minEffectiveSampleSize;
+    }
+
+    /**
+     * Sets whether to resample the variables of each sweep in parallel, a
+     * color class of the moral graph at a time, on the common ForkJoinPool.
+     * Then there is a single chain (unless several are asked for) rather
+     * than one per thread.
+     */
+    public void setChromatic(boolean chromatic) {
+        this.chromatic = chromatic;
+    }
+
+    /**
+     * Also takes {@code -chains <n>} (see setChains), {@code -max-rhat <r>}
+     * (see setMaxRHat), {@code -min-ess <n>} (see
+     * setMinEffectiveSampleSize) and {@code -chromatic} (see setChromatic),
+     * which has no value.
+     */
+    @Override
+    protected int setOption(String[] args, int k) {
+        switch (args[k]){
+            case "-chains":
+                setChains(Integer.parseInt(args[k + 1]));
+                return 2;
+            case "-max-rhat":
+                setMaxRHat(Double.parseDouble(args[k + 1]));
+                return 2;
+            case "-min-ess":
+                setMinEffectiveSampleSize(Double.parseDouble(args[k + 1]));
+                return 2;
+            case "-chromatic":
+                setChromatic(true);
+                return 1;
+            default:
+                return super.setOption(args, k);
+        }
+    }
+
+    @Override
+    protected String getOptionUsage() {
+        return super.getOptionUsage() + " [-chains <n>] [-max-rhat <r>] [-min-ess <n>] [-chromatic]";
+    }
+
+    /**
+     * Parses the command line arguments to run a test
+     */
+    public static void main(String[] args){
+        runMain(args, new GibbsInferencer(0));
+    }
+
+    /**
+     * Runs one shard per chain when there are several chains, and a single
+     * one when the sweeps themselves are parallel.
+     */
+    @Override
+    int getShardCount() {
+        if (chains > 1){
+            return chains;
+        }
+        return chromatic ? 1 : super.getShardCount();
+    }
+
+    /**
+     * Several chains always sample in rounds, to check the diagnostics.
+     */
+    @Override
+    boolean isAnytime() {
+        return chains > 1 || super.isAnytime();
+    }
+
+    /**
+     * Returns a Sampler that runs one chain per shard, each with its own
+     * burn-in, and counts the query values of its states. With more than
+     * one chain, it also monitors them and reports their diagnostics.
+     */
+    @Override
+    Sampler newSampler(final Query q, SplittableRandom random) {
+        final MarkovBlankets mb = new MarkovBlankets(q.net, q.net.getRelevantVariables(q.query, q.evidence), q.evidence);
+        final List<ChainMonitor> monitors = new ArrayList<>();
+        final ChromaticSweep colored = chromatic ? new ChromaticSweep(mb, ForkJoinPool.commonPool()) : null;
+        return new Sampler() {
+            public Shard newShard(final SplittableRandom random) {
+                final GibbsChain chain = new GibbsChain(mb, q.evidence, chains > 1, random);
+                final double[] u = chromatic ? colored.newScratch() : null;
+                final ChainMonitor monitor = new ChainMonitor(q.size);
+                monitors.add(monitor);
+                return new Shard() {
+                    boolean burnedIn = false;
+
+                    public void run(int samples, Tally tally, Deadline deadline) {
+                        // here rather than in newShard, so that the chains
+                        // burn in on the pool, in parallel; out of time, the
+                        // burn-in is cut short rather than drawing nothing
+                        if (!burnedIn){
+                            for (int sweep = 0; sweep < burnIn; sweep++){
+                                sweep(chain, colored, u, random);
+                                if ((sweep + 1) % Deadline.INTERVAL == 0 && deadline.hasPassed()){
+                                    break;
+                                }
+                            }
+                            burnedIn = true;
+                        }
+                        for (int count = 0; count < samples; count++){
+                            for (int t = 0; t < thinning; t++){
+                                sweep(chain, colored, u, random);
+                            }
+                            int cell = q.cell(chain.state);
+                            tally.add(cell, 1.0);
+                            monitor.add(cell);
+                            if ((count + 1) % Deadline.INTERVAL == 0 && deadline.hasPassed()){
+                                return;
+                            }
+                        }
+                    }
+                };
+            }
+
+            public boolean diagnose(Tally tally) {
+                if (monitors.size() < 2){
+                    return false;
+                }
+                tally.rHat = ChainMonitor.getRHat(monitors);
+                tally.chainEffectiveSampleSize = ChainMonitor.getEffectiveSampleSize(monitors);
+                return tally.rHat <= maxRHat && tally.chainEffectiveSampleSize >= minEffectiveSampleSize;
+            }
+        };
+    }
+
+    /**
+     * Resamples every free variable of the given chain once, in parallel
+     * if there is a ChromaticSweep (with u as its scratch space).
+     */
+    private static void sweep(GibbsChain chain, ChromaticSweep colored, double[] u, SplittableRandom random) {
+        if (colored == null){
+            chain.sweep(random);
+        } else {
+            colored.sweep(chain, u, random);
+        }
+    }
+
+}
@@ -1,17 +1,28 @@
 package bn.inference;
 
 import bn.core.*;
-import bn.parser.BIFParser;
+import bn.parser.BinaryNetworkFile;
+import bn.parser.ParallelBIFParser;
+import bn.parser.UAIParser;
 import bn.parser.XMLBIFParser;
-import org.xml.sax.SAXException;
 
-import javax.xml.parsers.ParserConfigurationException;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
+import java.util.zip.GZIPInputStream;
 
 /**
  * Defines an abstract class meant to be the parent
@@ -27,21 +38,146 @@ public abstract class Inferencer {
 	 */
 	protected abstract Distribution ask(BayesianNetwork bn, RandomVariable X, Assignment e);
 
+	/**
+	 * Returns the JointDistribution of the query RandomVariables X
+	 * given evidence Assignment e. The variables of the result are the
+	 * ones from bn with the same names as X, in the same order.
+	 *
+	 * This default implementation uses the chain rule,
+	 * P(X1,X2,...|e) = P(X1|e) P(X2|X1,e) ..., which takes a call
+	 * of ask() for every combination of values of all but the last
+	 * query variable. Subclasses that can do it in one go should
+	 * override it.
+	 */
+	protected JointDistribution askJoint(BayesianNetwork bn, List<RandomVariable> X, Assignment e) {
+		List<RandomVariable> vars = new ArrayList<>(X.size());
+		for (RandomVariable x : X){
+			vars.add(bn.getVariableByName(x.getName()));
+		}
+		JointDistribution joint = new JointDistribution(vars);
+		askChain(bn, vars, 0, e, 1.0, joint.getValues(), 0);
+		return joint;
+	}
+
+	/**
+	 * Recursive step of the chain rule: fills in the entries of values
+	 * for the combinations of values of the ith and later query variables,
+	 * given that the earlier ones (whose probability is p) have been
+	 * added to the evidence.
+	 */
+	private void askChain(BayesianNetwork bn, List<RandomVariable> X, int i, Assignment e, double p, double[] values, int offset) {
+		RandomVariable Xi = X.get(i);
+		Domain domain = Xi.getDomain();
+		Distribution dist = ask(bn, Xi, e);
+		for (int k = 0; k < domain.size(); k++){
+			Object value = domain.get(k);
+			double q = p * getProbOfValue(dist, value);
+			int next = offset * domain.size() + k;
+			if (i == X.size() - 1){
+				values[next] = q;
+			} else if (q > 0){
+				Assignment extended = e.copy();
+				extended.set(Xi, value);
+				askChain(bn, X, i + 1, extended, q, values, next);
+			}
+		}
+	}
+
+	/**
+	 * Returns the probability of the given value in the given Distribution,
+	 * comparing values by their string form (ignoring case, since the
+	 * sampling inferencers always answer with "true" and "false").
+	 */
+	private static double getProbOfValue(Distribution dist, Object value) {
+		for (Map.Entry<Object,Double> entry : dist.entrySet()){
+			if (entry.getKey().toString().equalsIgnoreCase(value.toString())){
+				return entry.getValue();
+			}
+		}
+		return 0.0;
+	}
+
 	/**
 	 * Prints the probability distribution of the query variable,
 	 * that is ultimately returned by the ask() method
 	 */
 	protected static void printResults(Distribution result){
+		System.out.println(formatResults(result));
+	}
+
+	/**
+	 * Prints the joint probability distribution of the query variables,
+	 * that is ultimately returned by the askJoint() method.
+	 */
+	protected static void printResults(JointDistribution result){
+		System.out.println(formatResults(result));
+	}
+
+	/**
+	 * Returns the probability distribution of a query variable as
+	 * printResults prints it.
+	 */
+	static String formatResults(Distribution result){
+		StringBuilder buf = new StringBuilder();
 		int count = 0;
-		System.out.print("{");
+		buf.append("{");
 		for (Map.Entry<Object,Double> entry : result.entrySet()){
-			System.out.print(entry.getKey() + "=" + round(entry.getValue()));
+			buf.append(entry.getKey()).append("=").append(round(entry.getValue()));
 			count++;
 			if (count != result.size()){
-				System.out.print(", ");
+				buf.append(", ");
+			}
+		}
+		buf.append("}");
+		return buf.toString();
+	}
+
+	/**
+	 * Returns the joint probability distribution of the query variables
+	 * as printResults prints it. Each entry is the tuple of values of the
+	 * query variables followed by its probability.
+	 */
+	static String formatResults(JointDistribution result){
+		List<RandomVariable> vars = result.getVariables();
+		double[] values = result.getValues();
+		int[] indexes = new int[vars.size()];
+		StringBuilder buf = new StringBuilder();
+		buf.append("{");
+		for (int i = 0; i < values.length; i++){
+			buf.append("(");
+			for (int j = 0; j < indexes.length; j++){
+				buf.append(vars.get(j).getDomain().get(indexes[j]));
+				if (j != indexes.length - 1){
+					buf.append(",");
+				}
+			}
+			buf.append(")=").append(round(values[i]));
+			if (i != values.length - 1){
+				buf.append(", ");
+			}
+			// advance to the next combination, last variable fastest
+			for (int j = indexes.length - 1; j >= 0; j--){
+				if (++indexes[j] < vars.get(j).getDomain().size()){
+					break;
+				}
+				indexes[j] = 0;
 			}
 		}
-		System.out.println("}");
+		buf.append("}");
+		return buf.toString();
+	}
+
+	/**
+	 * Returns the list of query variables named in the given
+	 * comma-separated list of names, with the given domain. The
+	 * inferencers look the real variables up by name.
+	 */
+	protected static List<RandomVariable> getQueryVarsFromArg(String names, Domain domain){
+		List<RandomVariable> vars = new ArrayList<>();
+		for (String name : names.split(",")){
+			vars.add(new RandomVariable(name, domain));
+		}
+		return vars;
 	}
 
 	/**
@@ -53,37 +189,289 @@ public abstract class Inferencer {
 	}
 
 	/**
-	 * Returns a BayesianNetwork given the name of a test file
+	 * Returns a BayesianNetwork given the name of a test file, or "-" to
+	 * read it from standard input. Exits the program if it can't be read.
+	 *
+	 * The file may be BIF, XMLBIF, UAI (see UAIParser) or a binary
+	 * network file (see BinaryNetworkFile), and may be gzipped:
+	 * compression and binary files are recognized by their magic
+	 * numbers, and the text formats by the file name (ignoring any .gz)
+	 * or else by whether the text starts with '<' or "BAYES".
+	 * Uncompressed BIF, UAI and binary files are memory-mapped rather
+	 * than read. BIF is parsed with
+	 * ParallelBIFParser, using all the processors for large files.
 	 */
 	protected static BayesianNetwork getBayesianNetworkFromFile(String testFile) {
+		return getBayesianNetworkFromFile(testFile, false);
+	}
+
+	/**
+	 * Returns a BayesianNetwork given the name of a test file, as for
+	 * getBayesianNetworkFromFile(String). If lazy is true and the file is
+	 * an uncompressed BIF file, only the structure of the network is read
+	 * now, and each CPT is parsed the first time it's used (see
+	 * ParallelBIFParser#setLazy), so that queries that only involve part
+	 * of a large network only pay for that part.
+	 */
+	protected static BayesianNetwork getBayesianNetworkFromFile(String testFile, boolean lazy) {
 		BayesianNetwork bn = null;
 		try {
-			if (testFile.endsWith(".bif")){
-				BIFParser parser = new BIFParser(new FileInputStream(testFile));
-				bn = parser.parseNetwork();
-			} else if (testFile.endsWith(".xml")){
-				XMLBIFParser parser = new XMLBIFParser();
-				bn = parser.readNetworkFromFile(testFile);
-			} else {
-				System.err.println("Please enter a .xml or .bif input file");
-				System.exit(0);
-			}
+			bn = readBayesianNetwork(testFile, lazy);
 		} catch (FileNotFoundException e) {
 			e.printStackTrace();
 			System.exit(0);
 		} catch (IOException e) {
 			e.printStackTrace();
 			System.exit(0);
-		} catch (SAXException e) {
-			e.printStackTrace();
+		}
+		if (bn == null){
+			System.err.println("Syntax error in " + testFile);
 			System.exit(0);
-		} catch (ParserConfigurationException e) {
+		}
+		return bn;
+	}
+
+	/**
+	 * Returns a BayesianNetwork read from the given bytes of a BIF,
+	 * XMLBIF, UAI or binary network file, which may be gzipped. Exits the
+	 * program if it can't be read.
+	 */
+	protected static BayesianNetwork getBayesianNetworkFromBytes(byte[] bytes) {
+		BayesianNetwork bn = null;
+		try {
+			bn = readBayesianNetwork(bytes);
+		} catch (IOException e) {
 			e.printStackTrace();
 			System.exit(0);
 		}
+		if (bn == null){
+			System.err.println("Syntax error in network");
+			System.exit(0);
+		}
 		return bn;
 	}
 
+	/**
+	 * The gzip magic number, and the size of the buffers used to read
+	 * and decompress networks.
+	 */
+	private static final int GZIP_MAGIC = 0x1f8b;
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	/**
+	 * Reads a BayesianNetwork from the given file, or standard input if
+	 * it's "-", as for getBayesianNetworkFromFile. Returns null if a BIF
+	 * file has a syntax error.
+	 */
+	static BayesianNetwork readBayesianNetwork(String file) throws IOException {
+		return readBayesianNetwork(file, false);
+	}
+
+	/**
+	 * Reads a BayesianNetwork from the given file, as for
+	 * getBayesianNetworkFromFile(String, boolean).
+	 */
+	static BayesianNetwork readBayesianNetwork(String file, boolean lazy) throws IOException {
+		if (file.equals("-")){
+			return readBayesianNetwork(System.in, file);
+		}
+		byte[] start = new byte[4];
+		int n;
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")){
+			n = Math.max(0, raf.read(start));
+		}
+		if (BinaryNetworkFile.isBinaryNetwork(start, n)){
+			return BinaryNetworkFile.read(new File(file));
+		}
+		boolean gzipped = isGzipped(start, n);
+		if (gzipped || isXMLBIF(file)){
+			try (InputStream input = new FileInputStream(file)){
+				return readBayesianNetwork(input, file);
+			}
+		}
+		if (isUAI(file)){
+			return new UAIParser(new File(file)).parseNetwork();
+		}
+		if (isBIF(file)){
+			ParallelBIFParser parser = new ParallelBIFParser(new File(file));
+			parser.setLazy(lazy);
+			return parser.parseNetwork();
+		}
+		// have to look
+		try (InputStream input = new FileInputStream(file)){
+			return readBayesianNetwork(input, file);
+		}
+	}
+
+	/**
+	 * Reads a BayesianNetwork from the given bytes, as for
+	 * getBayesianNetworkFromBytes. Returns null if a BIF file has a
+	 * syntax error.
+	 */
+	static BayesianNetwork readBayesianNetwork(byte[] bytes) throws IOException {
+		if (BinaryNetworkFile.isBinaryNetwork(bytes, bytes.length)){
+			return BinaryNetworkFile.read(ByteBuffer.wrap(bytes));
+		} else if (isGzipped(bytes, bytes.length)){
+			return readBayesianNetwork(new ByteArrayInputStream(bytes), "");
+		} else if (startsWithTag(bytes, bytes.length)){
+			return new XMLBIFParser().readNetwork(new ByteArrayInputStream(bytes));
+		} else if (UAIParser.isUAI(bytes, bytes.length)){
+			return new UAIParser(ByteBuffer.wrap(bytes)).parseNetwork();
+		} else {
+			return new ParallelBIFParser(ByteBuffer.wrap(bytes)).parseNetwork();
+		}
+	}
+
+	/**
+	 * Reads a BayesianNetwork from the given stream, decompressing it if
+	 * it's gzipped. The name is used to tell BIF, XMLBIF and UAI apart,
+	 * unless it doesn't say, in which case the start of the text is
+	 * checked.
+	 * Returns null if a BIF file has a syntax error.
+	 */
+	static BayesianNetwork readBayesianNetwork(InputStream input, String name) throws IOException {
+		BufferedInputStream in = new BufferedInputStream(input, BUFFER_SIZE);
+		byte[] magic = new byte[4];
+		in.mark(magic.length);
+		int n = 0;
+		int k;
+		while (n < magic.length && (k = in.read(magic, n, magic.length - n)) > 0){
+			n += k;
+		}
+		in.reset();
+		if (BinaryNetworkFile.isBinaryNetwork(magic, n)){
+			return BinaryNetworkFile.read(ByteBuffer.wrap(readFully(in)));
+		} else if (isGzipped(magic, n)){
+			String inner = name.endsWith(".gz") ? name.substring(0, name.length() - 3) : "";
+			return readBayesianNetwork(new GZIPInputStream(in, BUFFER_SIZE), inner);
+		}
+		boolean xml;
+		if (isUAI(name)){
+			return new UAIParser(in).parseNetwork();
+		} else if (isXMLBIF(name) || isBIF(name)){
+			xml = isXMLBIF(name);
+		} else {
+			byte[] start = new byte[BUFFER_SIZE];
+			in.mark(start.length);
+			n = 0;
+			while (n < start.length && (k = in.read(start, n, start.length - n)) > 0){
+				n += k;
+			}
+			in.reset();
+			if (UAIParser.isUAI(start, n)){
+				return new UAIParser(in).parseNetwork();
+			}
+			xml = startsWithTag(start, n);
+		}
+		if (xml){
+			return new XMLBIFParser().readNetwork(in);
+		} else {
+			return new ParallelBIFParser(in).parseNetwork();
+		}
+	}
+
+	/**
+	 * Returns true if the first n bytes of the given array start with the
+	 * gzip magic number.
+	 */
+	private static boolean isGzipped(byte[] bytes, int n) {
+		return n >= 2 && ((bytes[0] & 0xff) << 8 | (bytes[1] & 0xff)) == GZIP_MAGIC;
+	}
+
+	/**
+	 * Returns everything left in the given stream.
+	 */
+	private static byte[] readFully(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(BUFFER_SIZE);
+		byte[] buffer = new byte[BUFFER_SIZE];
+		int n;
+		while ((n = in.read(buffer)) > 0){
+			out.write(buffer, 0, n);
+		}
+		return out.toByteArray();
+	}
+
+	private static boolean isXMLBIF(String name) {
+		return name.endsWith(".xml") || name.endsWith(".xml.gz");
+	}
+
+	private static boolean isBIF(String name) {
+		return name.endsWith(".bif") || name.endsWith(".bif.gz");
+	}
+
+	private static boolean isUAI(String name) {
+		return name.endsWith(".uai") || name.endsWith(".uai.gz");
+	}
+
+	/**
+	 * Returns true if the first of the first n bytes that isn't
+	 * whitespace (or a UTF-8 byte order mark) is '<', as in XML.
+	 */
+	private static boolean startsWithTag(byte[] bytes, int n) {
+		for (int i = 0; i < n; i++){
+			int b = bytes[i] & 0xff;
+			if (b == '<'){
+				return true;
+			} else if (b != ' ' && b != '\t' && b != '\n' && b != '\r' && b != 0xef && b != 0xbb && b != 0xbf){
+				return false;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * The inferencers that newInferencer can make, by name.
+	 */
+	static final List<String> ENGINES = Arrays.asList("exact", "bp", "lw", "gibbs");
+
+	/**
+	 * Returns a new inferencer of the given name (one of ENGINES), with
+	 * the given number of samples if it samples.
+	 */
+	static Inferencer newInferencer(String name, int samples) {
+		SamplingInferencer sampler;
+		switch (name){
+			case "exact":
+				return new ExactInferencer();
+			case "bp":
+				return new BeliefPropagationInferencer();
+			case "lw":
+				sampler = new LikelihoodWeightingInferencer(samples);
+				break;
+			case "gibbs":
+				sampler = new GibbsInferencer(samples);
+				break;
+			default:
+				throw new IllegalArgumentException(name);
+		}
+		sampler.setSeed(0);
+		return sampler;
+	}
+
+	/**
+	 * Returns how many of the given command line arguments, from index k
+	 * on, the sampling option there takes with its value (see
+	 * SamplingInferencer#setOption), or 0 if it isn't one. Gibbs sampling
+	 * takes every option any of ENGINES takes.
+	 */
+	static int getOptionLength(String[] args, int k) {
+		return new GibbsInferencer(0).setOption(args, k);
+	}
+
+	/**
+	 * Applies each of the given sampling options (see getOptionLength)
+	 * that the given inferencer takes, and returns whether it took them
+	 * all.
+	 */
+	static boolean setOptions(Inferencer inferencer, String[] options) {
+		boolean all = true;
+		for (int k = 0; k < options.length; k += getOptionLength(options, k)){
+			all &= inferencer instanceof SamplingInferencer
+				&& ((SamplingInferencer)inferencer).setOption(options, k) > 0;
+		}
+		return all;
+	}
+
 	/**
 	 * Returns an Assignment object representing the evidence of a query.
 	 *
@@ -96,7 +484,9 @@ public abstract class Inferencer {
 			try {
 				String name = args[i];
 				RandomVariable rv = new RandomVariable(name,booleanDomain);
-				evidence.set(rv,Boolean.valueOf(args[i+1]));
+				// keep the value as given so that variables with
+				// more than two values can be observed too
+				evidence.set(rv,args[i+1]);
 			}
 			catch (NumberFormatException | IndexOutOfBoundsException e){
 				System.err.println("You did not enter valid arguments");
@@ -0,0 +1,59 @@
+package bn.inference;
+
+import java.util.SplittableRandom;
+
+/**
+ * Likelihood weighting (AIMA Figure 14.15). Evidence variables are clamped
+ * to their observed values instead of being sampled, and each sample is
+ * weighted by the product of the CPT entries of the evidence values given
+ * their parents. Unlike rejection sampling, no sample is ever thrown away,
+ * which matters a lot when the evidence is unlikely.
+ * <p>
+ * Samples are drawn in batches stored by column (see SampleBatch), with
+ * values indexed as in a CompiledNetwork, so this works for variables with
+ * any number of values.
+ */
+public class LikelihoodWeightingInferencer extends SamplingInferencer {
+
+    public LikelihoodWeightingInferencer(int limit) {
+        super(limit);
+    }
+
+    /**
+     * Parses the command line arguments to run a test
+     */
+    public static void main(String[] args){
+        runMain(args, new LikelihoodWeightingInferencer(0));
+    }
+
+    /**
+     * Returns a Sampler that does likelihood weighting a batch at a time
+     * (see SampleBatch). Only the variables that are ancestors of the query
+     * or evidence variables are sampled, since the others can't affect the
+     * outcome.
+     */
+    @Override
+    Sampler newSampler(final Query q, SplittableRandom random) {
+        final int[] order = CompiledNetwork.getIndexes(q.net.getRelevantVariables(q.query, q.evidence));
+        final AliasTable[] tables = q.net.getAliasTables();
+        return new Sampler() {
+            public Shard newShard(final SplittableRandom random) {
+                final SampleBatch batch = new SampleBatch(q.net, order);
+                final Uniforms u = uniforms.newUniforms(order.length, random);
+                return new Shard() {
+                    public void run(int samples, Tally tally, Deadline deadline) {
+                        for (int done = 0; done < samples; done += SampleBatch.SIZE){
+                            int n = Math.min(SampleBatch.SIZE, samples - done);
+                            batch.weigh(q.evidence, tables, n, u);
+                            batch.addTo(q, tally, n);
+                            if (deadline.hasPassed()){
+                                return;
+                            }
+                        }
+                    }
+                };
+            }
+        };
+    }
+
+}
@@ -0,0 +1,107 @@
+package bn.inference;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The Markov blankets of the variables of a CompiledNetwork, precomputed
+ * for Gibbs sampling (AIMA Section 14.5.2). Resampling a variable needs its
+ * own CPT row and, for each child, the entry of the child's CPT for the
+ * child's value, with the variable's value varied. Since all the CPTs are
+ * flat, the entries for the different values of the variable are spaced
+ * by the variable's stride in the child's CPT, and that's all we need to
+ * keep about the ``slice'' of the child's CPT.
+ * <p>
+ * Only the relevant variables (see
+ * {@link CompiledNetwork#getRelevantVariables}) take part; barren children
+ * are left out of the blankets since they sum out to one anyway.
+ */
+class MarkovBlankets {
+
+    final CompiledNetwork net;
+
+    /**
+     * The variables that get resampled: relevant and not in the evidence,
+     * in topological order.
+     */
+    final int[] free;
+
+    /**
+     * The relevant children of each variable.
+     */
+    final int[][] children;
+
+    /**
+     * The stride of each variable in the CPT of each of its relevant
+     * children, parallel to {@code children}.
+     */
+    final int[][] childStrides;
+
+    /**
+     * The Markov blanket of each relevant variable: its parents, its
+     * relevant children, and their other parents.
+     */
+    final int[][] blanket;
+
+    /**
+     * Whether each variable is relevant.
+     */
+    final boolean[] relevant;
+
+    MarkovBlankets(CompiledNetwork net, boolean[] relevant, int[] evidence) {
+        int n = net.size();
+        this.net = net;
+        this.relevant = relevant;
+        children = new int[n][];
+        childStrides = new int[n][];
+        blanket = new int[n][];
+        List<Integer> freeList = new ArrayList<>();
+        for (int i = 0; i < n; i++){
+            if (!relevant[i]){
+                children[i] = new int[0];
+                childStrides[i] = new int[0];
+                blanket[i] = new int[0];
+                continue;
+            }
+            if (evidence[i] < 0){
+                freeList.add(i);
+            }
+            List<Integer> cs = new ArrayList<>();
+            List<Integer> ss = new ArrayList<>();
+            Set<Integer> mb = new LinkedHashSet<>();
+            for (int p : net.parents[i]){
+                mb.add(p);
+            }
+            for (int c : net.children[i]){
+                if (!relevant[c]){
+                    continue;
+                }
+                int[] ps = net.parents[c];
+                for (int j = 0; j < ps.length; j++){
+                    if (ps[j] == i){
+                        cs.add(c);
+                        ss.add(net.strides[c][j]);
+                    } else {
+                        mb.add(ps[j]);
+                    }
+                }
+                mb.add(c);
+            }
+            children[i] = toArray(cs);
+            childStrides[i] = toArray(ss);
+            blanket[i] = toArray(new ArrayList<>(mb));
+        }
+        free = toArray(freeList);
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        int[] array = new int[list.size()];
+        for (int j = 0; j < array.length; j++){
+            array[j] = list.get(j);
+        }
+        return array;
+    }
+
+}
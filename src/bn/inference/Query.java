@@ -0,0 +1,76 @@
+package bn.inference;
+
+import bn.core.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A query as seen by the samplers: the network, both as given and compiled,
+ * the evidence, both as given and as value indexes, and the indexes of the
+ * query variables.
+ */
+class Query {
+
+    final BayesianNetwork bn;
+
+    final CompiledNetwork net;
+
+    /**
+     * The evidence, as given.
+     */
+    final Assignment e;
+
+    /**
+     * The index of the value of each variable in the evidence, or -1.
+     */
+    final int[] evidence;
+
+    /**
+     * The indexes of the query variables.
+     */
+    final int[] query;
+
+    /**
+     * The number of combinations of values of the query variables.
+     */
+    final int size;
+
+    Query(BayesianNetwork bn, CompiledNetwork net, List<RandomVariable> X, Assignment e) {
+        this.bn = bn;
+        this.net = net;
+        this.e = e;
+        this.evidence = net.getEvidence(e);
+        this.query = new int[X.size()];
+        int size = 1;
+        for (int j = 0; j < query.length; j++){
+            query[j] = net.indexOf(X.get(j).getName());
+            size *= net.card[query[j]];
+        }
+        this.size = size;
+    }
+
+    /**
+     * Returns the network's RandomVariables for the query variables.
+     */
+    List<RandomVariable> getVariables() {
+        List<RandomVariable> vars = new ArrayList<>(query.length);
+        for (int q : query){
+            vars.add(net.getVariable(q));
+        }
+        return vars;
+    }
+
+    /**
+     * Returns the position in counting order of the combination of values
+     * of the query variables in the given sample.
+     */
+    int cell(int[] sample) {
+        int cell = 0;
+        for (int q : query){
+            cell = cell * net.card[q] + sample[q];
+        }
+        return cell;
+    }
+
+}
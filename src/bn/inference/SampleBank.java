@@ -0,0 +1,504 @@
+package bn.inference;
+
+import bn.core.*;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.SplittableRandom;
+
+/**
+ * A bank of weighted samples of every variable of a network given some
+ * evidence, drawn once by likelihood weighting and kept, so that any
+ * number of later queries against the same evidence can be answered by
+ * scanning the samples instead of drawing new ones. Queries may ask for
+ * the distribution of any variables, given any further conditions on any
+ * others: the samples that don't meet the conditions are just skipped
+ * (which is rejection sampling on the bank, so very unlikely conditions
+ * leave few samples).
+ * <p>
+ * The samples are stored by column, one column per variable, with each
+ * value packed into the fewest bits (1, 2, 4, 8 or 16) that hold its
+ * index, 64 bits to a long. So a bank of a million samples of a network
+ * of binary variables takes 122KB per variable. The weights are kept as
+ * doubles, unless there is no evidence and they would all be one.
+ * <p>
+ * A bank can be saved to a file and loaded back by memory-mapping it, so
+ * that it is paged in from disk as it is scanned rather than read in
+ * whole. The file also holds the evidence the samples were drawn given,
+ * and a hash of the network they were drawn from (see EliminationPlans),
+ * so that a bank isn't used by mistake with a network whose CPTs have
+ * changed since, or for different evidence.
+ */
+public class SampleBank {
+
+    /**
+     * The magic number and version at the start of a saved bank.
+     */
+    private static final int MAGIC = 0x424e5342; // "BNSB"
+    private static final int VERSION = 2;
+
+    private final CompiledNetwork net;
+
+    private final int samples;
+
+    /**
+     * The number of bits each variable's values are packed into.
+     */
+    private final int[] bits;
+
+    /**
+     * The packed values of each variable.
+     */
+    private final LongBuffer[] columns;
+
+    /**
+     * The weight of each sample, or null if they are all one.
+     */
+    private final DoubleBuffer weights;
+
+    /**
+     * The index of the value of each variable in the evidence, or -1.
+     */
+    private final int[] evidence;
+
+    /**
+     * The hash of the network the samples were drawn from.
+     */
+    private final byte[] hash;
+
+    private SampleBank(CompiledNetwork net, int samples, LongBuffer[] columns, DoubleBuffer weights,
+                       int[] evidence, byte[] hash) {
+        this.net = net;
+        this.samples = samples;
+        this.columns = columns;
+        this.weights = weights;
+        this.evidence = evidence;
+        this.hash = hash;
+        bits = new int[net.size()];
+        for (int i = 0; i < bits.length; i++){
+            bits[i] = getBits(net.card[i]);
+        }
+    }
+
+    /**
+     * Draws the given number of samples of the given network given the
+     * evidence e by likelihood weighting, with the given seed, and returns
+     * a bank of them.
+     */
+    public static SampleBank generate(BayesianNetwork bn, Assignment e, int samples, long seed) {
+        CompiledNetwork net = new CompiledNetwork(bn);
+        int n = net.size();
+        int[] evidence = net.getEvidence(e);
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++){
+            order[i] = i;
+        }
+        long[][] packed = new long[n][];
+        for (int i = 0; i < n; i++){
+            packed[i] = new long[getWords(samples, getBits(net.card[i]))];
+        }
+        double[] w = e.isEmpty() ? null : new double[samples];
+        SampleBatch batch = new SampleBatch(net, order);
+        Uniforms uniforms = UniformSource.PSEUDO_RANDOM.newUniforms(n, new SplittableRandom(seed));
+        AliasTable[] tables = net.getAliasTables();
+        for (int done = 0; done < samples; done += SampleBatch.SIZE){
+            int count = Math.min(SampleBatch.SIZE, samples - done);
+            batch.weigh(evidence, tables, count, uniforms);
+            for (int i = 0; i < n; i++){
+                pack(batch.columns[i], packed[i], getBits(net.card[i]), done, count);
+            }
+            if (w != null){
+                System.arraycopy(batch.weights, 0, w, done, count);
+            }
+        }
+        LongBuffer[] columns = new LongBuffer[n];
+        for (int i = 0; i < n; i++){
+            columns[i] = LongBuffer.wrap(packed[i]);
+        }
+        return new SampleBank(net, samples, columns, (w == null) ? null : DoubleBuffer.wrap(w),
+                              evidence, EliminationPlans.hash(net));
+    }
+
+    /**
+     * Returns the number of samples in this bank.
+     */
+    public int size() {
+        return samples;
+    }
+
+    /**
+     * Returns the evidence the samples were drawn given.
+     */
+    public Assignment getEvidence() {
+        Assignment e = new Assignment();
+        for (int i = 0; i < evidence.length; i++){
+            if (evidence[i] >= 0){
+                RandomVariable var = net.getVariable(i);
+                e.set(var, var.getDomain().get(evidence[i]));
+            }
+        }
+        return e;
+    }
+
+    /**
+     * Returns the SHA-256 hash of the variables, parents and CPTs of the
+     * network the samples were drawn from.
+     */
+    public byte[] getNetworkHash() {
+        return hash.clone();
+    }
+
+    /**
+     * Returns the estimated Distribution of X given the bank's evidence.
+     */
+    public Distribution getDistribution(RandomVariable X) {
+        return getDistribution(X, new Assignment());
+    }
+
+    /**
+     * Returns the estimated Distribution of X given the bank's evidence and
+     * the given further conditions.
+     */
+    public Distribution getDistribution(RandomVariable X, Assignment conditions) {
+        JointDistribution joint = getJointDistribution(Collections.singletonList(X), conditions);
+        RandomVariable var = joint.getVariables().get(0);
+        Distribution dist = new Distribution(var);
+        double[] values = joint.getValues();
+        for (int k = 0; k < values.length; k++){
+            dist.put(var.getDomain().get(k), values[k]);
+        }
+        return dist;
+    }
+
+    /**
+     * Returns the estimated JointDistribution of the variables X given the
+     * bank's evidence.
+     */
+    public JointDistribution getJointDistribution(List<RandomVariable> X) {
+        return getJointDistribution(X, new Assignment());
+    }
+
+    /**
+     * Returns the estimated JointDistribution of the variables X given the
+     * bank's evidence and the given further conditions, by adding up the
+     * weights of the samples that meet the conditions for each combination
+     * of values of X.
+     */
+    public JointDistribution getJointDistribution(List<RandomVariable> X, Assignment conditions) {
+        int[] query = new int[X.size()];
+        List<RandomVariable> vars = new ArrayList<>(X.size());
+        for (int j = 0; j < query.length; j++){
+            query[j] = net.indexOf(X.get(j).getName());
+            vars.add(net.getVariable(query[j]));
+        }
+        int[] observed = net.getEvidence(conditions);
+        List<Integer> filter = new ArrayList<>();
+        for (int i = 0; i < observed.length; i++){
+            if (observed[i] >= 0){
+                filter.add(i);
+            }
+        }
+        JointDistribution joint = new JointDistribution(vars);
+        double[] values = joint.getValues();
+        int[] cells = new int[SampleBatch.SIZE];
+        boolean[] keep = new boolean[SampleBatch.SIZE];
+        for (int start = 0; start < samples; start += SampleBatch.SIZE){
+            int count = Math.min(SampleBatch.SIZE, samples - start);
+            // the filters first, so that they can be scanned a column at a time
+            Arrays.fill(keep, 0, count, true);
+            for (int f : filter){
+                int value = observed[f];
+                for (int k = 0; k < count; k++){
+                    keep[k] &= (get(f, start + k) == value);
+                }
+            }
+            Arrays.fill(cells, 0, count, 0);
+            for (int q : query){
+                int card = net.card[q];
+                for (int k = 0; k < count; k++){
+                    cells[k] = cells[k] * card + get(q, start + k);
+                }
+            }
+            for (int k = 0; k < count; k++){
+                if (keep[k]){
+                    values[cells[k]] += (weights == null) ? 1.0 : weights.get(start + k);
+                }
+            }
+        }
+        joint.normalize();
+        return joint;
+    }
+
+    /**
+     * Returns the index of the value of variable i in sample k.
+     */
+    private int get(int i, int k) {
+        int b = bits[i];
+        long bit = (long)k * b;
+        long word = columns[i].get((int)(bit >>> 6));
+        return (int)((word >>> (bit & 63)) & ((1L << b) - 1));
+    }
+
+    /**
+     * Saves this bank to the given file, in a form that {@link #load} can
+     * map back into memory.
+     */
+    public void save(File file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))){
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(net.size());
+            out.writeInt(samples);
+            out.writeBoolean(weights != null);
+            for (int i = 0; i < net.size(); i++){
+                byte[] name = net.getVariable(i).getName().getBytes(StandardCharsets.UTF_8);
+                out.writeShort(name.length);
+                out.write(name);
+                out.writeInt(net.card[i]);
+            }
+            int observed = 0;
+            for (int value : evidence){
+                observed += (value >= 0) ? 1 : 0;
+            }
+            out.writeInt(observed);
+            for (int i = 0; i < evidence.length; i++){
+                if (evidence[i] >= 0){
+                    out.writeInt(i);
+                    out.writeInt(evidence[i]);
+                }
+            }
+            out.writeInt(hash.length);
+            out.write(hash);
+            // line the data up on eight bytes for the buffer views
+            while (out.size() % 8 != 0){
+                out.writeByte(0);
+            }
+            for (int i = 0; i < net.size(); i++){
+                LongBuffer column = columns[i];
+                for (int j = 0; j < column.limit(); j++){
+                    out.writeLong(column.get(j));
+                }
+            }
+            if (weights != null){
+                for (int k = 0; k < samples; k++){
+                    out.writeDouble(weights.get(k));
+                }
+            }
+        }
+    }
+
+    /**
+     * Loads a bank saved by {@link #save} for the given network, as load
+     * does, and checks that its samples were drawn given the evidence e.
+     * @throws IOException if the file can't be loaded, or the evidence is
+     * different
+     */
+    public static SampleBank load(File file, BayesianNetwork bn, Assignment e) throws IOException {
+        SampleBank bank = load(file, bn);
+        if (!Arrays.equals(bank.evidence, bank.net.getEvidence(e))){
+            throw new IOException(file + " was drawn given " + bank.getEvidence() + ", not " + e);
+        }
+        return bank;
+    }
+
+    /**
+     * Loads a bank saved by {@link #save} for the given network, by mapping
+     * the file (which can't be more than 2GB) into memory. The evidence
+     * the samples were drawn given is read from the file.
+     * @throws IOException if the file can't be read, isn't a sample bank,
+     * or wasn't saved for a network with the same variables and CPTs
+     */
+    public static SampleBank load(File file, BayesianNetwork bn) throws IOException {
+        CompiledNetwork net = new CompiledNetwork(bn);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()){
+            // the mapping stays valid after the channel is closed
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return read(file, buffer, net);
+        } catch (BufferUnderflowException ex) {
+            throw new IOException(file + " is truncated");
+        } catch (IndexOutOfBoundsException | IllegalArgumentException ex) {
+            throw new IOException(file + " is not a sample bank");
+        }
+    }
+
+    /**
+     * Reads a bank of samples of the given network from the given buffer,
+     * which holds the given file. Runs off the end of the buffer as a
+     * BufferUnderflowException, but checks every length before using it.
+     */
+    private static SampleBank read(File file, ByteBuffer buffer, CompiledNetwork net) throws IOException {
+        if (buffer.remaining() < 8 || buffer.getInt() != MAGIC || buffer.getInt() != VERSION){
+            throw new IOException(file + " is not a sample bank");
+        }
+        int n = buffer.getInt();
+        int samples = buffer.getInt();
+        boolean weighted = buffer.get() != 0;
+        if (n != net.size()){
+            throw new IOException(file + " has " + n + " variables, not " + net.size());
+        }
+        if (samples < 0){
+            throw new IOException(file + " has " + samples + " samples");
+        }
+        for (int i = 0; i < n; i++){
+            byte[] name = new byte[buffer.getShort() & 0xffff];
+            buffer.get(name);
+            int card = buffer.getInt();
+            String str = new String(name, StandardCharsets.UTF_8);
+            if (!str.equals(net.getVariable(i).getName()) || card != net.card[i]){
+                throw new IOException(file + " has variable " + str + " where the network has " + net.getVariable(i).getName());
+            }
+        }
+        int[] evidence = new int[n];
+        Arrays.fill(evidence, -1);
+        int observed = buffer.getInt();
+        for (int j = 0; j < observed; j++){
+            int i = buffer.getInt();
+            int value = buffer.getInt();
+            if (i < 0 || i >= n || value < 0 || value >= net.card[i]){
+                throw new IOException(file + " has evidence for no such variable or value");
+            }
+            evidence[i] = value;
+        }
+        int length = buffer.getInt();
+        require(file, buffer, length);
+        byte[] hash = new byte[length];
+        buffer.get(hash);
+        if (!Arrays.equals(hash, EliminationPlans.hash(net))){
+            throw new IOException(file + " was drawn from a network with different CPTs");
+        }
+        require(file, buffer, -buffer.position() & 7);
+        buffer.position((buffer.position() + 7) & ~7);
+        LongBuffer[] columns = new LongBuffer[n];
+        for (int i = 0; i < n; i++){
+            long bytes = 8L * getWords(samples, getBits(net.card[i]));
+            require(file, buffer, bytes);
+            ByteBuffer slice = buffer.slice();
+            slice.limit((int)bytes);
+            columns[i] = slice.asLongBuffer();
+            buffer.position(buffer.position() + (int)bytes);
+        }
+        DoubleBuffer weights = null;
+        if (weighted){
+            require(file, buffer, 8L * samples);
+            ByteBuffer slice = buffer.slice();
+            slice.limit(8 * samples);
+            weights = slice.asDoubleBuffer();
+        }
+        return new SampleBank(net, samples, columns, weights, evidence, hash);
+    }
+
+    /**
+     * Checks that the given buffer, which holds the given file, has at
+     * least the given number of bytes left.
+     * @throws IOException if it hasn't, or the number is negative
+     */
+    private static void require(File file, ByteBuffer buffer, long bytes) throws IOException {
+        if (bytes < 0){
+            throw new IOException(file + " is not a sample bank");
+        }
+        if (bytes > buffer.remaining()){
+            throw new IOException(file + " is truncated");
+        }
+    }
+
+    /**
+     * Draws a bank of samples and saves it, or loads one and answers a
+     * query from it, depending on the first argument:
+     * <pre>
+     * draw &lt;samples&gt; &lt;network&gt; &lt;bank&gt; [&lt;Evidence variable&gt; &lt;evidence value&gt;...]
+     * ask &lt;network&gt; &lt;bank&gt; &lt;Query variable&gt;[,&lt;Query variable&gt;...] [&lt;Condition variable&gt; &lt;value&gt;...]
+     * </pre>
+     * A query is answered given the evidence of the bank and the further
+     * conditions, if any.
+     */
+    public static void main(String[] args){
+
+        boolean draw = args.length >= 4 && args[0].equals("draw");
+        boolean ask = args.length >= 4 && args[0].equals("ask");
+        if ((!draw && !ask) || args.length % 2 != 0){
+            System.err.println("You did not enter the correct number of command line arguments.");
+            System.err.println("Please execute this program in one of the following formats: " +
+                    "java bn.inference.SampleBank draw <samples> <example.xml> <bank> <Evidence variable> <evidence value>... " +
+                    "or java bn.inference.SampleBank ask <example.xml> <bank> <Query variable>[,<Query variable>...] <Condition variable> <value>...");
+            System.exit(0);
+        }
+
+        // the real domains are looked up in the network
+        Domain domain = new Domain();
+        try {
+            if (draw){
+                int samples = Integer.parseInt(args[1]);
+                BayesianNetwork bn = Inferencer.getBayesianNetworkFromFile(args[2]);
+                Assignment e = Inferencer.getEvidenceFromArgs(args, domain, 4);
+                generate(bn, e, samples, new SplittableRandom().nextLong()).save(new File(args[3]));
+            } else {
+                BayesianNetwork bn = Inferencer.getBayesianNetworkFromFile(args[1]);
+                SampleBank bank = load(new File(args[2]), bn);
+                Assignment conditions = Inferencer.getEvidenceFromArgs(args, domain, 4);
+                Assignment e = bank.getEvidence();
+                System.out.println(bank.size() + " samples given " + (e.isEmpty() ? "no evidence" : e.toString()));
+                if (args[3].contains(",")){
+                    List<RandomVariable> X = Inferencer.getQueryVarsFromArg(args[3], domain);
+                    Inferencer.printResults(bank.getJointDistribution(X, conditions));
+                } else {
+                    RandomVariable X = new RandomVariable(args[3], domain);
+                    Inferencer.printResults(bank.getDistribution(X, conditions));
+                }
+            }
+        } catch (IOException ex) {
+            System.err.println(ex.getMessage());
+            System.exit(0);
+        } catch (NoSuchElementException ex) {
+            System.err.println("No variable or value " + ex.getMessage());
+            System.exit(0);
+        }
+    }
+
+    /**
+     * Packs count values into the given column, for samples from start on.
+     */
+    private static void pack(int[] values, long[] column, int b, int start, int count) {
+        for (int k = 0; k < count; k++){
+            long bit = (long)(start + k) * b;
+            column[(int)(bit >>> 6)] |= ((long)values[k]) << (bit & 63);
+        }
+    }
+
+    /**
+     * Returns the number of bits a variable with the given number of values
+     * is packed into: the smallest power of two that's enough, so that no
+     * value straddles two longs.
+     */
+    private static int getBits(int card) {
+        int b = 1;
+        while ((1 << b) < card){
+            b *= 2;
+        }
+        return b;
+    }
+
+    /**
+     * Returns the number of longs needed for the given number of values of
+     * the given number of bits.
+     */
+    private static int getWords(int samples, int b) {
+        return (int)(((long)samples * b + 63) / 64);
+    }
+
+}
@@ -0,0 +1,185 @@
+package bn.inference;
+
+import java.util.Arrays;
+
+/**
+ * A batch of samples stored by column: one int array per variable holding
+ * its value in each sample, plus the weight of each sample. The batch is
+ * filled in one variable at a time, in topological order, so that working
+ * out the CPT rows of a variable for the whole batch is a loop over its
+ * parents' columns, and drawing its values is a loop over those rows.
+ * Such loops are short, branch-free and walk arrays in order, which is
+ * what the JIT and the caches like, unlike sampling a whole network one
+ * sample at a time.
+ * <p>
+ * Only the variables in the order a batch is made with are sampled (and
+ * have columns); they must include the parents of each one.
+ */
+class SampleBatch {
+
+    /**
+     * The number of samples in a batch, small enough that the columns
+     * being worked on stay in cache.
+     */
+    static final int SIZE = 1024;
+
+    private final CompiledNetwork net;
+
+    private final int[] order;
+
+    /**
+     * The value of each variable in each sample, or null for variables
+     * that aren't sampled.
+     */
+    final int[][] columns;
+
+    /**
+     * The weight of each sample.
+     */
+    final double[] weights;
+
+    /**
+     * The CPT row offsets of the variable being sampled, then the cells of
+     * the samples for the Tally.
+     */
+    private final int[] offsets;
+
+    /**
+     * The uniform numbers for the variable being sampled.
+     */
+    private final double[] u;
+
+    /**
+     * When rejection sampling, the indexes of the samples not yet
+     * rejected, and the values drawn for them.
+     */
+    private final int[] alive;
+    private final int[] values;
+
+    /**
+     * Creates a batch for sampling the given variables of the given network,
+     * which must be in topological order.
+     */
+    SampleBatch(CompiledNetwork net, int[] order) {
+        this.net = net;
+        this.order = order;
+        columns = new int[net.size()][];
+        for (int i : order){
+            columns[i] = new int[SIZE];
+        }
+        weights = new double[SIZE];
+        offsets = new int[SIZE];
+        u = new double[SIZE];
+        alive = new int[SIZE];
+        values = new int[SIZE];
+    }
+
+    /**
+     * Fills in the first n samples by likelihood weighting: evidence
+     * variables are set to their observed values and weight the samples by
+     * the probability of those values, the others are drawn from the given
+     * alias tables using the given uniform numbers, one dimension per
+     * variable drawn. Stops early if every weight becomes 0.
+     */
+    void weigh(int[] evidence, AliasTable[] tables, int n, Uniforms uniforms) {
+        Arrays.fill(weights, 0, n, 1.0);
+        uniforms.next(n);
+        int dimension = 0;
+        for (int i : order){
+            net.rowOffsets(i, columns, offsets, n);
+            int[] column = columns[i];
+            if (evidence[i] >= 0){
+                int value = evidence[i];
+                double[] table = net.cpt[i];
+                boolean any = false;
+                Arrays.fill(column, 0, n, value);
+                for (int k = 0; k < n; k++){
+                    weights[k] *= table[offsets[k] + value];
+                    any |= (weights[k] > 0);
+                }
+                if (!any){
+                    return;
+                }
+            } else {
+                uniforms.fill(dimension++, u, n);
+                tables[i].sample(offsets, column, n, u);
+            }
+        }
+    }
+
+    /**
+     * Fills in the first n samples by drawing every variable from the given
+     * alias tables using the given uniform numbers, one dimension per
+     * variable, and gives each sample a weight of 1 if it agrees with the
+     * evidence and 0 otherwise (rejection sampling).
+     * <p>
+     * A sample is rejected as soon as it disagrees with an evidence
+     * variable, as when sampling one at a time: the indexes of the samples
+     * still alive are kept packed at the front of {@code alive}, and the
+     * variables after that are only drawn for them. The columns of the
+     * rejected samples are left as they were.
+     */
+    void reject(int[] evidence, AliasTable[] tables, int n, Uniforms uniforms) {
+        Arrays.fill(weights, 0, n, 0.0);
+        uniforms.next(n);
+        // the number of samples alive; while it's n they're all in order
+        int m = n;
+        int dimension = 0;
+        for (int i : order){
+            int[] column = columns[i];
+            if (m == n){
+                net.rowOffsets(i, columns, offsets, n);
+                uniforms.fill(dimension++, u, n);
+                tables[i].sample(offsets, column, n, u);
+            } else {
+                net.rowOffsets(i, columns, alive, offsets, m);
+                uniforms.fill(dimension++, u, alive, m, n);
+                tables[i].sample(offsets, values, m, u);
+                for (int k = 0; k < m; k++){
+                    column[alive[k]] = values[k];
+                }
+            }
+            if (evidence[i] >= 0){
+                int value = evidence[i];
+                int kept = 0;
+                for (int k = 0; k < m; k++){
+                    int index = (m == n) ? k : alive[k];
+                    alive[kept] = index;
+                    kept += (column[index] == value) ? 1 : 0;
+                }
+                m = kept;
+                if (m == 0){
+                    return;
+                }
+            }
+        }
+        for (int k = 0; k < m; k++){
+            weights[(m == n) ? k : alive[k]] = 1.0;
+        }
+    }
+
+    /**
+     * Records the first n samples in the given Tally, which counts the
+     * combinations of values of the query variables of the given Query.
+     * Samples with weight 0 count as rejected.
+     */
+    void addTo(Query q, Tally tally, int n) {
+        int[] cells = offsets;
+        Arrays.fill(cells, 0, n, 0);
+        for (int v : q.query){
+            int[] column = columns[v];
+            int card = net.card[v];
+            for (int k = 0; k < n; k++){
+                cells[k] = cells[k] * card + column[k];
+            }
+        }
+        for (int k = 0; k < n; k++){
+            if (weights[k] > 0){
+                tally.add(cells[k], weights[k]);
+            } else {
+                tally.reject();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,77 @@
+package bn.inference;
+
+import bn.core.Distribution;
+import bn.core.RandomVariable;
+
+/**
+ * A Distribution estimated by sampling, which also records how many
+ * samples it took and how precise it is thought to be.
+ */
+public class SampledDistribution extends Distribution {
+
+    public static final long serialVersionUID = 1L;
+
+    private long sampleCount;
+    private double effectiveSampleSize;
+    private double errorBound;
+    private double confidence;
+    private double rHat = Double.NaN;
+
+    public SampledDistribution(RandomVariable X) {
+        super(X);
+    }
+
+    /**
+     * Returns the number of samples drawn, including rejected ones.
+     */
+    public long getSampleCount() {
+        return sampleCount;
+    }
+
+    /**
+     * Returns the effective sample size: the number of unweighted,
+     * independent samples that would give an estimate as good as the
+     * (weighted) ones that were drawn.
+     */
+    public double getEffectiveSampleSize() {
+        return effectiveSampleSize;
+    }
+
+    /**
+     * Returns the half-width of the confidence interval of the estimated
+     * probabilities, at the level given by {@link #getConfidence}. This is
+     * the largest half-width over the values of the query variable.
+     */
+    public double getErrorBound() {
+        return errorBound;
+    }
+
+    /**
+     * Returns the confidence level of the error bound.
+     */
+    public double getConfidence() {
+        return confidence;
+    }
+
+    /**
+     * Returns the Gelman-Rubin R-hat of the Markov chains that drew the
+     * samples (the largest over the values of the query variable), which
+     * is close to 1 if they have converged, or NaN if the samples didn't
+     * come from several Markov chains.
+     */
+    public double getRHat() {
+        return rHat;
+    }
+
+    void setStatistics(long sampleCount, double effectiveSampleSize, double errorBound, double confidence) {
+        this.sampleCount = sampleCount;
+        this.effectiveSampleSize = effectiveSampleSize;
+        this.errorBound = errorBound;
+        this.confidence = confidence;
+    }
+
+    void setRHat(double rHat) {
+        this.rHat = rHat;
+    }
+
+}
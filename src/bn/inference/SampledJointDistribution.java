@@ -0,0 +1,77 @@
+package bn.inference;
+
+import bn.core.JointDistribution;
+import bn.core.RandomVariable;
+
+import java.util.List;
+
+/**
+ * A JointDistribution estimated by sampling, which, like a
+ * SampledDistribution, also records how many samples it took and how
+ * precise it is thought to be.
+ */
+public class SampledJointDistribution extends JointDistribution {
+
+    private long sampleCount;
+    private double effectiveSampleSize;
+    private double errorBound;
+    private double confidence;
+    private double rHat = Double.NaN;
+
+    public SampledJointDistribution(List<RandomVariable> variables) {
+        super(variables);
+    }
+
+    /**
+     * Returns the number of samples drawn, including rejected ones.
+     */
+    public long getSampleCount() {
+        return sampleCount;
+    }
+
+    /**
+     * Returns the effective sample size (see
+     * {@link SampledDistribution#getEffectiveSampleSize}).
+     */
+    public double getEffectiveSampleSize() {
+        return effectiveSampleSize;
+    }
+
+    /**
+     * Returns the half-width of the confidence interval of the estimated
+     * probabilities, at the level given by {@link #getConfidence}. This is
+     * the largest half-width over the combinations of values of the query
+     * variables.
+     */
+    public double getErrorBound() {
+        return errorBound;
+    }
+
+    /**
+     * Returns the confidence level of the error bound.
+     */
+    public double getConfidence() {
+        return confidence;
+    }
+
+    /**
+     * Returns the Gelman-Rubin R-hat of the Markov chains that drew the
+     * samples, or NaN if the samples didn't come from several Markov
+     * chains (see {@link SampledDistribution#getRHat}).
+     */
+    public double getRHat() {
+        return rHat;
+    }
+
+    void setStatistics(long sampleCount, double effectiveSampleSize, double errorBound, double confidence) {
+        this.sampleCount = sampleCount;
+        this.effectiveSampleSize = effectiveSampleSize;
+        this.errorBound = errorBound;
+        this.confidence = confidence;
+    }
+
+    void setRHat(double rHat) {
+        this.rHat = rHat;
+    }
+
+}
@@ -0,0 +1,86 @@
+package bn.inference;
+
+import bn.core.*;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Compares the error per sample of the uniform sources (see UniformSource)
+ * for likelihood weighting and rejection sampling on a query, against the
+ * exact answer from variable elimination. For each source and sampler the
+ * query is answered several times with different seeds, and the root mean
+ * square error of the estimated probabilities is printed along with the
+ * ``sample gain'': how many times more pseudo-random samples it would take
+ * to get the same error (assuming error goes as one over the square root
+ * of the number of samples).
+ */
+public class SamplingBenchmark {
+
+    /**
+     * Parses the command line arguments to run the benchmark
+     */
+    public static void main(String[] args){
+
+        if (args.length < 4 || args.length % 2 != 0){
+            System.err.println("You did not enter the correct number of command line arguments.");
+            System.err.println("Please execute this program in the following format: " +
+                    "java bn.inference.SamplingBenchmark <samples> <runs> <example.xml> <Query variable> <Evidence variable> <evidence value>...");
+            System.exit(0);
+        }
+
+        // read command line arguments
+        int samples = Integer.parseInt(args[0]);
+        int runs = Integer.parseInt(args[1]);
+        String testFile = args[2];
+        String queryVarName = args[3];
+
+        // get BayesianNetwork from file, query and evidence
+        BayesianNetwork bn = Inferencer.getBayesianNetworkFromFile(testFile);
+        Domain domain = new Domain();
+        Assignment e = Inferencer.getEvidenceFromArgs(args,domain,4);
+        RandomVariable X = null;
+        try {
+            X = bn.getVariableByName(queryVarName);
+        } catch (NoSuchElementException ex) {
+            System.err.println("No variable named " + queryVarName);
+            System.exit(0);
+        }
+
+        List<RandomVariable> query = Collections.singletonList(X);
+        double[] exact = new ExactInferencer().askJoint(bn, query, e).getValues();
+
+        System.out.printf("%-15s %-16s %12s %12s %10s%n", "sampler", "source", "RMS error", "sample gain", "ms/run");
+        SamplingInferencer[] inferencers = {
+            new LikelihoodWeightingInferencer(samples),
+            new ApproxInferencer(samples)
+        };
+        for (SamplingInferencer inferencer : inferencers){
+            String name = (inferencer instanceof ApproxInferencer) ? "rejection" : "likelihood";
+            double baseline = 0.0;
+            for (UniformSource source : UniformSource.values()){
+                inferencer.setUniformSource(source);
+                inferencer.setThreads(1);
+                double squares = 0.0;
+                long start = System.nanoTime();
+                for (int run = 0; run < runs; run++){
+                    inferencer.setSeed(run);
+                    double[] estimate = inferencer.askJoint(bn, query, e).getValues();
+                    for (int k = 0; k < exact.length; k++){
+                        double error = Double.isNaN(estimate[k]) ? 1.0 : estimate[k] - exact[k];
+                        squares += error * error;
+                    }
+                }
+                double millis = (System.nanoTime() - start) / 1e6 / runs;
+                double rms = Math.sqrt(squares / (runs * exact.length));
+                if (source == UniformSource.PSEUDO_RANDOM){
+                    baseline = rms;
+                }
+                double gain = (rms > 0) ? (baseline / rms) * (baseline / rms) : Double.POSITIVE_INFINITY;
+                System.out.printf("%-15s %-16s %12.3e %12.2f %10.1f%n", name, source, rms, gain, millis);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,491 @@
+package bn.inference;
+
+import bn.core.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parent class of the inferencers that estimate the distribution of the
+ * query variables by drawing samples.
+ * <p>
+ * The sample budget is split into shards, normally one per thread
+ * (several chains per thread for multi-chain Gibbs). Each shard gets
+ * its own SplittableRandom, split off in order from one seeded at the
+ * start of the query, and counts into its own Tally. The tallies are
+ * merged in shard order once all the threads are done, so for a given
+ * seed and number of threads the answer is the same from run to run.
+ * The threads are kept from one query to the next (see getPool).
+ * <p>
+ * Normally the whole budget ({@code limit}) is drawn. Given a target
+ * precision or a deadline, the samples are instead drawn in rounds of
+ * growing size, and sampling stops after the first round at which the
+ * confidence interval of the estimate is narrow enough, or as soon as the
+ * time is up ({@code limit} then being only an upper bound). The shards
+ * check the deadline as they go, so it is kept to within a batch of
+ * samples (or a few Gibbs sweeps), burn-in included. The interval uses the
+ * effective sample size, so it is honest about weighted samples. On its
+ * own it knows nothing of autocorrelation, so for Gibbs sampling it is
+ * optimistic unless several chains are run, whose diagnostics give the
+ * effective sample size (see ChainMonitor).
+ */
+public abstract class SamplingInferencer extends Inferencer {
+
+    /**
+     * Something that draws samples for a Query. A Sampler is created once
+     * per query, and holds whatever can be worked out in advance and
+     * shared by all the threads.
+     */
+    interface Sampler {
+        /**
+         * Returns a new Shard that draws samples using the given random
+         * number generator. The shards are made one after another on the
+         * calling thread, so anything slow (like burning in a chain)
+         * belongs in the Shard's first run, which is on the pool.
+         */
+        Shard newShard(SplittableRandom random);
+
+        /**
+         * Records any diagnostics of its own in the given Tally, which
+         * holds all the samples drawn so far, and returns whether the
+         * Sampler judges them to be enough. Called after every round.
+         * By default there are none and it is never enough.
+         */
+        default boolean diagnose(Tally tally) {
+            return false;
+        }
+    }
+
+    /**
+     * The part of a sampling run done by one thread. A Shard may be run
+     * several times, and carries on where it left off each time.
+     */
+    interface Shard {
+        /**
+         * Draws the given number of samples, recording them in the given
+         * Tally, but stops early (having drawn at least one) if the given
+         * Deadline passes.
+         */
+        void run(int samples, Tally tally, Deadline deadline);
+    }
+
+    /**
+     * Samples per thread in the first round of an anytime run; the rounds
+     * double in size up to MAX_ROUND.
+     */
+    private static final int FIRST_ROUND = 4096;
+    private static final int MAX_ROUND = 1 << 20;
+
+    /**
+     * How long, in seconds, a thread of the pool waits for work before it
+     * stops.
+     */
+    private static final int KEEP_ALIVE = 10;
+
+    private static final ThreadFactory DAEMONS = new ThreadFactory() {
+        public Thread newThread(Runnable task) {
+            Thread thread = Executors.defaultThreadFactory().newThread(task);
+            thread.setDaemon(true);
+            return thread;
+        }
+    };
+
+    protected int limit;
+    protected int threads = Runtime.getRuntime().availableProcessors();
+    protected Long seed = null;
+    protected double targetHalfWidth = 0.0;
+    protected double confidence = 0.95;
+    protected long deadlineMillis = 0;
+    protected UniformSource uniforms = UniformSource.PSEUDO_RANDOM;
+
+    /**
+     * The threads the shards run on, made when a query first needs them
+     * and kept for the queries after it (see getPool).
+     */
+    private ThreadPoolExecutor pool;
+
+    public SamplingInferencer(int limit) {
+        this.limit = limit;
+    }
+
+    /**
+     * Sets the number of threads to spread the samples over.
+     */
+    public void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Sets the seed for the random number generators, making the results
+     * reproducible for a given number of threads. By default each query
+     * gets a different seed.
+     */
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * Stops sampling as soon as the confidence interval at the given level
+     * (e.g., 0.95) of every estimated probability has at most the given
+     * half-width (e.g., 0.01).
+     */
+    public void setTargetPrecision(double halfWidth, double confidence) {
+        this.targetHalfWidth = halfWidth;
+        this.confidence = confidence;
+    }
+
+    /**
+     * Stops sampling once the given number of milliseconds have passed
+     * since the query was asked, whatever the precision. Zero means no
+     * deadline.
+     */
+    public void setDeadline(long millis) {
+        this.deadlineMillis = millis;
+    }
+
+    /**
+     * Sets where the uniform numbers for drawing samples come from. Only
+     * the batch samplers (likelihood weighting and rejection sampling)
+     * take any notice; the default is pseudo-random numbers.
+     */
+    public void setUniformSource(UniformSource uniforms) {
+        this.uniforms = uniforms;
+    }
+
+    /**
+     * Runs the main of a sampling inferencer: parses the command line
+     * arguments, which are any options (see setOption), the number of
+     * samples, the network file, the query variables and then pairs of
+     * evidence variables and values, and prints the answer the given
+     * inferencer gives with that many samples. If there were any options,
+     * it also prints how many samples were drawn and how precise the
+     * answer is thought to be.
+     */
+    protected static void runMain(String[] args, SamplingInferencer inferencer){
+        int options = 0;
+        try {
+            options = inferencer.setOptions(args);
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            usage(inferencer, "You did not enter valid options.");
+        }
+        args = Arrays.copyOfRange(args, options, args.length);
+        if (args.length < 3 || args.length % 2 == 0){
+            usage(inferencer, "You did not enter the correct number of command line arguments.");
+        }
+
+        // read command line arguments
+        inferencer.limit = Integer.parseInt(args[0]);
+        String testFile = args[1];
+        String queryVarName = args[2];
+
+        // get BayesianNetwork from file
+        BayesianNetwork bn = getBayesianNetworkFromFile(testFile);
+
+        // the real domains are looked up in the network
+        Domain domain = new Domain();
+
+        // get evidence and run algorithm
+        Assignment e = getEvidenceFromArgs(args,domain,3);
+        if (queryVarName.contains(",")){
+            List<RandomVariable> X = getQueryVarsFromArg(queryVarName,domain);
+            SampledJointDistribution result = inferencer.askJoint(bn,X,e);
+            printResults(result);
+            if (options > 0){
+                printStatistics(result);
+            }
+        } else {
+            RandomVariable X = new RandomVariable(queryVarName,domain);
+            SampledDistribution result = inferencer.ask(bn,X,e);
+            printResults(result);
+            if (options > 0){
+                printStatistics(result);
+            }
+        }
+    }
+
+    private static void usage(SamplingInferencer inferencer, String message) {
+        String name = inferencer.getClass().getSimpleName();
+        System.err.println(message);
+        System.err.println("Please execute this program in the following format: " +
+                "java bn.inference." + name + " " + inferencer.getOptionUsage() +
+                " <samples> <example.xml> <Query variable>[,<Query variable>...] <Evidence variable> <evidence value>...");
+        System.exit(0);
+    }
+
+    /**
+     * Applies the options at the start of the given command line
+     * arguments (see setOption), and returns how many arguments they took.
+     */
+    int setOptions(String[] args) {
+        int k = 0;
+        int taken;
+        while (k < args.length && (taken = setOption(args, k)) > 0){
+            k += taken;
+        }
+        return k;
+    }
+
+    /**
+     * Applies the option at index k of the given command line arguments,
+     * and returns how many arguments it took (with its value), or 0 if
+     * it isn't an option of this inferencer. The options are
+     * {@code -precision <half-width>} and {@code -confidence <level>} (see
+     * setTargetPrecision), and {@code -deadline <milliseconds>} (see
+     * setDeadline). Subclasses with options of their own override this
+     * and getOptionUsage.
+     * @throws NumberFormatException if the value isn't a number
+     * @throws IndexOutOfBoundsException if the value is missing
+     */
+    protected int setOption(String[] args, int k) {
+        switch (args[k]){
+            case "-precision":
+                targetHalfWidth = Double.parseDouble(args[k + 1]);
+                return 2;
+            case "-confidence":
+                confidence = Double.parseDouble(args[k + 1]);
+                return 2;
+            case "-deadline":
+                deadlineMillis = Long.parseLong(args[k + 1]);
+                return 2;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Returns the options setOption takes, as they appear in the usage
+     * message.
+     */
+    protected String getOptionUsage() {
+        return "[-precision <half-width>] [-confidence <level>] [-deadline <ms>]";
+    }
+
+    /**
+     * Prints how many samples an estimated distribution took and how
+     * precise it is thought to be.
+     */
+    protected static void printStatistics(SampledDistribution result){
+        System.out.println(formatStatistics(result.getSampleCount(), result.getEffectiveSampleSize(),
+                result.getErrorBound(), result.getConfidence(), result.getRHat()));
+    }
+
+    /**
+     * Prints how many samples an estimated joint distribution took and how
+     * precise it is thought to be.
+     */
+    protected static void printStatistics(SampledJointDistribution result){
+        System.out.println(formatStatistics(result.getSampleCount(), result.getEffectiveSampleSize(),
+                result.getErrorBound(), result.getConfidence(), result.getRHat()));
+    }
+
+    private static String formatStatistics(long samples, double ess, double errorBound, double confidence, double rHat) {
+        String line = String.format("samples=%d effective=%.1f error=%.4f at %.0f%%",
+                samples, ess, errorBound, 100 * confidence);
+        return Double.isNaN(rHat) ? line : line + String.format(" R-hat=%.4f", rHat);
+    }
+
+    /**
+     * Returns a Sampler for the given Query. The given random number
+     * generator is for any sampling the Sampler does to set itself up.
+     */
+    abstract Sampler newSampler(Query q, SplittableRandom random);
+
+    /**
+     * Returns the estimated Distribution of X given e, which also records
+     * the number of samples drawn and the precision achieved.
+     */
+    @Override
+    public SampledDistribution ask(BayesianNetwork bn, RandomVariable X, Assignment e) {
+        List<RandomVariable> query = Collections.singletonList(X);
+        Query q = new Query(bn, CompiledNetwork.forQuery(bn, query, e), query, e);
+        Tally tally = sample(q);
+        Domain domain = q.net.getVariable(q.query[0]).getDomain();
+        SampledDistribution dist = new SampledDistribution(q.net.getVariable(q.query[0]));
+        for (int k = 0; k < domain.size(); k++){
+            dist.put(domain.get(k), tally.weights[k]);
+        }
+        dist.normalize();
+        dist.setStatistics(tally.samples, tally.effectiveSampleSize(),
+                tally.halfWidth(getZ(confidence)), confidence);
+        dist.setRHat(tally.rHat);
+        return dist;
+    }
+
+    /**
+     * Returns the JointDistribution of the query variables X given the
+     * evidence e, by weighting each sample's combination of query values.
+     * Like ask, it also records the number of samples drawn and the
+     * precision achieved.
+     */
+    @Override
+    public SampledJointDistribution askJoint(BayesianNetwork bn, List<RandomVariable> X, Assignment e) {
+        Query q = new Query(bn, CompiledNetwork.forQuery(bn, X, e), X, e);
+        // made first, since it checks the query variables are different
+        SampledJointDistribution joint = new SampledJointDistribution(q.getVariables());
+        Tally tally = sample(q);
+        System.arraycopy(tally.weights, 0, joint.getValues(), 0, q.size);
+        joint.normalize();
+        joint.setStatistics(tally.samples, tally.effectiveSampleSize(),
+                tally.halfWidth(getZ(confidence)), confidence);
+        joint.setRHat(tally.rHat);
+        return joint;
+    }
+
+    /**
+     * Draws samples for the given Query, spread over the threads, until
+     * the budget is spent or (if set) the target precision is reached or
+     * the deadline passes, and returns the merged Tally.
+     */
+    Tally sample(final Query q) {
+        final Deadline deadline = new Deadline(deadlineMillis);
+        SplittableRandom root = (seed == null) ? new SplittableRandom() : new SplittableRandom(seed);
+        Sampler sampler = newSampler(q, root.split());
+        int shards = getShardCount();
+        Shard[] shard = new Shard[shards];
+        Tally[] tallies = new Tally[shards];
+        for (int k = 0; k < shards; k++){
+            shard[k] = sampler.newShard(root.split());
+            tallies[k] = new Tally(q.size);
+        }
+        boolean anytime = isAnytime();
+        double z = getZ(confidence);
+        int poolSize = Math.min(shards, threads);
+        ExecutorService pool = (poolSize > 1) ? getPool(poolSize) : null;
+        long drawn = 0;
+        long round = anytime ? (long)FIRST_ROUND * shards : limit;
+        while (true){
+            int samples = (int)Math.min(round, limit - drawn);
+            runRound(pool, shard, tallies, samples, deadline);
+            Tally result = merge(tallies, q.size);
+            // fewer than asked for, if the deadline cut the round short
+            drawn = result.samples;
+            boolean enough = sampler.diagnose(result);
+            if (drawn >= limit || !anytime || enough
+                || (targetHalfWidth > 0 && result.halfWidth(z) <= targetHalfWidth)
+                || deadline.hasPassed()){
+                return result;
+            }
+            round = Math.min(round * 2, (long)MAX_ROUND * shards);
+        }
+    }
+
+    /**
+     * Returns this inferencer's pool, with the given number of threads,
+     * so that queries after the first don't pay for starting threads. The
+     * threads are daemons and stop when they have been idle for a while,
+     * so an inferencer that's no longer used holds on to none, and never
+     * keeps the JVM from exiting.
+     */
+    private ExecutorService getPool(int size) {
+        if (pool == null){
+            pool = new ThreadPoolExecutor(size, size, KEEP_ALIVE, TimeUnit.SECONDS,
+                                          new LinkedBlockingQueue<Runnable>(), DAEMONS);
+            pool.allowCoreThreadTimeOut(true);
+        } else if (size > pool.getMaximumPoolSize()){
+            pool.setMaximumPoolSize(size);
+            pool.setCorePoolSize(size);
+        } else if (size < pool.getMaximumPoolSize()){
+            pool.setCorePoolSize(size);
+            pool.setMaximumPoolSize(size);
+        }
+        return pool;
+    }
+
+    /**
+     * Returns the number of shards to split the samples into: by default
+     * one per thread.
+     */
+    int getShardCount() {
+        return Math.max(1, Math.min(threads, limit));
+    }
+
+    /**
+     * Returns whether to sample in rounds, stopping when the samples are
+     * good enough, rather than spending the whole budget at once.
+     */
+    boolean isAnytime() {
+        return targetHalfWidth > 0 || deadlineMillis > 0;
+    }
+
+    /**
+     * Runs every shard on its share of the given number of samples, on
+     * the given pool (or one after the other right here if there is no
+     * pool), until the given Deadline.
+     */
+    private void runRound(ExecutorService pool, final Shard[] shard, final Tally[] tallies, int samples,
+                          final Deadline deadline) {
+        int shards = shard.length;
+        if (pool == null){
+            for (int k = 0; k < shards; k++){
+                shard[k].run(getShare(samples, shards, k), tallies[k], deadline);
+            }
+            return;
+        }
+        List<Callable<Void>> tasks = new ArrayList<>(shards);
+        for (int k = 0; k < shards; k++){
+            final int n = getShare(samples, shards, k);
+            final int i = k;
+            tasks.add(new Callable<Void>() {
+                public Void call() {
+                    shard[i].run(n, tallies[i], deadline);
+                    return null;
+                }
+            });
+        }
+        try {
+            for (Future<Void> future : pool.invokeAll(tasks)){
+                future.get();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ex);
+        } catch (ExecutionException ex) {
+            throw new RuntimeException(ex.getCause());
+        }
+    }
+
+    /**
+     * Returns how many of the given number of samples shard k of the
+     * given number draws, spreading the remainder over the first shards.
+     */
+    private static int getShare(int samples, int shards, int k) {
+        return samples / shards + ((k < samples % shards) ? 1 : 0);
+    }
+
+    /**
+     * Returns a new Tally with the totals of the given ones, added in order.
+     */
+    private static Tally merge(Tally[] tallies, int size) {
+        Tally result = new Tally(size);
+        for (Tally tally : tallies){
+            result.merge(tally);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of standard deviations either side of the mean
+     * that a normal distribution has the given probability of falling
+     * within. Uses the rational approximation of Abramowitz and Stegun
+     * 26.2.23, which is good to about 4.5e-4.
+     */
+    static double getZ(double confidence) {
+        double p = (1 - confidence) / 2;
+        double t = Math.sqrt(-2 * Math.log(p));
+        return t - (2.515517 + 0.802853 * t + 0.010328 * t * t)
+            / (1 + 1.432788 * t + 0.189269 * t * t + 0.001308 * t * t * t);
+    }
+
+}
@@ -0,0 +1,109 @@
+package bn.inference;
+
+/**
+ * The running totals of a sampling run: the total weight of the samples
+ * with each combination of values of the query variables (in counting
+ * order), plus the totals needed to judge how much the samples are worth.
+ * Each thread of a SamplingInferencer fills in its own Tally, and they are
+ * merged at the end.
+ */
+class Tally {
+
+    /**
+     * The total weight of the samples with each combination of query values.
+     */
+    final double[] weights;
+
+    /**
+     * The total weight of all the samples.
+     */
+    double total;
+
+    /**
+     * The total of the squares of the weights of all the samples.
+     */
+    double totalSquares;
+
+    /**
+     * The number of samples drawn, including rejected (zero weight) ones.
+     */
+    long samples;
+
+    /**
+     * The Gelman-Rubin R-hat of the Markov chains that drew the samples,
+     * and their effective sample size, if the Sampler worked them out
+     * (otherwise NaN).
+     */
+    double rHat = Double.NaN;
+    double chainEffectiveSampleSize = Double.NaN;
+
+    Tally(int size) {
+        weights = new double[size];
+    }
+
+    /**
+     * Records a sample with the given combination of query values and the
+     * given weight.
+     */
+    void add(int cell, double w) {
+        weights[cell] += w;
+        total += w;
+        totalSquares += w * w;
+        samples++;
+    }
+
+    /**
+     * Records a rejected sample.
+     */
+    void reject() {
+        samples++;
+    }
+
+    /**
+     * Adds the totals of the given Tally to this one.
+     */
+    void merge(Tally other) {
+        for (int k = 0; k < weights.length; k++){
+            weights[k] += other.weights[k];
+        }
+        total += other.total;
+        totalSquares += other.totalSquares;
+        samples += other.samples;
+    }
+
+    /**
+     * Returns the (Kish) effective sample size of the weighted samples,
+     * (total weight)^2 / (total of squared weights). For unweighted
+     * samples this is the number of accepted samples. If the samples come
+     * from Markov chains whose effective sample size is known, that is
+     * returned instead, since the states of a chain aren't independent.
+     */
+    double effectiveSampleSize() {
+        if (!Double.isNaN(chainEffectiveSampleSize)){
+            return chainEffectiveSampleSize;
+        }
+        return (totalSquares > 0) ? total * total / totalSquares : 0.0;
+    }
+
+    /**
+     * Returns the largest half-width, over the combinations of query
+     * values, of the normal-approximation confidence interval for the
+     * estimated probability, with the given number of standard deviations
+     * (z). Infinite if there are no accepted samples yet.
+     */
+    double halfWidth(double z) {
+        double ess = effectiveSampleSize();
+        if (ess < 1){
+            return Double.POSITIVE_INFINITY;
+        }
+        double max = 0.0;
+        for (double w : weights){
+            double p = w / total;
+            max = Math.max(max, z * Math.sqrt(p * (1 - p) / ess));
+        }
+        // an estimate of 0 or 1 from few samples is not that certain:
+        // never claim better than the ``rule of three'' allows
+        return Math.max(max, Math.min(1.0, 3.0 / ess));
+    }
+
+}
@@ -0,0 +1,73 @@
+package bn.inference;
+
+import java.util.SplittableRandom;
+
+/**
+ * Where the uniform numbers that drive the batch samplers (likelihood
+ * weighting and rejection sampling) come from.
+ * <p>
+ * Each sample uses one uniform number per sampled variable, taken in the
+ * topological order of the variables, so a sample is a point in the unit
+ * cube with one dimension per variable. Plain pseudo-random points are
+ * independent of each other, and the error of the estimate goes down as
+ * one over the square root of the number of samples. Spreading the points
+ * out more evenly than that can do better for the same number of samples.
+ * <p>
+ * The error bound reported with the result assumes independent samples,
+ * so with the other sources it is conservative.
+ */
+public enum UniformSource {
+
+    /**
+     * Independent pseudo-random numbers.
+     */
+    PSEUDO_RANDOM {
+        Uniforms newUniforms(int dimensions, SplittableRandom random) {
+            return new Uniforms.PseudoRandom(random);
+        }
+    },
+
+    /**
+     * Each batch of n samples splits the first dimension (the first
+     * variable sampled) into n equal strata and puts one sample in each;
+     * the other dimensions are pseudo-random. Only the first dimension is
+     * stratified: doing the same to every dimension would put sample k in
+     * stratum k of all of them, so the variables would be drawn in
+     * lockstep. Stratifying every dimension with the strata matched up at
+     * random is what LATIN_HYPERCUBE does.
+     */
+    STRATIFIED {
+        Uniforms newUniforms(int dimensions, SplittableRandom random) {
+            return new Uniforms.Stratified(random);
+        }
+    },
+
+    /**
+     * Each batch of n samples is a Latin hypercube: every dimension is
+     * split into n equal strata with one sample in each, the strata being
+     * matched up at random across dimensions.
+     */
+    LATIN_HYPERCUBE {
+        Uniforms newUniforms(int dimensions, SplittableRandom random) {
+            return new Uniforms.LatinHypercube(random);
+        }
+    },
+
+    /**
+     * The Halton sequence, with the digits of each dimension randomly
+     * permuted and a random shift (so each thread gets an independent
+     * randomization, and the estimate is unbiased).
+     */
+    HALTON {
+        Uniforms newUniforms(int dimensions, SplittableRandom random) {
+            return new Uniforms.Halton(dimensions, random);
+        }
+    };
+
+    /**
+     * Returns the uniform numbers for one thread, for samples with the
+     * given number of dimensions, randomized with the given generator.
+     */
+    abstract Uniforms newUniforms(int dimensions, SplittableRandom random);
+
+}
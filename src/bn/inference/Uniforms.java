@@ -0,0 +1,217 @@
+package bn.inference;
+
+import java.util.SplittableRandom;
+
+/**
+ * The uniform numbers used by one thread of a batch sampler (see
+ * UniformSource). For each batch, next() is called with the number of
+ * samples, then fill() once per dimension, in order.
+ */
+abstract class Uniforms {
+
+    private double[] all = new double[0];
+
+    /**
+     * Starts a batch of the given number of samples.
+     */
+    void next(int n) {
+    }
+
+    /**
+     * Fills in the first n entries of u with the given coordinate of the
+     * samples of the current batch.
+     */
+    abstract void fill(int dimension, double[] u, int n);
+
+    /**
+     * Fills in the first m entries of u with the given coordinate of the
+     * samples of the current batch (of n) whose indexes are the first m
+     * entries of index, in increasing order. This is for when the other
+     * samples have been rejected. By default the coordinate of every
+     * sample is worked out and the wanted ones picked out.
+     */
+    void fill(int dimension, double[] u, int[] index, int m, int n) {
+        if (all.length < n){
+            all = new double[n];
+        }
+        fill(dimension, all, n);
+        for (int k = 0; k < m; k++){
+            u[k] = all[index[k]];
+        }
+    }
+
+    /**
+     * Independent pseudo-random numbers.
+     */
+    static class PseudoRandom extends Uniforms {
+        final SplittableRandom random;
+
+        PseudoRandom(SplittableRandom random) {
+            this.random = random;
+        }
+
+        void fill(int dimension, double[] u, int n) {
+            for (int k = 0; k < n; k++){
+                u[k] = random.nextDouble();
+            }
+        }
+
+        /**
+         * The samples are independent, so there's no need to draw numbers
+         * for the rejected ones.
+         */
+        void fill(int dimension, double[] u, int[] index, int m, int n) {
+            fill(dimension, u, m);
+        }
+    }
+
+    /**
+     * One pseudo-random number in each of n equal strata of the first
+     * dimension, pseudo-random numbers for the others.
+     */
+    static class Stratified extends PseudoRandom {
+
+        Stratified(SplittableRandom random) {
+            super(random);
+        }
+
+        void fill(int dimension, double[] u, int n) {
+            if (dimension > 0){
+                super.fill(dimension, u, n);
+                return;
+            }
+            for (int k = 0; k < n; k++){
+                u[k] = (k + random.nextDouble()) / n;
+            }
+        }
+
+        void fill(int dimension, double[] u, int[] index, int m, int n) {
+            if (dimension > 0){
+                super.fill(dimension, u, index, m, n);
+                return;
+            }
+            for (int k = 0; k < m; k++){
+                u[k] = (index[k] + random.nextDouble()) / n;
+            }
+        }
+    }
+
+    /**
+     * One pseudo-random number in each of n equal strata of every
+     * dimension, in a random order for each dimension.
+     */
+    static class LatinHypercube extends Uniforms {
+        private final SplittableRandom random;
+        private int[] strata = new int[0];
+
+        LatinHypercube(SplittableRandom random) {
+            this.random = random;
+        }
+
+        void next(int n) {
+            if (strata.length < n){
+                strata = new int[n];
+            }
+        }
+
+        void fill(int dimension, double[] u, int n) {
+            // a fresh random permutation of the strata (Fisher-Yates)
+            for (int k = 0; k < n; k++){
+                int j = random.nextInt(k + 1);
+                strata[k] = strata[j];
+                strata[j] = k;
+            }
+            for (int k = 0; k < n; k++){
+                u[k] = (strata[k] + random.nextDouble()) / n;
+            }
+        }
+    }
+
+    /**
+     * The Halton sequence: coordinate j of point i is the radical inverse of
+     * i in the base of the jth prime, i.e., its digits in that base
+     * mirrored about the point. In high dimensions the plain sequence has
+     * long runs of correlated coordinates, so the digits of each dimension
+     * (other than 0) are randomly permuted, and each dimension is shifted
+     * by a random amount (modulo 1).
+     */
+    static class Halton extends Uniforms {
+        private final int[] bases;
+        private final int[][] digits;
+        private final double[] shifts;
+        private long index = 0;
+        private long start = 0;
+
+        Halton(int dimensions, SplittableRandom random) {
+            bases = getPrimes(dimensions);
+            digits = new int[dimensions][];
+            shifts = new double[dimensions];
+            for (int j = 0; j < dimensions; j++){
+                int b = bases[j];
+                digits[j] = new int[b];
+                for (int d = 1; d < b; d++){
+                    int k = 1 + random.nextInt(d);
+                    digits[j][d] = digits[j][k];
+                    digits[j][k] = d;
+                }
+                shifts[j] = random.nextDouble();
+            }
+        }
+
+        void next(int n) {
+            start = index;
+            index += n;
+        }
+
+        void fill(int dimension, double[] u, int n) {
+            for (int k = 0; k < n; k++){
+                u[k] = coordinate(dimension, start + k);
+            }
+        }
+
+        void fill(int dimension, double[] u, int[] index, int m, int n) {
+            for (int k = 0; k < m; k++){
+                u[k] = coordinate(dimension, start + index[k]);
+            }
+        }
+
+        /**
+         * Returns the given coordinate of point i.
+         */
+        private double coordinate(int dimension, long i) {
+            int b = bases[dimension];
+            int[] perm = digits[dimension];
+            double inverse = 1.0 / b;
+            double x = shifts[dimension];
+            double scale = inverse;
+            while (i > 0){
+                x += perm[(int)(i % b)] * scale;
+                i /= b;
+                scale *= inverse;
+            }
+            return (x >= 1.0) ? x - 1.0 : x;
+        }
+
+        /**
+         * Returns the first n primes.
+         */
+        private static int[] getPrimes(int n) {
+            int[] primes = new int[n];
+            int count = 0;
+            for (int candidate = 2; count < n; candidate++){
+                boolean prime = true;
+                for (int k = 0; k < count && primes[k] * primes[k] <= candidate; k++){
+                    if (candidate % primes[k] == 0){
+                        prime = false;
+                        break;
+                    }
+                }
+                if (prime){
+                    primes[count++] = candidate;
+                }
+            }
+            return primes;
+        }
+    }
+
+}
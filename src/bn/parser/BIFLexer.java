@@ -8,6 +8,8 @@
 package bn.parser;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 
 /**
  * Scanner for the Bison-generate BIFParser.
@@ -15,22 +17,65 @@ import java.io.*;
  * class</q> (Bison manual, Section 10.2.5).
  * Token values are accessible as public static final ints in the
  * parser class.
+ * <p>
+ * The scanner works on the bytes of the input in a ByteBuffer, which may
+ * be a memory-mapped file, rather than on characters, so nothing has to be
+ * decoded or copied except the words that are returned as Strings.
+ * Keywords are matched in place, and words that have been seen before
+ * are looked up in a small cache rather than made into new Strings.
+ * Numbers are parsed straight from the bytes: the value of the last one
+ * is available as a double from {@link #getNumber}, and only
+ * DECIMAL_LITERALs have a (boxed) semantic value, since the number of
+ * values of a variable is given by one.
  */
 public class BIFLexer implements BIFParser.Lexer {
 
     /**
      * Construct and return a new BIFLexer reading from the given
-     * InputStream. It would be easy to add variations on this,
-     * or even make it so you could change the input on the fly.
+     * InputStream, which is read to the end first.
      */
-    public BIFLexer(InputStream input) {
-	this.input = new PushbackReader(new InputStreamReader(input));
+    public BIFLexer(InputStream input) throws IOException {
+	this(readFully(input));
     }
 
     /**
-     * The input to this BIFLxer, as a PushbackReader.
+     * Construct and return a new BIFLexer reading the bytes from the given
+     * ByteBuffer's position to its limit.
      */
-    protected PushbackReader input;
+    public BIFLexer(ByteBuffer input) {
+	this.input = input;
+	this.pos = input.position();
+	this.limit = input.limit();
+    }
+
+    /**
+     * The input to this BIFLexer, and the position of the next byte.
+     */
+    protected ByteBuffer input;
+    protected int pos;
+    protected int limit;
+
+    /**
+     * Returns a ByteBuffer holding everything read from the given
+     * InputStream.
+     */
+    protected static ByteBuffer readFully(InputStream input) throws IOException {
+	byte[] bytes = new byte[1 << 16];
+	int length = 0;
+	while (true) {
+	    if (length == bytes.length) {
+		byte[] bigger = new byte[2 * bytes.length];
+		System.arraycopy(bytes, 0, bigger, 0, length);
+		bytes = bigger;
+	    }
+	    int n = input.read(bytes, length, bytes.length - length);
+	    if (n < 0) {
+		break;
+	    }
+	    length += n;
+	}
+	return ByteBuffer.wrap(bytes, 0, length);
+    }
 
     /**
      * Lexer method: Used to report an error message.
@@ -55,291 +100,312 @@ public class BIFLexer implements BIFParser.Lexer {
     }
 
     /**
-     * Buffer used while reading tokens.
+     * The value of the last number scanned.
      */
-    protected StringBuilder buf = new StringBuilder();
+    protected double number;
+
+    /**
+     * Return the value of the last DECIMAL_LITERAL or
+     * FLOATING_POINT_LITERAL scanned.
+     */
+    public double getNumber() {
+	return number;
+    }
+
+    /**
+     * Keywords, in lowercase, and their tokens.
+     */
+    protected static final byte[][] KEYWORDS = {
+	ascii("network"), ascii("variable"), ascii("probability"),
+	ascii("property"), ascii("type"), ascii("discrete"),
+	ascii("default"), ascii("table")
+    };
+    protected static final int[] KEYWORD_TOKENS = {
+	BIFParser.NETWORK, BIFParser.VARIABLE, BIFParser.PROBABILITY,
+	BIFParser.PROPERTY, BIFParser.VARIABLETYPE, BIFParser.DISCRETE,
+	BIFParser.DEFAULTVALUE, BIFParser.TABLEVALUES
+    };
+
+    private static byte[] ascii(String str) {
+	return str.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Cache of the words seen so far, by hash of their bytes.
+     */
+    protected String[] words = new String[1024];
+
+    /**
+     * Scratch space for decoding ASCII words.
+     */
+    protected char[] chars = new char[64];
 
     /**
      * Lexer method: Return the next token and set yylval appropriately.
      * Returns 0 on EOF, -1 or error, otherwise a token code (>0).
      */
     public int yylex() throws IOException {
-	trace("yylex: scanning...");
-	int i;
-	char ch;
+	int ch;
 	// Whitespace, comments, and ignorables
 	while (true) {
-	    i = readChar();
-	    if (i == -1) {
+	    if (pos >= limit) {
 		return BIFParser.EOF;
 	    }
-	    ch = (char)i;
+	    ch = input.get(pos++);
 	    if (ch == ' ' || ch == '\t' || ch == '\n' || ch == '\r' ||
 		ch == ',' || ch == '|') {
 		continue;
-	    } else if (ch == '/') {
-		int i2 = readChar();
-		if (i != -1) {
-		    char c2 = (char)i2;
-		    if (c2 == '/') {
-			// C++-type comment: skip to end of line
-			do {
-			    i = readChar();
-			    if (i == -1) {
-				break;
-			    }
-			    ch = (char)i;
-			} while (ch != '\n');
-			continue;
-		    } else if (c2 == '*') {
-			// C-type comment: skip to "*/"
-			boolean star = false;
-			while (true) {
-			    i = readChar();
-			    if (i == -1) {
-				break;
-			    }
-			    ch = (char)i;
-			    if (ch == '/' && star) {
-				continue;
-			    } else if (ch == '*') {
-				star = true;
-			    } else {
-				star = false;
-			    }
-			}
-			continue;
+	    } else if (ch == '/' && pos < limit && input.get(pos) == '/') {
+		// C++-type comment: skip to end of line
+		while (pos < limit && input.get(pos++) != '\n') {
+		}
+		continue;
+	    } else if (ch == '/' && pos < limit && input.get(pos) == '*') {
+		// C-type comment: skip to "*/"
+		pos++;
+		boolean star = false;
+		while (pos < limit) {
+		    ch = input.get(pos++);
+		    if (ch == '/' && star) {
+			break;
 		    }
-		    unreadChar(c2);
-		    break;
+		    star = (ch == '*');
 		}
+		continue;
 	    } else {
 		break;
 	    }
 	}
-	trace("yylex: ch='" + ch + "'");
 	if (ch == ';' || ch == '{' || ch == '}' ||
 	    ch == '(' || ch == ')' || ch == '[' || ch == ']') {
-	    trace("yylex: returning punctuation: " + ch);
 	    return ch;
 	} else if (isDigit(ch) || ch == '.') {
-	    // Number
-	    trace("yylex: reading number");
-	    int n = 0;		// integer or mantissa of float
-	    double f = 0.0;	// decimal fraction of float
-	    int e = 0;		// exponent of float if any
-	    boolean isFloat = false;
-	    if (isDigit(ch)) {
-		n = digitValue(ch);
-		while (true) {
-		    i = readChar();
-		    if (i != -1) {
-			ch = (char)i;
-			if (isDigit(ch)) {
-			    n = n * 10 + digitValue(ch);
-			} else {
-			    break;
-			}
-		    }
-		}
-	    }
-	    trace("yylex: read initial number: " + n);
-	    if (ch == '.') {
-		isFloat = true;
-		trace("yylex: reading fraction");
-		double pow = 10.0;
-		while (true) {
-		    i = readChar();
-		    if (i != -1) {
-			ch = (char)i;
-			if (isDigit(ch)) {
-			    f += digitValue(ch) / pow;
-			    pow *= 10;
-			} else {
-			    break;
-			}
-		    }
-		}
-		trace("yylex: read fraction: " + f);
-	    }
-	    if (n > 0 && (ch == 'e' || ch == 'E')) {
-		isFloat = true;
-		trace("yylex: reading exponent");
-		int sign = 1;
-		i = readChar();
-		if (i == -1) {
-		    error("bad exponent");
-		} else {
-		    ch = (char)i;
-		    if (ch == '+') {
-			sign = 1;
-		    } else if (ch == '-') {
-			sign = -1;
-		    } else {
-			unreadChar(ch);
-		    }
-		}
-		while (true) {
-		    i = readChar();
-		    if (i != -1) {
-			ch = (char)i;
-			if (isDigit(ch)) {
-			    e = e * 10 + digitValue(ch);
-			} else {
-			    break;
-			}
-		    }
-		}
-		e *= sign;
-		trace("yylex: read exponent: " + e);
-	    }
-	    unreadChar(ch);
-	    if (isFloat) {
-		double d = (n + f) * Math.pow(10, e);
-		yylval = new Double(d);
-		trace("yylex: returning FLOATING_POINT_LITERAL: " + yylval);
-		return BIFParser.FLOATING_POINT_LITERAL;
-	    } else {
-		yylval = new Integer(n);
-		trace("yylex: returning DECIMAL_LITERAL: " + yylval);
-		return BIFParser.DECIMAL_LITERAL;
-	    }
+	    return scanNumber(pos - 1);
 	} else if (!isLetter(ch)) {
-	    error("bad character: " + ch);
+	    error("bad character: " + (char)(ch & 0xff));
 	}
 	// Need to read a WORD (possibly a keyword)
-	buf.setLength(0);
-	buf.append(ch);
-	while (true) {
-	    i = readChar();
-	    if (i == -1) {
-		break;
-	    }
-	    ch = (char)i;
+	int start = pos - 1;
+	while (pos < limit) {
+	    ch = input.get(pos);
 	    if (!isLetter(ch) && !isDigit(ch)) {
-		unreadChar(ch);
 		break;
 	    }
-	    buf.append(ch);
-	    trace("yylex: storing character: " + ch);
+	    pos++;
 	}
-	String str = buf.toString();
-	// Check for keywords
-	if (str.equalsIgnoreCase("network")) {
-	    trace("yylex: returning NETWORK");
-	    return BIFParser.NETWORK;
-	} else if (str.equalsIgnoreCase("variable")) {
-	    trace("yylex: returning VARIABLE");
-	    return BIFParser.VARIABLE;
-	} else if (str.equalsIgnoreCase("probability")) {
-	    trace("yylex: returning PROBABILITY");
-	    return BIFParser.PROBABILITY;
-	} else if (str.equalsIgnoreCase("property")) {
+	int token = keyword(start, pos);
+	if (token == BIFParser.PROPERTY) {
 	    // Complication: spec says property is text up to semi-colon (yuck)
-	    while (true) {
-		buf.setLength(0);
-		i = readChar();
-		if (i == -1) {
-		    break;
-		}
-		ch = (char)i;
-		if (ch == ';') {
-		    break;
-		} else {
-		    buf.append(ch);
-		}
+	    start = pos;
+	    while (pos < limit && input.get(pos) != ';') {
+		pos++;
 	    }
-	    yylval = buf.toString();
-	    trace("yylex: returning PROPERTY");
-	    return BIFParser.PROPERTY;
-	} else if (str.equalsIgnoreCase("type")) {
-	    trace("yylex: returning VARABLETYPE");
-	    return BIFParser.VARIABLETYPE;
-	} else if (str.equalsIgnoreCase("discrete")) {
-	    trace("yylex: returning DISCRETE");
-	    return BIFParser.DISCRETE;
-	} else if (str.equalsIgnoreCase("default")) {
-	    trace("yylex: returning DEFAULTVALUE");
-	    return BIFParser.DEFAULTVALUE;
-	} else if (str.equalsIgnoreCase("table")) {
-	    trace("yylex: returning TABLEVALUES");
-	    return BIFParser.TABLEVALUES;
+	    yylval = decode(start, pos);
+	    if (pos < limit) {
+		pos++;
+	    }
+	    return token;
+	} else if (token != 0) {
+	    return token;
 	}
 	// Otherwise its a WORD
-	yylval = str;
-	trace("yylex: returning WORD: \"" + yylval + "\"");
+	yylval = word(start, pos);
 	return BIFParser.WORD;
     }
 
     /**
-     * Report an error by throwing a ParserException.
-     * Probably should do something different now that we're in bison.
+     * Returns the token of the keyword that the bytes from start to end
+     * spell (ignoring case), or 0 if they aren't a keyword.
      */
-    protected void error(String msg) throws ParserException {
-	msg = Integer.toString(lineNum) + ":" + Integer.toString(charNum) + ": " + msg;
-	throw new ParserException(msg);
+    protected int keyword(int start, int end) {
+	int length = end - start;
+	for (int k=0; k < KEYWORDS.length; k++) {
+	    byte[] keyword = KEYWORDS[k];
+	    if (keyword.length != length) {
+		continue;
+	    }
+	    int i = 0;
+	    while (i < length && (input.get(start + i) | 0x20) == keyword[i]) {
+		i++;
+	    }
+	    if (i == length) {
+		return KEYWORD_TOKENS[k];
+	    }
+	}
+	return 0;
     }
 
-    protected int lineNum = 1;
-    protected int charNum = 0;
-    protected int lastLineLen = 0;
+    /**
+     * Returns the String for the word in the bytes from start to end,
+     * from the cache if it's there.
+     */
+    protected String word(int start, int end) {
+	int hash = 0;
+	for (int i=start; i < end; i++) {
+	    hash = 31 * hash + input.get(i);
+	}
+	int slot = (hash ^ (hash >>> 16)) & (words.length - 1);
+	String cached = words[slot];
+	if (cached != null && cached.length() == end - start) {
+	    int i = 0;
+	    while (i < cached.length() && cached.charAt(i) == input.get(start + i)) {
+		i++;
+	    }
+	    if (i == cached.length()) {
+		return cached;
+	    }
+	}
+	String str = decode(start, end);
+	words[slot] = str;
+	return str;
+    }
 
     /**
-     * Read and return the next character from the input, keeping track
-     * of line and character locations for error reporting.
+     * Returns the String for the bytes from start to end, as UTF-8.
      */
-    protected int readChar() throws IOException {
-	int i = input.read();
-	if (i == -1) {
-	    trace("readChar: EOF");
-	    return i;
-	} else if (i == '\n') {
-	    lineNum += 1;
-	    lastLineLen = charNum;
-	    charNum = 0;
-	} else {
-	    charNum += 1;
+    protected String decode(int start, int end) {
+	int length = end - start;
+	if (chars.length < length) {
+	    chars = new char[Math.max(length, 2 * chars.length)];
 	}
-	trace("readChar: '" + (char)i + "' @ " + lineNum + ":" + charNum);
-	return i;
+	for (int i=0; i < length; i++) {
+	    byte b = input.get(start + i);
+	    if (b < 0) {
+		// not ASCII, so decode it properly
+		byte[] bytes = new byte[length];
+		for (int j=0; j < length; j++) {
+		    bytes[j] = input.get(start + j);
+		}
+		return new String(bytes, StandardCharsets.UTF_8);
+	    }
+	    chars[i] = (char)b;
+	}
+	return new String(chars, 0, length);
     }
 
     /**
-     * Push the given character back onto the input, keeping track
-     * of line and character locations for error reporting.
+     * Scans the number starting at the given position, sets number (and
+     * yylval for a DECIMAL_LITERAL), and returns its token. The digits
+     * are accumulated in a long with a decimal exponent; if there are
+     * at most 15 significant digits and the power of ten is at most 22,
+     * both are exact as doubles and one multiplication or division gives
+     * the correctly rounded result. Otherwise it's left to
+     * Double.parseDouble.
      */
-    protected void unreadChar(char ch) throws IOException {
-	input.unread(ch);
-	if (ch == '\n') {
-	    lineNum -=1;
-	    charNum = lastLineLen;
+    protected int scanNumber(int start) throws ParserException {
+	pos = start;
+	long mantissa = 0;
+	int digits = 0;
+	int scale = 0;
+	boolean isFloat = false;
+	int ch = 0;
+	while (pos < limit && isDigit(ch = input.get(pos))) {
+	    if (digits < 18) {
+		mantissa = mantissa * 10 + (ch - '0');
+		if (mantissa != 0) {
+		    digits++;
+		}
+	    } else {
+		scale++;
+		digits++;
+	    }
+	    pos++;
+	}
+	if (pos < limit && ch == '.') {
+	    isFloat = true;
+	    pos++;
+	    while (pos < limit && isDigit(ch = input.get(pos))) {
+		if (digits < 18) {
+		    mantissa = mantissa * 10 + (ch - '0');
+		    scale--;
+		    if (mantissa != 0) {
+			digits++;
+		    }
+		} else {
+		    digits++;
+		}
+		pos++;
+	    }
+	}
+	int exponent = 0;
+	if (pos < limit && (ch == 'e' || ch == 'E')) {
+	    isFloat = true;
+	    pos++;
+	    int sign = 1;
+	    if (pos < limit && (input.get(pos) == '+' || input.get(pos) == '-')) {
+		sign = (input.get(pos) == '-') ? -1 : 1;
+		pos++;
+	    }
+	    if (pos >= limit || !isDigit(input.get(pos))) {
+		error("bad exponent");
+	    }
+	    while (pos < limit && isDigit(ch = input.get(pos))) {
+		exponent = Math.min(exponent * 10 + (ch - '0'), 100000);
+		pos++;
+	    }
+	    exponent *= sign;
+	}
+	if (!isFloat) {
+	    if (digits > 9 || mantissa > Integer.MAX_VALUE) {
+		error("integer too large");
+	    }
+	    number = mantissa;
+	    yylval = Integer.valueOf((int)mantissa);
+	    return BIFParser.DECIMAL_LITERAL;
+	}
+	scale += exponent;
+	if (digits <= 15 && scale >= -22 && scale <= 22) {
+	    number = (scale < 0) ? mantissa / POWERS_OF_TEN[-scale] : mantissa * POWERS_OF_TEN[scale];
 	} else {
-	    charNum -= 1;
+	    number = Double.parseDouble(decode(start, pos));
 	}
-	trace("unreadChar: " + lineNum + ":" + charNum + ": " + ch);
+	yylval = null;
+	return BIFParser.FLOATING_POINT_LITERAL;
     }
 
     /**
-     * Return true if given character is a <q>letter</q> as defined by
-     * the BIF specification: {@code ["a"-"z","A"-"Z","_","-"]}.
+     * The powers of ten that are exact as doubles.
      */
-    protected boolean isLetter(char ch) {
-	return Character.isLetter(ch) || ch == '-' || ch == '_';
+    protected static final double[] POWERS_OF_TEN = {
+	1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+	1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    /**
+     * Report an error by throwing a ParserException.
+     * Probably should do something different now that we're in bison.
+     */
+    protected void error(String msg) throws ParserException {
+	// Work out where we are only when it's needed
+	int lineNum = 1;
+	int charNum = 0;
+	for (int i=input.position(); i < pos; i++) {
+	    if (input.get(i) == '\n') {
+		lineNum += 1;
+		charNum = 0;
+	    } else {
+		charNum += 1;
+	    }
+	}
+	msg = Integer.toString(lineNum) + ":" + Integer.toString(charNum) + ": " + msg;
+	throw new ParserException(msg);
     }
 
     /**
-     * Return true if given character is a decimal digit.
+     * Return true if given byte is a <q>letter</q> as defined by
+     * the BIF specification: {@code ["a"-"z","A"-"Z","_","-"]}.
+     * Bytes of non-ASCII (UTF-8) characters count as letters too.
      */
-    protected boolean isDigit(char ch) {
-	return Character.isDigit(ch);
+    protected boolean isLetter(int ch) {
+	return (ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z') ||
+	    ch == '-' || ch == '_' || ch < 0;
     }
 
     /**
-     * Return value of given character as a decimal digit (i.e., number
-     * from 0 to 9).
+     * Return true if given byte is a decimal digit.
      */
-    protected int digitValue(char ch) {
-	return Character.digit(ch, 10);
+    protected boolean isDigit(int ch) {
+	return ch >= '0' && ch <= '9';
     }
 
     /**
@@ -348,10 +414,8 @@ public class BIFLexer implements BIFParser.Lexer {
      * might work (for simple errors).
      */
     public void recoverFromError() throws IOException {
-	int i;
-	do {
-	    i = readChar();
-	} while (i != -1 && i != ';');
+	while (pos < limit && input.get(pos++) != ';') {
+	}
     }
 
     /**
@@ -72,14 +72,17 @@ package bn.parser;
 
 import bn.core.*;
 
-import java.io.FileInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 
 /**
  * A Bison parser, automatically generated from <tt>BIFParser.y</tt>.
@@ -432,7 +435,7 @@ public class BIFParser
     
 /* Line 351 of lalr1.java  */
 /* Line 382 of "BIFParser.y"  */
-    { defineProbability(((StringList)(yystack.valueAt (3-(2)))), ((ProbabilityContentEntryList)(yystack.valueAt (3-(3))))); };
+    { endProbability(); };
   break;
     
 
@@ -441,7 +444,7 @@ public class BIFParser
     
 /* Line 351 of lalr1.java  */
 /* Line 387 of "BIFParser.y"  */
-    { yyval = ((StringList)(yystack.valueAt (3-(2)))); };
+    { yyval = ((StringList)(yystack.valueAt (3-(2)))); beginProbability(((StringList)(yystack.valueAt (3-(2))))); };
   break;
     
 
@@ -472,84 +475,12 @@ public class BIFParser
   break;
     
 
-  case 26:
-  if (yyn == 26)
-    
-/* Line 351 of lalr1.java  */
-/* Line 400 of "BIFParser.y"  */
-    { yyval = ((ProbabilityContentEntryList)(yystack.valueAt (3-(2)))); };
-  break;
-    
-
-  case 27:
-  if (yyn == 27)
-    
-/* Line 351 of lalr1.java  */
-/* Line 404 of "BIFParser.y"  */
-    { yyval = null; };
-  break;
-    
-
-  case 28:
-  if (yyn == 28)
-    
-/* Line 351 of lalr1.java  */
-/* Line 405 of "BIFParser.y"  */
-    { yyval = ((ProbabilityDefaultEntry)(yystack.valueAt (1-(1)))); };
-  break;
-    
-
-  case 29:
-  if (yyn == 29)
-    
-/* Line 351 of lalr1.java  */
-/* Line 406 of "BIFParser.y"  */
-    { yyval = ((ProbabilityEntry)(yystack.valueAt (1-(1)))); };
-  break;
-    
-
-  case 30:
-  if (yyn == 30)
-    
-/* Line 351 of lalr1.java  */
-/* Line 407 of "BIFParser.y"  */
-    { yyval = ((ProbabilityTable)(yystack.valueAt (1-(1)))); };
-  break;
-    
-
-  case 31:
-  if (yyn == 31)
-    
-/* Line 351 of lalr1.java  */
-/* Line 411 of "BIFParser.y"  */
-    { yyval = new ProbabilityContentEntryList(); };
-  break;
-    
-
-  case 32:
-  if (yyn == 32)
-    
-/* Line 351 of lalr1.java  */
-/* Line 412 of "BIFParser.y"  */
-    { if (((ProbabilityContentEntry)(yystack.valueAt (2-(2)))) != null) { ((ProbabilityContentEntryList)(yystack.valueAt (2-(1)))).add(((ProbabilityContentEntry)(yystack.valueAt (2-(2))))); } };
-  break;
-    
-
   case 33:
   if (yyn == 33)
     
 /* Line 351 of lalr1.java  */
 /* Line 416 of "BIFParser.y"  */
-    { yyval = new ProbabilityEntry(((StringList)(yystack.valueAt (3-(1)))), ((DoubleList)(yystack.valueAt (3-(2))))); };
-  break;
-    
-
-  case 34:
-  if (yyn == 34)
-    
-/* Line 351 of lalr1.java  */
-/* Line 421 of "BIFParser.y"  */
-    { yyval = ((StringList)(yystack.valueAt (3-(2)))); };
+    { defineProbabilityEntry(); };
   break;
     
 
@@ -558,7 +489,7 @@ public class BIFParser
     
 /* Line 351 of lalr1.java  */
 /* Line 425 of "BIFParser.y"  */
-    { yyval = new StringList(); ((StringList)yyval).add(((String)(yystack.valueAt (1-(1))))); };
+    { beginProbabilityEntry(((String)(yystack.valueAt (1-(1))))); };
   break;
     
 
@@ -567,7 +498,7 @@ public class BIFParser
     
 /* Line 351 of lalr1.java  */
 /* Line 426 of "BIFParser.y"  */
-    { ((StringList)(yystack.valueAt (2-(1)))).add(((String)(yystack.valueAt (2-(2))))); yyval = ((StringList)(yystack.valueAt (2-(1)))); };
+    { addProbabilityEntryValue(((String)(yystack.valueAt (2-(2))))); };
   break;
     
 
@@ -576,7 +507,7 @@ public class BIFParser
     
 /* Line 351 of lalr1.java  */
 /* Line 431 of "BIFParser.y"  */
-    { yyval = new ProbabilityDefaultEntry(((DoubleList)(yystack.valueAt (3-(2))))); };
+    { defineProbabilityDefault(); };
   break;
     
 
@@ -585,7 +516,7 @@ public class BIFParser
     
 /* Line 351 of lalr1.java  */
 /* Line 436 of "BIFParser.y"  */
-    { yyval = new ProbabilityTable(((DoubleList)(yystack.valueAt (3-(2))))); };
+    { defineProbabilityTable(); };
   break;
     
 
@@ -594,7 +525,7 @@ public class BIFParser
     
 /* Line 351 of lalr1.java  */
 /* Line 441 of "BIFParser.y"  */
-    { yyval = new DoubleList(); ((DoubleList)yyval).add(((Double)(yystack.valueAt (1-(1))))); };
+    { numbers.size = 0; numbers.add(getNumber()); };
   break;
     
 
@@ -603,16 +534,7 @@ public class BIFParser
     
 /* Line 351 of lalr1.java  */
 /* Line 442 of "BIFParser.y"  */
-    { ((DoubleList)(yystack.valueAt (2-(1)))).add(((Double)(yystack.valueAt (2-(2))))); yyval = ((DoubleList)(yystack.valueAt (2-(1)))); };
-  break;
-    
-
-  case 41:
-  if (yyn == 41)
-    
-/* Line 351 of lalr1.java  */
-/* Line 447 of "BIFParser.y"  */
-    { yyval = ((Double)(yystack.valueAt (1-(1)))); };
+    { numbers.add(getNumber()); };
   break;
     
 
@@ -621,7 +543,7 @@ public class BIFParser
     
 /* Line 351 of lalr1.java  */
 /* Line 448 of "BIFParser.y"  */
-    { yyval = new Double(((Integer)(yystack.valueAt (1-(1)))).intValue()); };
+    { };
   break;
     
 
@@ -1298,10 +1220,41 @@ public class BIFParser
      * Invokes automatically-generated constructor that takes a Lexer
      * as parameter.
      */
-    public BIFParser(InputStream input) {
+    public BIFParser(InputStream input) throws IOException {
+	this(new BIFLexer(input));
+    }
+
+    /**
+     * Construct and return a new BIFParser whose input is the bytes from
+     * the given ByteBuffer's position to its limit (for example, a
+     * memory-mapped file).
+     */
+    public BIFParser(ByteBuffer input) {
 	this(new BIFLexer(input));
     }
 
+    /**
+     * Construct and return a new BIFParser whose input is the given
+     * file, which is memory-mapped rather than read.
+     */
+    public BIFParser(File file) throws IOException {
+	this(map(file));
+    }
+
+    /**
+     * Returns a read-only memory mapping of the given file (which can't be
+     * more than 2GB). The mapping stays valid after the file is closed.
+     */
+    protected static ByteBuffer map(File file) throws IOException {
+	RandomAccessFile raf = new RandomAccessFile(file, "r");
+	try {
+	    FileChannel channel = raf.getChannel();
+	    return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+	} finally {
+	    raf.close();
+	}
+    }
+
     /**
      * Attempt to recover from a parsing error. This is unlikely to
      * work in its current state, but what the hey.
@@ -1325,6 +1278,13 @@ public class BIFParser
 	}
     }
 
+    /**
+     * Returns the value of the last number scanned by the lexer.
+     */
+    protected double getNumber() {
+	return ((BIFLexer)yylexer).getNumber();
+    }
+
     /**
      * The BayesianNetwork being constructed by this BIFParser's
      * {@link BIFParser#parse} method.
@@ -1340,7 +1300,7 @@ public class BIFParser
 	if (argv.length == 0) {
 	    parser = new BIFParser(System.in);
 	} else {
-	    parser = new BIFParser(new FileInputStream(argv[0]));
+	    parser = new BIFParser(new File(argv[0]));
 	}
 	//System.out.println(parser.parse());
 	BayesianNetwork bn = parser.parseNetwork();
@@ -1350,37 +1310,20 @@ public class BIFParser
     // Classes used in semantic actions
     // (also can't use generic syntax in Bison %type declaration)
 
-    protected class DoubleList extends ArrayList<Double> {
-	public static final long serialVersionUID = 1L;
-    }
-    protected class StringList extends ArrayList<String> {
-	public static final long serialVersionUID = 1L;
-    }
-
-    abstract protected class ProbabilityContentEntry {
-    }
-    protected class ProbabilityEntry extends ProbabilityContentEntry {
-	public StringList values;
-	public DoubleList probabilities;
-	public ProbabilityEntry(StringList values, DoubleList probabilities) {
-	    this.values = values;
-	    this.probabilities = probabilities;
-	}
-    }
-    protected class ProbabilityDefaultEntry extends ProbabilityContentEntry {
-	public DoubleList values;
-	public ProbabilityDefaultEntry(DoubleList values) {
-	    this.values = values;
-	}
-    }
-    protected class ProbabilityTable extends ProbabilityContentEntry {
-	public DoubleList values;
-	public ProbabilityTable(DoubleList values) {
-	    this.values = values;
+    /**
+     * A list of doubles, kept as doubles.
+     */
+    protected class DoubleList {
+	public double[] values = new double[8];
+	public int size;
+	public void add(double value) {
+	    if (size == values.length) {
+		values = Arrays.copyOf(values, 2 * size);
+	    }
+	    values[size++] = value;
 	}
     }
-
-    protected class ProbabilityContentEntryList extends ArrayList<ProbabilityContentEntry> {
+    protected class StringList extends ArrayList<String> {
 	public static final long serialVersionUID = 1L;
     }
 
@@ -1418,99 +1361,203 @@ public class BIFParser
 	}
     }
 
+    // The probability block being parsed. The entries of a block are
+    // written straight into its CPT as they are parsed, a row at a time,
+    // so nothing is kept per entry or per probability.
+
+    /**
+     * The variable, parents and CPT of the current probability block.
+     */
+    protected RandomVariable probabilityVar;
+    protected List<RandomVariable> probabilityParents;
+    protected CPT probabilityCPT;
+
+    /**
+     * Which rows of the current CPT have been given by entries or a
+     * table, and the default row, if any.
+     */
+    protected boolean[] rowDefined;
+    protected double[] defaultRow;
+
+    /**
+     * The numbers of the last FloatingPointList, reused for every list.
+     */
+    protected DoubleList numbers = new DoubleList();
+
+    /**
+     * The indexes of the parents' values of the current entry, and how
+     * many have been seen so far.
+     */
+    protected int[] rowValues = new int[8];
+    protected int rowValueCount;
+
+    /**
+     * Scratch space for reordering a table.
+     */
+    protected double[] tableValues = new double[0];
+
     /**
-     * entries is a List of:
-     *  ProbabilityEntry
-     * or
-     *  ProbabilityDefaultEntry
-     * or
-     *  ProbabilityTable
-     *<p>
-     * Not sure how to handle errors here... Should check manual...
+     * Starts a probability block for the given variables: the first is
+     * the variable and the rest are its parents (if any).
      */
-    protected void defineProbability(StringList variableNames, ProbabilityContentEntryList entries) throws ParserException {
-	trace("defineProbability: " + variableNames);
+    protected void beginProbability(StringList variableNames) throws ParserException {
+	trace("beginProbability: " + variableNames);
 	if (network != null) {
 	    int nvars = variableNames.size();
-	    // bn.inference.TestExactInference variable
-	    String varName = variableNames.get(0);
-	    RandomVariable var = network.getVariableByName(varName);
-	    if (var == null) {
-		throw new ParserException("can't find variable: " + varName);
-	    }
-	    trace("defineProbability: for variable: " + var);
+	    RandomVariable var = findVariable(variableNames.get(0));
 	    // Conditioning variables (if any)
 	    List<RandomVariable> parents = new ArrayList<RandomVariable>(nvars-1);
-	    if (nvars > 0) {
-		for (String name : variableNames.subList(1, nvars)) {
-		    RandomVariable v = network.getVariableByName(name);
-		    if (v == null) {
-			throw new ParserException("can't find variable: " + name);
-		    } else {
-			parents.add(v);
-		    }
-		}
+	    for (String name : variableNames.subList(1, nvars)) {
+		parents.add(findVariable(name));
 	    }
-	    trace("defineProbability: parents: " + parents);
-	    // Probability distribution
-	    CPT cpt = new CPT(var, parents);
-	    for (ProbabilityContentEntry entry : entries) {
-		if (entry instanceof ProbabilityEntry) {
-		    ProbabilityEntry pe = (ProbabilityEntry)entry;
-		    // List of values for conditioning variables followed
-		    // by list of probabilities for the values of first variable
-		    Assignment x = new Assignment();
-		    Iterator<String> values = pe.values.iterator();
-		    for (RandomVariable pvar : parents) {
-			x.set(pvar, values.next());
-		    }
-		    Iterator<Double> ps = pe.probabilities.iterator();
-		    for (Object value : var.getDomain()) {
-			x.set(var, value);
-			double p = ps.next().doubleValue();
-			trace("defineProbability: entry: " + x + " = " + p);
-			cpt.set(x, p);
-		    }
-		} else if (entry instanceof ProbabilityDefaultEntry) {
-		    // Sorry...
-		    throw new ParserException("probability default not implemented!");
-		} else if (entry instanceof ProbabilityTable) {
-		    ProbabilityTable pt = (ProbabilityTable)entry;
-		    Iterator<Double> ptvalues = pt.values.iterator();
-		    // Values "in the counting order of the declared variables"
-		    // Note this is different than XMLBIF, which does the
-		    // ``given'' variable first, then the ``for'' variable
-		    for (Object firstVal : var.getDomain()) {
-			Assignment x = new Assignment();
-			x.put(var, firstVal);
-			defineProbabilityTableEntry(cpt, x, parents, ptvalues);
+	    probabilityVar = var;
+	    probabilityParents = parents;
+	    probabilityCPT = new CPT(var, parents);
+	    rowDefined = new boolean[probabilityCPT.size() / var.getDomain().size()];
+	    defaultRow = null;
+	    if (rowValues.length < nvars) {
+		rowValues = new int[nvars];
+	    }
+	}
+    }
+
+    /**
+     * Returns the variable with the given name.
+     * @throws ParserException if there isn't one
+     */
+    protected RandomVariable findVariable(String name) throws ParserException {
+	try {
+	    return network.getVariableByName(name);
+	} catch (NoSuchElementException ex) {
+	    throw new ParserException("can't find variable: " + name);
+	}
+    }
+
+    /**
+     * Starts the list of parents' values of an entry with the given value.
+     */
+    protected void beginProbabilityEntry(String value) throws ParserException {
+	rowValueCount = 0;
+	addProbabilityEntryValue(value);
+    }
+
+    /**
+     * Adds the given value of the next parent to the current entry.
+     */
+    protected void addProbabilityEntryValue(String value) throws ParserException {
+	if (network != null) {
+	    if (rowValueCount == probabilityParents.size()) {
+		throw new ParserException("too many values in entry for variable: " + probabilityVar.getName());
+	    }
+	    RandomVariable parent = probabilityParents.get(rowValueCount);
+	    int index = parent.getDomain().indexOf(value);
+	    if (index < 0) {
+		throw new ParserException("can't find value " + value + " of variable: " + parent.getName());
+	    }
+	    rowValues[rowValueCount++] = index;
+	}
+    }
+
+    /**
+     * Copies the numbers just parsed into the row of the current CPT for
+     * the parents' values just parsed.
+     */
+    protected void defineProbabilityEntry() throws ParserException {
+	if (network != null) {
+	    if (rowValueCount != probabilityParents.size()) {
+		throw new ParserException("too few values in entry for variable: " + probabilityVar.getName());
+	    }
+	    int card = probabilityVar.getDomain().size();
+	    checkProbabilityCount(card);
+	    int offset = 0;
+	    for (int i=0; i < rowValueCount; i++) {
+		offset += rowValues[i] * probabilityCPT.getStride(i);
+	    }
+	    probabilityCPT.setValues(offset, numbers.values, 0, card);
+	    rowDefined[offset / card] = true;
+	}
+    }
+
+    /**
+     * Keeps the numbers just parsed as the row for the rows of the
+     * current CPT that aren't given by entries.
+     */
+    protected void defineProbabilityDefault() throws ParserException {
+	if (network != null) {
+	    int card = probabilityVar.getDomain().size();
+	    checkProbabilityCount(card);
+	    defaultRow = Arrays.copyOf(numbers.values, card);
+	}
+    }
+
+    /**
+     * Copies the numbers just parsed into the current CPT as a whole
+     * table. Values are <q>in the counting order of the declared
+     * variables</q>. Note this is different than XMLBIF, which does the
+     * ``given'' variables first, then the ``for'' variable, so the table
+     * is transposed on the way in.
+     */
+    protected void defineProbabilityTable() throws ParserException {
+	if (network != null) {
+	    int size = probabilityCPT.size();
+	    checkProbabilityCount(size);
+	    int card = probabilityVar.getDomain().size();
+	    int rows = size / card;
+	    if (rows == 1) {
+		probabilityCPT.setValues(0, numbers.values, 0, size);
+	    } else {
+		if (tableValues.length < size) {
+		    tableValues = new double[size];
+		}
+		double[] values = numbers.values;
+		for (int x=0; x < card; x++) {
+		    for (int row=0; row < rows; row++) {
+			tableValues[row * card + x] = values[x * rows + row];
 		    }
 		}
+		probabilityCPT.setValues(0, tableValues, 0, size);
 	    }
-	    network.connect(var, parents, cpt);
+	    Arrays.fill(rowDefined, true);
 	}
     }
 
     /**
-     * Recursively traverses parents in the order they were declared (ie.,
-     * their order in the list), iterating through each of their values,
-     * assigning probabilities from ptvalues at the leaves.
+     * Checks that the last FloatingPointList had the given number of
+     * numbers.
      */
-    protected void defineProbabilityTableEntry(CPT cpt, Assignment x, List<RandomVariable> parents, Iterator<Double> ptvalues) {
-	if (parents.isEmpty()) {
-	    Double p = ptvalues.next().doubleValue();
-	    trace("defineProbabilityTableEntry: " + x + " = " + p);
-	    cpt.set(x, p);
-	} else {
-	    RandomVariable var = parents.get(0);
-	    for (Object value : var.getDomain()) {
-		x.put(var, value);
-		defineProbabilityTableEntry(cpt, x, parents.subList(1, parents.size()), ptvalues);
+    protected void checkProbabilityCount(int count) throws ParserException {
+	if (numbers.size != count) {
+	    throw new ParserException("expected " + count + " probabilities for variable " +
+				      probabilityVar.getName() + " but got " + numbers.size);
+	}
+    }
+
+    /**
+     * Finishes the current probability block by filling in the default
+     * row (if any) and connecting the variable to its parents.
+     */
+    protected void endProbability() throws ParserException {
+	if (network != null) {
+	    if (defaultRow != null) {
+		int card = defaultRow.length;
+		for (int row=0; row < rowDefined.length; row++) {
+		    if (!rowDefined[row]) {
+			probabilityCPT.setValues(row * card, defaultRow, 0, card);
+		    }
+		}
 	    }
-	    x.remove(var);
+	    defineProbability(probabilityVar, probabilityParents, probabilityCPT);
+	    probabilityCPT = null;
 	}
     }
-	    
+
+    /**
+     * Connects the given variable to its parents in the network being
+     * constructed, with the given (finished) CPT.
+     */
+    protected void defineProbability(RandomVariable var, List<RandomVariable> parents, CPT cpt) {
+	network.connect(var, parents, cpt);
+    }
 
     protected void trace(String msg) {
 	//System.err.println(msg);
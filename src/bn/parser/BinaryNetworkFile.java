@@ -0,0 +1,254 @@
+package bn.parser;
+
+import bn.core.BayesianNetwork;
+import bn.core.CPT;
+import bn.core.Domain;
+import bn.core.RandomVariable;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Reads and writes BayesianNetworks in a compact binary format, which
+ * can be memory-mapped and used as it is rather than parsed. The CPTs of
+ * a network read from a file are views of the mapped file (see
+ * {@link CPT#CPT(RandomVariable, List, DoubleBuffer)}), so reading one
+ * costs about as much as opening the file, and the tables are paged in
+ * from disk only as they are used. Such CPTs are read-only.
+ * <p>
+ * The format, all little-endian, is:
+ * <pre>
+ * "BNET" (4 bytes), version (int), number of variables n (int)
+ * n times: name (string), number of values k (int), k values (strings)
+ * n times: number of parents p (int, or -1 if no CPT), p parent indexes (ints)
+ * zero bytes up to a multiple of 8 from the start of the file
+ * the CPT of each variable (that has one), as doubles in CPT order
+ * </pre>
+ * where a string is its length in bytes (unsigned short) followed by its
+ * UTF-8 bytes, and variables are numbered in the order they are written.
+ */
+public class BinaryNetworkFile {
+
+    /**
+     * The bytes at the start of every file, and the current version.
+     */
+    protected static final byte[] MAGIC = { 'B', 'N', 'E', 'T' };
+    public static final int VERSION = 1;
+
+    /**
+     * Returns true if the first n bytes of the given array start the way
+     * a binary network file does.
+     */
+    public static boolean isBinaryNetwork(byte[] bytes, int n) {
+	if (n < MAGIC.length) {
+	    return false;
+	}
+	for (int i=0; i < MAGIC.length; i++) {
+	    if (bytes[i] != MAGIC[i]) {
+		return false;
+	    }
+	}
+	return true;
+    }
+
+    /**
+     * Reads a network from the given file, by mapping it into memory
+     * (so it can't be more than 2GB).
+     */
+    public static BayesianNetwork read(File file) throws IOException {
+	RandomAccessFile raf = new RandomAccessFile(file, "r");
+	try {
+	    FileChannel channel = raf.getChannel();
+	    // the mapping stays valid after the file is closed
+	    return read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+	} finally {
+	    raf.close();
+	}
+    }
+
+    /**
+     * Reads a network from the given buffer, from its position on. The
+     * CPTs of the network are views of the buffer.
+     */
+    public static BayesianNetwork read(ByteBuffer input) throws IOException {
+	ByteBuffer buffer = input.slice().order(ByteOrder.LITTLE_ENDIAN);
+	try {
+	    byte[] magic = new byte[MAGIC.length];
+	    buffer.get(magic);
+	    if (!isBinaryNetwork(magic, magic.length)) {
+		throw new ParserException("not a binary network");
+	    }
+	    int version = buffer.getInt();
+	    if (version != VERSION) {
+		throw new ParserException("binary network version " + version + " is not " + VERSION);
+	    }
+	    int n = buffer.getInt();
+	    BayesianNetwork network = new BayesianNetwork();
+	    RandomVariable[] vars = new RandomVariable[n];
+	    for (int i=0; i < n; i++) {
+		String name = readString(buffer);
+		int card = buffer.getInt();
+		Domain domain = new Domain(card);
+		for (int k=0; k < card; k++) {
+		    domain.add(readString(buffer));
+		}
+		vars[i] = new RandomVariable(name, domain);
+		network.add(vars[i]);
+	    }
+	    List<List<RandomVariable>> parents = new ArrayList<List<RandomVariable>>(n);
+	    for (int i=0; i < n; i++) {
+		int np = buffer.getInt();
+		if (np < 0) {
+		    parents.add(null);
+		    continue;
+		}
+		List<RandomVariable> list = new ArrayList<RandomVariable>(np);
+		for (int j=0; j < np; j++) {
+		    list.add(vars[buffer.getInt()]);
+		}
+		parents.add(list);
+	    }
+	    buffer.position((buffer.position() + 7) & ~7);
+	    DoubleBuffer doubles = buffer.slice().order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+	    for (int i=0; i < n; i++) {
+		if (parents.get(i) != null) {
+		    CPT cpt = new CPT(vars[i], parents.get(i), doubles);
+		    doubles.position(doubles.position() + cpt.size());
+		    network.connect(vars[i], parents.get(i), cpt);
+		}
+	    }
+	    return network;
+	} catch (BufferUnderflowException ex) {
+	    throw new ParserException("binary network is truncated");
+	} catch (IndexOutOfBoundsException ex) {
+	    throw new ParserException("binary network is corrupt");
+	} catch (IllegalArgumentException ex) {
+	    throw new ParserException("binary network is truncated");
+	}
+    }
+
+    /**
+     * Writes the given network to the given file.
+     */
+    public static void write(BayesianNetwork network, File file) throws IOException {
+	List<RandomVariable> vars = network.getVariableList();
+	Map<RandomVariable,Integer> index = new HashMap<RandomVariable,Integer>();
+	for (int i=0; i < vars.size(); i++) {
+	    index.put(vars.get(i), i);
+	}
+	FileOutputStream output = new FileOutputStream(file);
+	try {
+	    Writer out = new Writer(output.getChannel());
+	    out.put(MAGIC);
+	    out.putInt(VERSION);
+	    out.putInt(vars.size());
+	    for (RandomVariable var : vars) {
+		out.putString(var.getName());
+		Domain domain = var.getDomain();
+		out.putInt(domain.size());
+		for (Object value : domain) {
+		    out.putString(value.toString());
+		}
+	    }
+	    for (RandomVariable var : vars) {
+		BayesianNetwork.Node node = network.getNodeForVariable(var);
+		if (node.cpt == null) {
+		    out.putInt(-1);
+		    continue;
+		}
+		out.putInt(node.parents.size());
+		for (BayesianNetwork.Node parent : node.parents) {
+		    out.putInt(index.get(parent.variable));
+		}
+	    }
+	    while (out.position % 8 != 0) {
+		out.put(new byte[] { 0 });
+	    }
+	    double[] chunk = new double[1024];
+	    for (RandomVariable var : vars) {
+		CPT cpt = network.getNodeForVariable(var).cpt;
+		if (cpt == null) {
+		    continue;
+		}
+		for (int start=0; start < cpt.size(); start += chunk.length) {
+		    int length = Math.min(chunk.length, cpt.size() - start);
+		    cpt.getValues(start, chunk, 0, length);
+		    out.putDoubles(chunk, length);
+		}
+	    }
+	    out.flush();
+	} finally {
+	    output.close();
+	}
+    }
+
+    private static String readString(ByteBuffer buffer) {
+	byte[] bytes = new byte[buffer.getShort() & 0xffff];
+	buffer.get(bytes);
+	return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes little-endian values to a channel through a buffer.
+     */
+    private static class Writer {
+	final FileChannel channel;
+	final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+	long position;
+
+	Writer(FileChannel channel) {
+	    this.channel = channel;
+	}
+
+	void ensure(int bytes) throws IOException {
+	    if (buffer.remaining() < bytes) {
+		flush();
+	    }
+	}
+
+	void flush() throws IOException {
+	    buffer.flip();
+	    while (buffer.hasRemaining()) {
+		channel.write(buffer);
+	    }
+	    buffer.clear();
+	}
+
+	void put(byte[] bytes) throws IOException {
+	    ensure(bytes.length);
+	    buffer.put(bytes);
+	    position += bytes.length;
+	}
+
+	void putInt(int value) throws IOException {
+	    ensure(4);
+	    buffer.putInt(value);
+	    position += 4;
+	}
+
+	void putString(String str) throws IOException {
+	    byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+	    if (bytes.length > 0xffff) {
+		throw new IOException("name too long: " + str);
+	    }
+	    ensure(2);
+	    buffer.putShort((short)bytes.length);
+	    position += 2;
+	    put(bytes);
+	}
+
+	void putDoubles(double[] values, int length) throws IOException {
+	    ensure(8 * length);
+	    buffer.asDoubleBuffer().put(values, 0, length);
+	    buffer.position(buffer.position() + 8 * length);
+	    position += 8 * length;
+	}
+    }
+
+}
@@ -0,0 +1,420 @@
+package bn.parser;
+
+import bn.core.BayesianNetwork;
+import bn.core.CPT;
+import bn.core.RandomVariable;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Parses BIF files in two phases, so that the probability blocks, where
+ * nearly all of the time goes in a large file, can be parsed in parallel.
+ * <p>
+ * First the whole input is parsed by a BIFParser whose lexer steps over
+ * every top-level {@code probability} block without scanning its
+ * contents, noting where it starts and ends. This defines all the
+ * variables. Then the probability blocks are split into runs of about
+ * the same size, and each run is parsed by its own BIFParser on a thread
+ * pool, straight into new CPTs. Nothing is added to the network while the
+ * runs are parsed, since they only look variables up; the variables are
+ * connected to their parents afterwards, in the order of the file.
+ * <p>
+ * Since the variables are all defined first, probability blocks may come
+ * before the variables they mention, unlike with BIFParser alone.
+ * <p>
+ * In lazy mode (see {@link #setLazy}), only the variable lists at the
+ * heads of the probability blocks are read, to connect the variables to
+ * their parents, and each variable gets a CPT whose values are parsed
+ * from its block the first time they are needed (see CPT.Source). So
+ * loading costs only as much as the structure of the network, and a
+ * query only pays for the CPTs it uses. The input has to stay around
+ * until then, which is cheap when it's a memory-mapped file.
+ */
+public class ParallelBIFParser {
+
+    /**
+     * Construct and return a new ParallelBIFParser whose input is the
+     * bytes from the given ByteBuffer's position to its limit.
+     */
+    public ParallelBIFParser(ByteBuffer input) {
+	this.input = input;
+    }
+
+    /**
+     * Construct and return a new ParallelBIFParser whose input is the
+     * given InputStream, which is read to the end first.
+     */
+    public ParallelBIFParser(InputStream input) throws IOException {
+	this(BIFLexer.readFully(input));
+    }
+
+    /**
+     * Construct and return a new ParallelBIFParser whose input is the
+     * given file, which is memory-mapped rather than read.
+     */
+    public ParallelBIFParser(File file) throws IOException {
+	this(BIFParser.map(file));
+    }
+
+    protected ByteBuffer input;
+
+    /**
+     * How many threads to parse probability blocks on.
+     */
+    protected int threads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Inputs with fewer bytes of probability blocks than this are parsed
+     * on the calling thread: starting threads would take longer.
+     */
+    public static final int MIN_PARALLEL_BYTES = 1 << 18;
+
+    /**
+     * Whether to leave the parsing of each probability block until its
+     * CPT is needed.
+     */
+    protected boolean lazy;
+
+    /**
+     * Sets whether to leave the parsing of each probability block until
+     * its CPT is needed (by default, everything is parsed up front). If a
+     * block turns out to be bad then, its CPT throws an
+     * UncheckedIOException.
+     */
+    public void setLazy(boolean lazy) {
+	this.lazy = lazy;
+    }
+
+    /**
+     * Sets how many threads to parse probability blocks on (1 means only
+     * the calling thread).
+     */
+    public void setThreads(int threads) {
+	this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Parse and return a BayesianNetwork from this ParallelBIFParser's
+     * input, or null if it has a syntax error (like
+     * {@link BIFParser#parseNetwork}).
+     */
+    public BayesianNetwork parseNetwork() throws IOException {
+	SkippingLexer lexer = new SkippingLexer(input);
+	BIFParser parser = new BIFParser(lexer);
+	BayesianNetwork network = parser.parseNetwork();
+	if (network == null) {
+	    return null;
+	}
+	int nblocks = lexer.blockCount;
+	if (nblocks == 0) {
+	    return network;
+	}
+	int[] starts = Arrays.copyOf(lexer.blockStarts, nblocks);
+	int[] ends = Arrays.copyOf(lexer.blockEnds, nblocks);
+	if (lazy) {
+	    connectLazily(network, starts, ends);
+	    return network;
+	}
+	long bytes = 0;
+	for (int i=0; i < nblocks; i++) {
+	    bytes += ends[i] - starts[i];
+	}
+	int nthreads = (bytes < MIN_PARALLEL_BYTES) ? 1 : threads;
+	// A few runs per thread, so they even out
+	long runBytes = bytes / (4 * nthreads) + 1;
+	List<BlockParser> runs = new ArrayList<BlockParser>();
+	int first = 0;
+	while (first < nblocks) {
+	    int last = first;
+	    long size = ends[first] - starts[first];
+	    while (last + 1 < nblocks && size < runBytes) {
+		last += 1;
+		size += ends[last] - starts[last];
+	    }
+	    runs.add(new BlockParser(network, input,
+				     Arrays.copyOfRange(starts, first, last + 1),
+				     Arrays.copyOfRange(ends, first, last + 1)));
+	    first = last + 1;
+	}
+	if (!parseRuns(runs, nthreads)) {
+	    return null;
+	}
+	for (BlockParser run : runs) {
+	    for (int i=0; i < run.vars.size(); i++) {
+		network.connect(run.vars.get(i), run.parents.get(i), run.cpts.get(i));
+	    }
+	}
+	return network;
+    }
+
+    /**
+     * Connects each variable to its parents as given at the head of its
+     * probability block, with a CPT that parses the block when it's
+     * needed.
+     */
+    protected void connectLazily(final BayesianNetwork network, int[] starts, int[] ends) throws IOException {
+	BIFLexer lexer = new BIFLexer(input);
+	List<RandomVariable> vars = new ArrayList<RandomVariable>();
+	for (int i=0; i < starts.length; i++) {
+	    final int start = starts[i];
+	    final int end = ends[i];
+	    lexer.pos = start;
+	    lexer.limit = end;
+	    if (lexer.yylex() != BIFParser.PROBABILITY || lexer.yylex() != '(') {
+		lexer.error("expected probability block");
+	    }
+	    vars.clear();
+	    int token;
+	    while ((token = lexer.yylex()) == BIFParser.WORD) {
+		vars.add(findVariable(network, (String)lexer.getLVal()));
+	    }
+	    if (token != ')' || vars.isEmpty()) {
+		lexer.error("bad variable list in probability block");
+	    }
+	    final RandomVariable var = vars.get(0);
+	    List<RandomVariable> parents = new ArrayList<RandomVariable>(vars.subList(1, vars.size()));
+	    CPT cpt = new CPT(var, parents, new CPT.Source() {
+		public CPT load(CPT cpt) {
+		    BlockParser parser = new BlockParser(network, input, new int[] { start }, new int[] { end });
+		    try {
+			if (!parser.parse()) {
+			    throw new ParserException("syntax error in probability block for variable: " + var.getName());
+			}
+		    } catch (IOException ex) {
+			throw new UncheckedIOException(ex);
+		    }
+		    return parser.cpts.get(0);
+		}
+	    });
+	    network.connect(var, parents, cpt);
+	}
+    }
+
+    /**
+     * Returns the variable with the given name in the given network.
+     * @throws ParserException if there isn't one
+     */
+    protected static RandomVariable findVariable(BayesianNetwork network, String name) throws ParserException {
+	try {
+	    return network.getVariableByName(name);
+	} catch (NoSuchElementException ex) {
+	    throw new ParserException("can't find variable: " + name);
+	}
+    }
+
+    /**
+     * Parses the given runs of probability blocks on the given number of
+     * threads, returning false if any of them has a syntax error.
+     */
+    protected boolean parseRuns(List<BlockParser> runs, int nthreads) throws IOException {
+	if (nthreads == 1 || runs.size() == 1) {
+	    for (BlockParser run : runs) {
+		if (!run.parse()) {
+		    return false;
+		}
+	    }
+	    return true;
+	}
+	List<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>(runs.size());
+	for (final BlockParser run : runs) {
+	    tasks.add(new Callable<Boolean>() {
+		public Boolean call() throws IOException {
+		    return run.parse();
+		}
+	    });
+	}
+	ExecutorService pool = Executors.newFixedThreadPool(Math.min(nthreads, runs.size()));
+	try {
+	    boolean ok = true;
+	    for (Future<Boolean> future : pool.invokeAll(tasks)) {
+		ok &= future.get();
+	    }
+	    return ok;
+	} catch (InterruptedException ex) {
+	    Thread.currentThread().interrupt();
+	    throw new InterruptedIOException();
+	} catch (ExecutionException ex) {
+	    Throwable cause = ex.getCause();
+	    if (cause instanceof IOException) {
+		throw (IOException)cause;
+	    } else if (cause instanceof RuntimeException) {
+		throw (RuntimeException)cause;
+	    } else {
+		throw new RuntimeException(cause);
+	    }
+	} finally {
+	    pool.shutdown();
+	}
+    }
+
+    /**
+     * A BIFLexer that steps over top-level probability blocks, recording
+     * where each one starts and ends.
+     */
+    protected static class SkippingLexer extends BIFLexer {
+
+	protected int[] blockStarts = new int[64];
+	protected int[] blockEnds = new int[64];
+	protected int blockCount;
+
+	/**
+	 * How many braces are open.
+	 */
+	protected int depth;
+
+	public SkippingLexer(ByteBuffer input) {
+	    super(input);
+	}
+
+	public int yylex() throws IOException {
+	    while (true) {
+		int token = super.yylex();
+		if (token == '{') {
+		    depth += 1;
+		} else if (token == '}') {
+		    depth -= 1;
+		} else if (token == BIFParser.PROBABILITY && depth == 0) {
+		    int start = pos - "probability".length();
+		    skipBlock();
+		    if (blockCount == blockStarts.length) {
+			blockStarts = Arrays.copyOf(blockStarts, 2 * blockCount);
+			blockEnds = Arrays.copyOf(blockEnds, 2 * blockCount);
+		    }
+		    blockStarts[blockCount] = start;
+		    blockEnds[blockCount] = pos;
+		    blockCount += 1;
+		    continue;
+		}
+		return token;
+	    }
+	}
+
+	/**
+	 * Moves past the rest of the probability block whose keyword was
+	 * just read: up to and including the brace that closes its
+	 * content. Comments and property text are skipped as yylex would,
+	 * since they might contain braces, but nothing else is scanned
+	 * except to find its end.
+	 */
+	protected void skipBlock() throws ParserException {
+	    int open = 0;
+	    while (pos < limit) {
+		int ch = input.get(pos++);
+		if (ch == '{') {
+		    open += 1;
+		} else if (ch == '}') {
+		    if (--open == 0) {
+			return;
+		    }
+		} else if (ch == '/' && pos < limit && input.get(pos) == '/') {
+		    while (pos < limit && input.get(pos++) != '\n') {
+		    }
+		} else if (ch == '/' && pos < limit && input.get(pos) == '*') {
+		    pos++;
+		    boolean star = false;
+		    while (pos < limit) {
+			ch = input.get(pos++);
+			if (ch == '/' && star) {
+			    break;
+			}
+			star = (ch == '*');
+		    }
+		} else if (isDigit(ch) || ch == '.') {
+		    // so letters in a number (its exponent) don't start a word
+		    while (pos < limit && (isDigit(ch = input.get(pos)) || ch == '.')) {
+			pos++;
+		    }
+		    if (pos < limit && (ch == 'e' || ch == 'E')) {
+			pos++;
+			if (pos < limit && (input.get(pos) == '+' || input.get(pos) == '-')) {
+			    pos++;
+			}
+			while (pos < limit && isDigit(input.get(pos))) {
+			    pos++;
+			}
+		    }
+		} else if (isLetter(ch)) {
+		    int start = pos - 1;
+		    while (pos < limit && (isLetter(ch = input.get(pos)) || isDigit(ch))) {
+			pos++;
+		    }
+		    if (keyword(start, pos) == BIFParser.PROPERTY) {
+			while (pos < limit && input.get(pos++) != ';') {
+			}
+		    }
+		}
+	    }
+	    error("unterminated probability block");
+	}
+    }
+
+    /**
+     * A BIFLexer that returns the tokens of a network declaration, then
+     * those of each of the given ranges of its input in turn, so that a
+     * BIFParser can parse them on their own.
+     */
+    protected static class BlockLexer extends BIFLexer {
+
+	protected static final int[] PRELUDE = {
+	    BIFParser.NETWORK, BIFParser.WORD, '{', '}'
+	};
+
+	protected int[] starts;
+	protected int[] ends;
+	protected int block = -1;
+	protected int prelude;
+
+	public BlockLexer(ByteBuffer input, int[] starts, int[] ends) {
+	    super(input);
+	    this.starts = starts;
+	    this.ends = ends;
+	    limit = pos;
+	}
+
+	public int yylex() throws IOException {
+	    if (prelude < PRELUDE.length) {
+		yylval = "";
+		return PRELUDE[prelude++];
+	    }
+	    int token = super.yylex();
+	    while (token == BIFParser.EOF && block + 1 < starts.length) {
+		block += 1;
+		pos = starts[block];
+		limit = ends[block];
+		token = super.yylex();
+	    }
+	    return token;
+	}
+    }
+
+    /**
+     * A BIFParser for a run of probability blocks of a network whose
+     * variables are all defined, which keeps the CPTs it makes rather
+     * than connecting them.
+     */
+    protected static class BlockParser extends BIFParser {
+
+	protected List<RandomVariable> vars = new ArrayList<RandomVariable>();
+	protected List<List<RandomVariable>> parents = new ArrayList<List<RandomVariable>>();
+	protected List<CPT> cpts = new ArrayList<CPT>();
+
+	public BlockParser(BayesianNetwork network, ByteBuffer input, int[] starts, int[] ends) {
+	    super(new BlockLexer(input, starts, ends));
+	    this.network = network;
+	}
+
+	protected void defineProbability(RandomVariable var, List<RandomVariable> parents, CPT cpt) {
+	    this.vars.add(var);
+	    this.parents.add(parents);
+	    this.cpts.add(cpt);
+	}
+    }
+
+}
@@ -0,0 +1,277 @@
+package bn.parser;
+
+import bn.core.Assignment;
+import bn.core.BayesianNetwork;
+import bn.core.CPT;
+import bn.core.Domain;
+import bn.core.RandomVariable;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * Parser for Bayesian networks in the {@code .uai} format of the UAI
+ * inference competitions, and for the evidence in their {@code .evid}
+ * files. After the word {@code BAYES}, a {@code .uai} file is all numbers:
+ * <pre>
+ * number of variables n
+ * n numbers of values
+ * number of CPTs m
+ * m scopes: number of variables k, then k variable indexes (the parents, then the variable itself)
+ * m tables: number of entries, then the entries
+ * </pre>
+ * Variables are numbered from 0 in the order their numbers of values are
+ * given. They have no names in the file, so variable i is called
+ * {@code Xi}, and its values are the Strings {@code "0"}, {@code "1"},
+ * and so on.
+ * <p>
+ * The entries of a table are in the order a CPT keeps them (the last
+ * variable of the scope changing fastest), so each table is parsed
+ * straight into an array of doubles and copied into its CPT in one go,
+ * as XMLBIFParser does. The file is scanned by a BIFLexer, which parses
+ * numbers from the bytes without making Strings of them.
+ * <p>
+ * {@code MARKOV} files, whose tables are factors rather than CPTs, aren't
+ * Bayesian networks and are rejected.
+ */
+public class UAIParser {
+
+    /**
+     * Construct and return a new UAIParser whose input is the bytes from
+     * the given ByteBuffer's position to its limit.
+     */
+    public UAIParser(ByteBuffer input) {
+	this.input = input;
+    }
+
+    /**
+     * Construct and return a new UAIParser whose input is the given
+     * InputStream, which is read to the end first.
+     */
+    public UAIParser(InputStream input) throws IOException {
+	this(BIFLexer.readFully(input));
+    }
+
+    /**
+     * Construct and return a new UAIParser whose input is the given
+     * file, which is memory-mapped rather than read.
+     */
+    public UAIParser(File file) throws IOException {
+	this(BIFParser.map(file));
+    }
+
+    protected ByteBuffer input;
+
+    /**
+     * Returns true if the first of the first n bytes of the given array
+     * that aren't whitespace spell {@code BAYES} (ignoring case), the way
+     * a {@code .uai} file for a Bayesian network starts.
+     */
+    public static boolean isUAI(byte[] bytes, int n) {
+	byte[] word = { 'b', 'a', 'y', 'e', 's' };
+	int i = 0;
+	while (i < n && (bytes[i] == ' ' || bytes[i] == '\t' || bytes[i] == '\n' || bytes[i] == '\r')) {
+	    i++;
+	}
+	if (n - i < word.length) {
+	    return false;
+	}
+	for (int k=0; k < word.length; k++) {
+	    if ((bytes[i + k] | 0x20) != word[k]) {
+		return false;
+	    }
+	}
+	return true;
+    }
+
+    /**
+     * Parse and return a BayesianNetwork from this UAIParser's input.
+     * @throws ParserException if it isn't a BAYES network in UAI format
+     */
+    public BayesianNetwork parseNetwork() throws IOException {
+	BIFLexer lexer = new BIFLexer(input);
+	if (lexer.yylex() != BIFParser.WORD || !"BAYES".equalsIgnoreCase((String)lexer.getLVal())) {
+	    lexer.error("not a BAYES network");
+	}
+	int n = nextInt(lexer);
+	BayesianNetwork network = new BayesianNetwork();
+	RandomVariable[] vars = new RandomVariable[n];
+	// The values are the same few Strings over and over
+	String[] values = new String[0];
+	for (int i=0; i < n; i++) {
+	    int card = nextInt(lexer);
+	    if (card < 1) {
+		lexer.error("variable " + i + " has no values");
+	    }
+	    if (values.length < card) {
+		int old = values.length;
+		values = Arrays.copyOf(values, card);
+		for (int k=old; k < card; k++) {
+		    values[k] = Integer.toString(k);
+		}
+	    }
+	    Domain domain = new Domain(card);
+	    for (int k=0; k < card; k++) {
+		domain.add(values[k]);
+	    }
+	    vars[i] = new RandomVariable("X" + i, domain);
+	    network.add(vars[i]);
+	}
+	int m = nextInt(lexer);
+	int[][] scopes = new int[m][];
+	for (int j=0; j < m; j++) {
+	    int k = nextInt(lexer);
+	    if (k < 1) {
+		lexer.error("CPT " + j + " has no variables");
+	    }
+	    scopes[j] = new int[k];
+	    for (int i=0; i < k; i++) {
+		scopes[j][i] = nextInt(lexer);
+		if (scopes[j][i] >= n) {
+		    lexer.error("no variable " + scopes[j][i]);
+		}
+	    }
+	}
+	boolean[] defined = new boolean[n];
+	double[] table = new double[16];
+	for (int j=0; j < m; j++) {
+	    int[] scope = scopes[j];
+	    RandomVariable var = vars[scope[scope.length-1]];
+	    List<RandomVariable> givens = new ArrayList<RandomVariable>(scope.length-1);
+	    for (int i=0; i < scope.length-1; i++) {
+		givens.add(vars[scope[i]]);
+	    }
+	    CPT cpt = new CPT(var, givens);
+	    int size = nextInt(lexer);
+	    if (size != cpt.size()) {
+		lexer.error("CPT for " + var.getName() + " has " + size + " entries, not " + cpt.size());
+	    }
+	    if (table.length < size) {
+		table = new double[Math.max(size, 2 * table.length)];
+	    }
+	    for (int i=0; i < size; i++) {
+		table[i] = nextNumber(lexer);
+	    }
+	    cpt.setValues(0, table, 0, size);
+	    if (defined[scope[scope.length-1]]) {
+		lexer.error("second CPT for " + var.getName());
+	    }
+	    defined[scope[scope.length-1]] = true;
+	    network.connect(var, givens, cpt);
+	}
+	for (int i=0; i < n; i++) {
+	    if (!defined[i]) {
+		lexer.error("no CPT for " + vars[i].getName());
+	    }
+	}
+	return network;
+    }
+
+    /**
+     * Parse and return the evidence cases in this UAIParser's input, which
+     * is a {@code .evid} file for the given network, as Assignments of the
+     * network's variables. Variables are numbered in the order of
+     * {@link BayesianNetwork#getVariableList}, which for a network read
+     * from a file is the order of the file, so BIF and XMLBIF networks can
+     * have evidence files too.
+     * <p>
+     * Since 2014 an evidence file is one case: the number of observed
+     * variables, then the index of each one and the index of its value.
+     * Before that, it was the number of cases followed by that many of
+     * them, which is what the given flag says. The numbers alone can't
+     * tell the two apart: {@code 2 0 1 5 1} is one case with two observed
+     * variables, or two cases with none and one.
+     * @throws ParserException if it isn't an evidence file for the network
+     * in the given layout
+     */
+    public List<Assignment> parseEvidence(BayesianNetwork network, boolean multipleCases) throws IOException {
+	BIFLexer lexer = new BIFLexer(input);
+	int[] ints = new int[16];
+	int count = 0;
+	int token;
+	while ((token = lexer.yylex()) != BIFParser.EOF) {
+	    if (token != BIFParser.DECIMAL_LITERAL) {
+		lexer.error("expected an integer");
+	    }
+	    if (count == ints.length) {
+		ints = Arrays.copyOf(ints, 2 * count);
+	    }
+	    ints[count++] = ((Integer)lexer.getLVal()).intValue();
+	}
+	List<RandomVariable> vars = network.getVariableList();
+	List<Assignment> cases = new ArrayList<Assignment>();
+	if (count == 0) {
+	    return cases;
+	}
+	int pos = multipleCases ? 1 : 0;
+	int ncases = multipleCases ? ints[0] : 1;
+	for (int c=0; c < ncases; c++) {
+	    if (pos >= count || pos + 1 + 2 * ints[pos] > count) {
+		throw new ParserException("evidence is truncated");
+	    }
+	    int k = ints[pos++];
+	    Assignment e = new Assignment();
+	    for (int i=0; i < k; i++) {
+		int v = ints[pos++];
+		int x = ints[pos++];
+		if (v >= vars.size()) {
+		    throw new ParserException("no variable " + v);
+		}
+		RandomVariable var = vars.get(v);
+		if (x >= var.getDomain().size()) {
+		    throw new ParserException(var.getName() + " has no value " + x);
+		}
+		e.set(var, var.getDomain().get(x));
+	    }
+	    cases.add(e);
+	}
+	if (pos != count) {
+	    throw new ParserException("extra numbers after evidence");
+	}
+	return cases;
+    }
+
+    /**
+     * Returns the next token from the given lexer, which must be a
+     * (non-negative) integer.
+     */
+    protected static int nextInt(BIFLexer lexer) throws IOException {
+	if (lexer.yylex() != BIFParser.DECIMAL_LITERAL) {
+	    lexer.error("expected an integer");
+	}
+	return ((Integer)lexer.getLVal()).intValue();
+    }
+
+    /**
+     * Returns the next token from the given lexer, which must be a number.
+     */
+    protected static double nextNumber(BIFLexer lexer) throws IOException {
+	int token = lexer.yylex();
+	if (token != BIFParser.DECIMAL_LITERAL && token != BIFParser.FLOATING_POINT_LITERAL) {
+	    lexer.error("expected a number");
+	}
+	return lexer.getNumber();
+    }
+
+    /**
+     * Reads the network in the .uai file named by the first argument and
+     * prints it, and then the cases in the .evid file named by the second,
+     * if there is one. Given {@code -cases} first, the evidence file holds
+     * several cases (see parseEvidence).
+     */
+    public static void main(String[] argv) throws IOException {
+	boolean multipleCases = argv.length > 0 && argv[0].equals("-cases");
+	if (multipleCases) {
+	    argv = Arrays.copyOfRange(argv, 1, argv.length);
+	}
+	BayesianNetwork network = new UAIParser(new File(argv[0])).parseNetwork();
+	network.print(System.out);
+	if (argv.length > 1) {
+	    for (Assignment e : new UAIParser(new File(argv[1])).parseEvidence(network, multipleCases)) {
+		System.out.println(e);
+	    }
+	}
+    }
+
+}
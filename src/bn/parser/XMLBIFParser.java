@@ -11,30 +11,32 @@ import bn.core.BayesianNetwork;
 import bn.core.CPT;
 import bn.core.Domain;
 import bn.core.RandomVariable;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
-
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import java.io.File;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.*;
 
 /**
- * DOM Parser (DocumentBuilder)-based parser for
+ * StAX (pull parser) based parser for
  * <a href="http://www.cs.cmu.edu/~fgcozman/Research/InterchangeFormat/">XMLBIF</a>
  * files.
  * <p>
  * Note that XMLBIF explicitly states that <q>There is no mandatory
- * order of variable and probability blocks.</q> This means that we
- * have to read the DOM, then create nodes for all the variables using
- * the {@code variable} elements, then hook them up and add the CPTs
- * using the {@code definition} blocks. A good reason to use a DOM
- * parser rather than a SAX parser.
+ * order of variable and probability blocks.</q> So the file is streamed
+ * through once: variables are created as their {@code variable} elements
+ * go by, and the numbers in the {@code table} of each {@code definition}
+ * element are parsed straight into an array of doubles. When the
+ * definition ends, if its variables are all known (as they are in every
+ * file I have seen), the array is copied into a new CPT and the variable
+ * is hooked up to its parents. Otherwise the definition is put aside until
+ * the end of the file. So no more than the network itself and the
+ * definitions that had to wait is kept in memory, unlike with a DOM.
  * <p>
  * Also XMLBIF appears to use uppercase tag names, perhaps thinking they
  * really ought to be case-insensitive.
@@ -44,167 +46,232 @@ import java.util.*;
  */
 public class XMLBIFParser {
 
-    public BayesianNetwork readNetworkFromFile(String filename) throws IOException, ParserConfigurationException, SAXException {
-	DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-	DocumentBuilder db = dbf.newDocumentBuilder();
-	Document doc = db.parse(new File(filename));
-	return processDocument(doc);
-    }
-
-    protected BayesianNetwork processDocument(Document doc) {
-	Element networkElt = doc.getDocumentElement();
-	final BayesianNetwork network = new BayesianNetwork();
-	// First do the variables
-	doForEachElement(doc, "VARIABLE", new ElementTaker() {
-		public void element(Element e) {
-		    processVariableElement(e, network);
-		}
-	    });
-	// Then do the defintions (a.k.a, links and CPTs)
-	doForEachElement(doc, "DEFINITION", new ElementTaker() {
-		public void element(Element e) {
-		    processDefinitionElement(e, network);
-		}
-	    });
-	return network;
+    public BayesianNetwork readNetworkFromFile(String filename) throws IOException {
+	InputStream input = new BufferedInputStream(new FileInputStream(filename), 1 << 16);
+	try {
+	    return readNetwork(input);
+	} finally {
+	    input.close();
+	}
     }
 
-    protected void doForEachElement(Document doc, String tagname, ElementTaker taker) {
-	NodeList nodes = doc.getElementsByTagName(tagname);
-	if (nodes != null && nodes.getLength() > 0) {
-	    for (int i=0; i < nodes.getLength(); i++) {
-		    Node node = nodes.item(i);
-		    taker.element((Element)node);
+    /**
+     * Reads a network from the XMLBIF document on the given InputStream
+     * (which is not closed).
+     */
+    public BayesianNetwork readNetwork(InputStream input) throws IOException {
+	XMLInputFactory factory = XMLInputFactory.newInstance();
+	// XMLBIF files only have internal DTDs, declaring the elements
+	factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+	try {
+	    XMLStreamReader reader = factory.createXMLStreamReader(input);
+	    try {
+		return processDocument(reader);
+	    } finally {
+		reader.close();
 	    }
+	} catch (XMLStreamException ex) {
+	    throw new ParserException(ex.getMessage());
 	}
     }
 
-    protected void processVariableElement(Element e, BayesianNetwork network) {
-	Element nameElt = getChildWithTagName(e, "NAME");
-	String name = getChildText(nameElt);
-	//trace("creating variable: " + name);
-	RandomVariable var = new RandomVariable(name);
-	final Domain domain = var.getDomain();
-	doForEachChild(e, "OUTCOME", new ElementTaker() {
-		public void element(Element e) {
-		    String value = getChildText(e);
-		    //trace("adding value: " + value);
-		    domain.add(value);
+    protected BayesianNetwork processDocument(XMLStreamReader reader) throws XMLStreamException, ParserException {
+	BayesianNetwork network = new BayesianNetwork();
+	List<Definition> pending = new ArrayList<Definition>();
+	while (reader.hasNext()) {
+	    if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+		String tag = reader.getLocalName();
+		if (tag.equals("VARIABLE")) {
+		    processVariableElement(reader, network);
+		} else if (tag.equals("DEFINITION")) {
+		    Definition def = processDefinitionElement(reader);
+		    if (!def.define(network)) {
+			pending.add(def);
+		    }
 		}
-	    });
-	network.add(var);
+	    }
+	}
+	// Then the defintions that came before their variables
+	for (Definition def : pending) {
+	    if (!def.define(network)) {
+		throw new ParserException("can't find variables for definition: " + def.forName);
+	    }
+	}
+	return network;
     }
 
-    protected void processDefinitionElement(Element e, final BayesianNetwork network) {
-	Element forElt = getChildWithTagName(e, "FOR");
-	String forName = getChildText(forElt);
-	//trace("creating links to variable: " + forName);
-	RandomVariable forVar = network.getVariableByName(forName);
-	final List<RandomVariable> givens = new ArrayList<RandomVariable>();
-	doForEachChild(e, "GIVEN", new ElementTaker() {
-		public void element(Element e) {
-		    String value = getChildText(e);
-		    //trace("adding parent: " + value);
-		    givens.add(network.getVariableByName(value));
+    /**
+     * Creates a variable from the {@code variable} element the reader is
+     * at the start of, and adds it to the network. Leaves the reader at
+     * the end of the element.
+     */
+    protected void processVariableElement(XMLStreamReader reader, BayesianNetwork network) throws XMLStreamException {
+	String name = null;
+	Domain domain = new Domain();
+	while (reader.next() != XMLStreamConstants.END_ELEMENT || !reader.getLocalName().equals("VARIABLE")) {
+	    if (reader.getEventType() == XMLStreamConstants.START_ELEMENT) {
+		String tag = reader.getLocalName();
+		if (tag.equals("NAME")) {
+		    name = reader.getElementText();
+		} else if (tag.equals("OUTCOME")) {
+		    domain.add(reader.getElementText());
 		}
-	    });
-	CPT cpt = new CPT(forVar, givens);
-	Element tableElt = getChildWithTagName(e, "TABLE");
-	String tableStr = getChildText(tableElt);
-	initCPTFromString(cpt, tableStr);
-	network.connect(forVar, givens, cpt);
+	    }
+	}
+	if (name == null) {
+	    throw new NoSuchElementException("NAME");
+	}
+	//trace("creating variable: " + name);
+	network.add(new RandomVariable(name, domain));
     }
 
     /**
-     * Reads numeric values from the given string, and saves them as the
-     * succesive probability values of this CPT. This method is used by
-     * the XMLBIFParser, and relies crucially on the ordering of the 
-     * elements of the CPT matching the order defined for XMLBIF.
-     * @see CPT#valueIterator
+     * Reads the {@code definition} element the reader is at the start of,
+     * leaving the reader at the end of the element.
      */
-    public void initCPTFromString(CPT cpt, String str) throws NumberFormatException, CPTFormatException {
-	//trace("initCPTFromString: " + str);
-	StringTokenizer tokens = new StringTokenizer(str);
-	Iterator<CPT.ProbabilityValue> values = cpt.valueIterator();
-	while (tokens.hasMoreTokens()) {
-	    String token = tokens.nextToken();
-	    //trace("probability: " + token);
-	    CPT.ProbabilityValue pv = values.next();
-	    pv.value = Double.parseDouble(token);
+    protected Definition processDefinitionElement(XMLStreamReader reader) throws XMLStreamException {
+	Definition def = new Definition();
+	while (reader.next() != XMLStreamConstants.END_ELEMENT || !reader.getLocalName().equals("DEFINITION")) {
+	    if (reader.getEventType() == XMLStreamConstants.START_ELEMENT) {
+		String tag = reader.getLocalName();
+		if (tag.equals("FOR")) {
+		    def.forName = reader.getElementText();
+		} else if (tag.equals("GIVEN")) {
+		    def.givenNames.add(reader.getElementText());
+		} else if (tag.equals("TABLE")) {
+		    readTable(reader, def);
+		}
+	    }
 	}
-	if (values.hasNext()) {
-	    throw new CPTFormatException();
+	if (def.forName == null) {
+	    throw new NoSuchElementException("FOR");
 	}
+	return def;
     }
 
-    protected Element getChildWithTagName(Element elt, String tagname) {
-	NodeList children = elt.getChildNodes();
-	if (children != null && children.getLength() > 0) {
-	    for (int i=0; i < children.getLength(); i++) {
-		Node node = children.item(i);
-		if (node.getNodeType() == Node.ELEMENT_NODE) {
-		    Element childElt = (Element)node;
-		    if (childElt.getTagName().equals(tagname)) {
-			return childElt;
+    /**
+     * Parses the numbers in the {@code table} element the reader is at the
+     * start of into the given Definition, a piece of text at a time,
+     * leaving the reader at the end of the element.
+     */
+    protected void readTable(XMLStreamReader reader, Definition def) throws XMLStreamException {
+	// A number can be split between two pieces of text
+	StringBuilder token = new StringBuilder();
+	while (reader.next() != XMLStreamConstants.END_ELEMENT) {
+	    int type = reader.getEventType();
+	    if (type != XMLStreamConstants.CHARACTERS && type != XMLStreamConstants.CDATA
+		&& type != XMLStreamConstants.SPACE) {
+		continue;
+	    }
+	    char[] text = reader.getTextCharacters();
+	    int end = reader.getTextStart() + reader.getTextLength();
+	    for (int i=reader.getTextStart(); i < end; i++) {
+		char c = text[i];
+		if (Character.isWhitespace(c)) {
+		    if (token.length() > 0) {
+			def.add(Double.parseDouble(token.toString()));
+			token.setLength(0);
 		    }
+		} else {
+		    token.append(c);
 		}
 	    }
 	}
-	throw new NoSuchElementException(tagname);
+	if (token.length() > 0) {
+	    def.add(Double.parseDouble(token.toString()));
+	}
     }
 
-    protected void doForEachChild(Element elt, String tagname, ElementTaker taker) {
-	NodeList children = elt.getChildNodes();
-	if (children != null && children.getLength() > 0) {
-	    for (int i=0; i < children.getLength(); i++) {
-		Node node = children.item(i);
-		if (node.getNodeType() == Node.ELEMENT_NODE) {
-		    Element childElt = (Element)node;
-		    if (childElt.getTagName().equals(tagname)) {
-			taker.element(childElt);
-		    }
+    /**
+     * A {@code definition} element, as read: the names of its variables
+     * and the numbers in its table.
+     */
+    protected static class Definition {
+	String forName;
+	List<String> givenNames = new ArrayList<String>();
+	double[] table = new double[16];
+	int size;
+
+	void add(double p) {
+	    if (size == table.length) {
+		table = Arrays.copyOf(table, 2 * size);
+	    }
+	    table[size++] = p;
+	}
+
+	/**
+	 * Returns the variable with the given name in the given network,
+	 * or null if there isn't one.
+	 */
+	static RandomVariable findVariable(BayesianNetwork network, String name) {
+	    try {
+		return network.getVariableByName(name);
+	    } catch (NoSuchElementException ex) {
+		return null;
+	    }
+	}
+
+	/**
+	 * Creates the CPT for this definition and connects its variable to
+	 * its parents in the given network, unless some of the variables
+	 * aren't in the network (yet), in which case returns false.
+	 * @throws CPTFormatException if the table is the wrong size
+	 */
+	boolean define(BayesianNetwork network) throws CPTFormatException {
+	    RandomVariable forVar = findVariable(network, forName);
+	    if (forVar == null) {
+		return false;
+	    }
+	    List<RandomVariable> givens = new ArrayList<RandomVariable>(givenNames.size());
+	    for (String name : givenNames) {
+		RandomVariable given = findVariable(network, name);
+		if (given == null) {
+		    return false;
 		}
+		givens.add(given);
 	    }
+	    CPT cpt = new CPT(forVar, givens);
+	    if (size != cpt.size()) {
+		throw new CPTFormatException();
+	    }
+	    cpt.setValues(0, table, 0, size);
+	    network.connect(forVar, givens, cpt);
+	    return true;
 	}
     }
 
     /**
-     * Returns the concatenated child text of the specified node.
-     * This method only looks at the immediate children of type
-     * Node.TEXT_NODE or the children of any child node that is of
-     * type Node.CDATA_SECTION_NODE for the concatenation.
+     * Reads numeric values from the given string, and saves them as the
+     * succesive probability values of this CPT. This relies crucially on
+     * the ordering of the elements of the CPT matching the order defined
+     * for XMLBIF.
+     * @see CPT#valueIterator
      */
-    public String getChildText(Node node) {
-	if (node == null) {
-	    return null;
-	}
-	StringBuilder buf = new StringBuilder();
-	Node child = node.getFirstChild();
-	while (child != null) {
-	    short type = child.getNodeType();
-	    if (type == Node.TEXT_NODE) {
-		buf.append(child.getNodeValue());
-	    }
-	    else if (type == Node.CDATA_SECTION_NODE) {
-		buf.append(getChildText(child));
+    public void initCPTFromString(CPT cpt, String str) throws NumberFormatException, CPTFormatException {
+	//trace("initCPTFromString: " + str);
+	StringTokenizer tokens = new StringTokenizer(str);
+	int index = 0;
+	while (tokens.hasMoreTokens()) {
+	    String token = tokens.nextToken();
+	    //trace("probability: " + token);
+	    if (index == cpt.size()) {
+		throw new CPTFormatException();
 	    }
-	    child = child.getNextSibling();
+	    cpt.setValue(index++, Double.parseDouble(token));
+	}
+	if (index < cpt.size()) {
+	    throw new CPTFormatException();
 	}
-	return buf.toString();
     }
 
     protected void trace(String msg) {
 	System.err.println(msg);
     }
 
-    public static void main(String[] argv) throws IOException, ParserConfigurationException, SAXException {
+    public static void main(String[] argv) throws IOException {
 	XMLBIFParser parser = new XMLBIFParser();
 	BayesianNetwork network = parser.readNetworkFromFile(argv[0]);
 	network.print(System.out);
     }
 
 }
-
-interface ElementTaker {
-    public void element(Element e);
-}